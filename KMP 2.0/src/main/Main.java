@@ -1,10 +1,37 @@
 package main;
 
+import java.util.Arrays;
+
+import ui.BulkLoader;
 import ui.Console;
+import ui.InsertBenchmark;
+import ui.JoinBenchmark;
+import ui.Server;
+import ui.ServerBenchmark;
 
 public class Main {
 
 	public static void main(String[] args) {
+		if (args.length > 1 && args[0].equals("--bulk")) {
+			BulkLoader.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("--server")) {
+			Server.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("--server-benchmark")) {
+			ServerBenchmark.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("--insert-benchmark")) {
+			InsertBenchmark.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("--join-benchmark")) {
+			JoinBenchmark.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
 		Thread thread = new Thread(new Console());
 		thread.start();
 	}
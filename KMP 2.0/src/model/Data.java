@@ -11,10 +11,24 @@ public abstract class Data implements Serializable {
 	 */
 	private static final long serialVersionUID = 1L;
 	protected String id;
+	protected int term = -1;
 
     public String getId() {
         return id;
     }
+
+    /**
+     * Returns the term id assigned by the database dictionary, or -1 if the
+     * object has not been added to a database yet.
+     * @return the term id
+     */
+    public int getTerm() {
+    	return term;
+    }
+
+    public void setTerm(int term) {
+    	this.term = term;
+    }
     
     @Override
     public boolean equals(Object o) {
@@ -4,6 +4,8 @@ import java.io.Serializable;
 
 /**
  * This class is used to represent the id associated with a database entry.
+ * Entries now hold the term of their id, so it is only kept to read the
+ * databases saved by Java serialization before terms were encoded.
  */
 public class ID implements Serializable {
 
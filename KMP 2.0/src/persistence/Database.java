@@ -1,15 +1,22 @@
 package persistence;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 
 import model.Data;
 import model.Relation;
@@ -18,16 +25,144 @@ import model.Subject;
 /**
  * This class is the lowest data layer. It is the only class that should have
  * access to data stored on a machine.
+ *
+ * Insertions, that is addSubject, addRelation, insert, findOrInsertEntry and
+ * addTriple, can be made by several threads at once. Terms are looked up
+ * without locks and appended under a dictionary lock. The triples of an entry
+ * are guarded by one of kmp.write.stripes locks, 64 by default, chosen by the
+ * id term, and the permutation indexes by as many locks chosen by the subject
+ * term, so that threads writing distinct ids rarely wait for each other.
+ * Listeners are notified one at a time. The counters read without locks,
+ * such as the number of terms and entries and the version, are volatile and
+ * only written under the lock of what they count. The other mutations and the queries
+ * must not run at the same time as any mutation.
  */
 public class Database implements Serializable {
 
 	/**
 	 * 
 	 */
-	private static final long serialVersionUID = 1L;
-	private ArrayList<Data> objects;
-	private HashMap<Integer, EntryData> table;
-	private int primaryIndex = 1;
+	private static final long serialVersionUID = 2L;
+
+	/**
+	 * The serialized fields, table being written as a HashMap as by the versions
+	 * that declared it so.
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = {
+			new ObjectStreamField("objects", ArrayList.class), new ObjectStreamField("table", HashMap.class),
+			new ObjectStreamField("primaryIndex", Integer.TYPE) };
+
+	private static final int STRIPES = Integer.highestOneBit(Math.max(1, Integer.getInteger("kmp.write.stripes", 64)));
+
+	private static final AtomicIntegerFieldUpdater<Database> PRIMARY_INDEX = AtomicIntegerFieldUpdater
+			.newUpdater(Database.class, "primaryIndex");
+
+	/**
+	 * Dictionary of every Subject and Relation, serialized as the objects field.
+	 * The position of an object in the array is its term id, which is what
+	 * EntryData and the query engine store. When the database is mapped, the
+	 * array only holds the terms following the ones of the snapshot.
+	 *
+	 * Terms are appended under dictionaryLock and read without locks by other
+	 * inserting threads. A full array is replaced by a larger copy before the
+	 * term is stored, and objectCount is written after it, so a thread reading
+	 * objectCount, or a term found in the symbol tables, then the array sees
+	 * every term below the count.
+	 */
+	private transient volatile Data[] objects;
+	private transient volatile int objectCount;
+	private ConcurrentHashMap<Integer, EntryData> table;
+	private volatile int primaryIndex = 1;
+
+	/**
+	 * Symbol tables associating an id string with its Subject or Relation. They
+	 * mirror the objects field and are rebuilt after deserialization. A term is
+	 * put in them once it is in objects and listeners know it.
+	 */
+	private transient ConcurrentHashMap<String, Subject> subjects;
+	private transient ConcurrentHashMap<String, Relation> relations;
+
+	/**
+	 * Reverse index associating the id term of every entry with its key in table,
+	 * 0 meaning no entry. It is rebuilt after deserialization. When the database
+	 * is mapped, keys starts at the term keyBase and the keys of lower terms that
+	 * changed since the snapshot are kept in keyOverrides.
+	 */
+	private transient volatile int[] keys;
+	private transient int keyBase;
+	private transient ConcurrentHashMap<Integer, Integer> keyOverrides;
+
+	/**
+	 * Permutation indexes kept next to table, which is subject-first (SPO).
+	 * predicateIndex associates relation -> subject (object of the triple) ->
+	 * ids (POS), objectIndex associates subject (object of the triple) -> id ->
+	 * relations (OSP). Both are rebuilt after deserialization.
+	 */
+	private transient ConcurrentHashMap<Integer, ConcurrentHashMap<Integer, TermList>> predicateIndex;
+	private transient ConcurrentHashMap<Integer, HashMap<Integer, TermList>> objectIndex;
+	private transient LongAdder tripleCount;
+
+	/**
+	 * Statistics of the relations, computed from predicateIndex when the query
+	 * planner asks for them and dropped when a triple of the relation changes.
+	 * Concurrent like adjacencies, since queries running on a replica published
+	 * by SnapshotPublisher fill it from several threads.
+	 */
+	private transient ConcurrentHashMap<Integer, RelationStatistics> statistics;
+
+	/**
+	 * Sorted adjacency indexes of the relations, id-first then subject-first,
+	 * built for the leapfrog triejoin and dropped like statistics.
+	 */
+	private transient ConcurrentHashMap<Integer, SortedAdjacency[]> adjacencies;
+
+	/**
+	 * Incremented whenever a term is added or removed and when the database is
+	 * reset. Compiled query plans hold resolved terms and are only valid for the
+	 * version they were compiled against. Insertions increment it under
+	 * dictionaryLock.
+	 */
+	private transient volatile long version;
+
+	/**
+	 * Set when two entries of table share an id term, which files written by
+	 * older versions can contain. Triples are then checked for duplicates before
+	 * they are added to predicateIndex, which otherwise costs a linear scan.
+	 */
+	private transient boolean sharedIds;
+
+	/**
+	 * Number of entries of table. Insertions increment it under keyLock.
+	 */
+	private transient volatile int entryCount;
+
+	/**
+	 * Locks of the concurrent insertions. They are taken in the order
+	 * entryStripes, keyLock, indexStripes, listeners, or dictionaryLock then
+	 * listeners.
+	 */
+	private transient Object[] entryStripes;
+	private transient Object[] indexStripes;
+	private transient Object keyLock;
+	private transient Object dictionaryLock;
+
+	/**
+	 * File the database was opened from by SnapshotFile.map, or null. Terms lower
+	 * than snapshotTerms, entries whose key is lower than snapshotKeys and blocks
+	 * of the permutation indexes are decoded from it the first time they are
+	 * accessed, then kept on the heap like the ones added since.
+	 */
+	private transient MappedSnapshot snapshot;
+	private transient int snapshotTerms;
+	private transient int snapshotKeys;
+	private transient ConcurrentHashMap<Integer, Data> snapshotObjects;
+	private transient Set<Integer> loadedPredicates;
+	private transient Set<Integer> loadedObjects;
+
+	/**
+	 * Listeners notified after every mutation.
+	 */
+	private transient ArrayList<DatabaseListener> listeners;
 
 	/**
 	 * Returns size of table field (HashMap<Integer, EntryData>) as an int.
@@ -35,12 +170,407 @@ public class Database implements Serializable {
 	 * @return the size of the table
 	 */
 	public int tableSize() {
-		return table.keySet().size();
+		return entryCount;
 	}
 
 	public Database() {
-		table = new HashMap<>();
-		objects = new ArrayList<>();
+		table = new ConcurrentHashMap<>();
+		objects = new Data[16];
+		subjects = new ConcurrentHashMap<>();
+		relations = new ConcurrentHashMap<>();
+		keys = new int[16];
+		predicateIndex = new ConcurrentHashMap<>();
+		objectIndex = new ConcurrentHashMap<>();
+		tripleCount = new LongAdder();
+		statistics = new ConcurrentHashMap<>();
+		adjacencies = new ConcurrentHashMap<>();
+		listeners = new ArrayList<>();
+		createLocks();
+	}
+
+	private void createLocks() {
+		entryStripes = new Object[STRIPES];
+		indexStripes = new Object[STRIPES];
+		for (int stripe = 0; stripe < STRIPES; stripe++) {
+			entryStripes[stripe] = new Object();
+			indexStripes[stripe] = new Object();
+		}
+		keyLock = new Object();
+		dictionaryLock = new Object();
+	}
+
+	/**
+	 * Returns the lock guarding the triples of the entries whose id is term.
+	 */
+	private Object entryStripe(int term) {
+		return entryStripes[term & STRIPES - 1];
+	}
+
+	/**
+	 * Returns the lock guarding the triples pointing to a subject in the
+	 * permutation indexes.
+	 */
+	private Object indexStripe(int subject) {
+		return indexStripes[subject & STRIPES - 1];
+	}
+
+	/**
+	 * Opens a database on a mapped snapshot. Only the relations are decoded, the
+	 * rest of the file is read when it is needed.
+	 * 
+	 * @param snapshot
+	 *            a mapped file of version 2.
+	 */
+	Database(MappedSnapshot snapshot) {
+		this();
+		this.snapshot = snapshot;
+		snapshotTerms = snapshot.termCount;
+		snapshotKeys = snapshot.keyLimit;
+		snapshotObjects = new ConcurrentHashMap<>();
+		loadedPredicates = ConcurrentHashMap.newKeySet();
+		loadedObjects = ConcurrentHashMap.newKeySet();
+		keyBase = snapshot.termCount;
+		keyOverrides = new ConcurrentHashMap<>();
+		primaryIndex = snapshot.primaryIndex;
+		entryCount = snapshot.entryCount;
+		tripleCount.add(snapshot.tripleCount);
+		sharedIds = snapshot.sharedIds;
+		for (Relation relation : snapshot.readRelations()) {
+			snapshotObjects.put(relation.getTerm(), relation);
+			relations.put(relation.getId(), relation);
+		}
+	}
+
+	/**
+	 * Decodes everything the snapshot still holds, after which the database no
+	 * longer depends on it. Full scans call it since they decode every entry
+	 * anyway.
+	 */
+	private void loadSnapshot() {
+		if (snapshot == null) {
+			return;
+		}
+		Data[] allObjects = new Data[Math.max(16, termCount())];
+		int[] allKeys = new int[Math.max(16, termCount())];
+		for (int term = 0; term < termCount(); term++) {
+			allKeys[term] = findKey(term);
+		}
+		for (int term = 0; term < snapshotTerms; term++) {
+			allObjects[term] = getData(term);
+			loadPredicates(term);
+			loadObjects(term);
+		}
+		System.arraycopy(objects, 0, allObjects, snapshotTerms, objectCount);
+		int allCount = snapshotTerms + objectCount;
+		for (int key = 1; key < snapshotKeys; key++) {
+			getEntryData(key);
+		}
+		objects = allObjects;
+		objectCount = allCount;
+		keys = allKeys;
+		keyBase = 0;
+		keyOverrides = null;
+		snapshot = null;
+		snapshotTerms = 0;
+		snapshotKeys = 0;
+		snapshotObjects = null;
+		loadedPredicates = null;
+		loadedObjects = null;
+	}
+
+	/**
+	 * Decodes the block of predicateIndex of a relation from the snapshot the
+	 * first time it is needed. The relation is marked as loaded once its block is
+	 * in predicateIndex, so that a concurrent insertion does not index a triple
+	 * into an empty block the decoded one would replace.
+	 */
+	private void loadPredicates(int relation) {
+		if (snapshot != null && relation < snapshotTerms && !loadedPredicates.contains(relation)) {
+			synchronized (loadedPredicates) {
+				if (!loadedPredicates.contains(relation)) {
+					HashMap<Integer, TermList> subjects = snapshot.readPredicates(relation);
+					if (subjects != null) {
+						predicateIndex.put(relation, new ConcurrentHashMap<>(subjects));
+					}
+					loadedPredicates.add(relation);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decodes the block of objectIndex of a subject from the snapshot the first
+	 * time it is needed, like loadPredicates.
+	 */
+	private void loadObjects(int subject) {
+		if (snapshot != null && subject < snapshotTerms && !loadedObjects.contains(subject)) {
+			synchronized (loadedObjects) {
+				if (!loadedObjects.contains(subject)) {
+					HashMap<Integer, TermList> ids = snapshot.readObjects(subject);
+					if (ids != null) {
+						objectIndex.put(subject, ids);
+					}
+					loadedObjects.add(subject);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Registers a listener notified after every mutation of the database.
+	 * 
+	 * @param listener
+	 *            an instance of DatabaseListener.
+	 */
+	public void addListener(DatabaseListener listener) {
+		synchronized (listeners) {
+			listeners.add(listener);
+		}
+	}
+
+	/**
+	 * Unregisters a listener.
+	 * 
+	 * @param listener
+	 *            an instance of DatabaseListener.
+	 */
+	public void removeListener(DatabaseListener listener) {
+		synchronized (listeners) {
+			listeners.remove(listener);
+		}
+	}
+
+	/**
+	 * Rebuilds the symbol tables from the objects field.
+	 */
+	private void rebuildSymbolTables() {
+		subjects = new ConcurrentHashMap<>();
+		relations = new ConcurrentHashMap<>();
+		for (int term = 0; term < objectCount; term++) {
+			Data data = objects[term];
+			data.setTerm(term);
+			if (data instanceof Relation) {
+				relations.putIfAbsent(data.getId(), (Relation) data);
+			} else {
+				subjects.putIfAbsent(data.getId(), (Subject) data);
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds the reverse key index from table. When several keys share an id,
+	 * the lowest one is kept.
+	 */
+	private void rebuildKeyIndex() {
+		keys = new int[Math.max(16, objectCount)];
+		for (int key = 1; key < primaryIndex; key++) {
+			EntryData entryData = table.get(key);
+			if (entryData != null) {
+				indexKey(entryData.getIdTerm(), key);
+			}
+		}
+	}
+
+	/**
+	 * Associates an id term with a key unless the term already has one.
+	 */
+	private void indexKey(int term, int key) {
+		synchronized (keyLock) {
+			int current = findKey(term);
+			if (current == 0) {
+				setKey(term, key);
+			} else if (current != key) {
+				sharedIds = true;
+			}
+		}
+	}
+
+	/**
+	 * Removes the association between an id term and a key, if it exists.
+	 */
+	private void unindexKey(int term, int key) {
+		synchronized (keyLock) {
+			if (findKey(term) == key) {
+				setKey(term, 0);
+			}
+		}
+	}
+
+	private void setKey(int term, int key) {
+		if (term < keyBase) {
+			keyOverrides.put(term, key);
+			return;
+		}
+		int index = term - keyBase;
+		int[] currentKeys = keys;
+		if (index >= currentKeys.length) {
+			currentKeys = Arrays.copyOf(currentKeys, Math.max(index + 1, currentKeys.length * 2));
+		}
+		currentKeys[index] = key;
+		// Publishes the element written above to the threads reading keys
+		keys = currentKeys;
+	}
+
+	/**
+	 * Rebuilds the predicate-first and object-first indexes from table.
+	 */
+	private void rebuildPermutationIndexes() {
+		predicateIndex = new ConcurrentHashMap<>();
+		objectIndex = new ConcurrentHashMap<>();
+		statistics = new ConcurrentHashMap<>();
+		adjacencies = new ConcurrentHashMap<>();
+		tripleCount = new LongAdder();
+		for (EntryData entryData : table.values()) {
+			indexTriples(entryData);
+		}
+	}
+
+	/**
+	 * Adds every triple of an entry to the permutation indexes.
+	 */
+	private void indexTriples(EntryData entryData) {
+		int id = entryData.getIdTerm();
+		for (int index = 0; index < entryData.relationCount(); index++) {
+			int relation = entryData.getRelationTerm(index);
+			TermList subjects = entryData.getSubjects(relation);
+			for (int position = 0; position < subjects.size(); position++) {
+				indexTriple(id, relation, subjects.get(position));
+			}
+		}
+	}
+
+	/**
+	 * Removes every triple of an entry from the permutation indexes.
+	 */
+	private void unindexTriples(EntryData entryData) {
+		int id = entryData.getIdTerm();
+		for (int index = 0; index < entryData.relationCount(); index++) {
+			int relation = entryData.getRelationTerm(index);
+			TermList subjects = entryData.getSubjects(relation);
+			for (int position = 0; position < subjects.size(); position++) {
+				unindexTriple(id, relation, subjects.get(position));
+			}
+		}
+	}
+
+	/**
+	 * Adds a triple to the permutation indexes. The triple is new in its entry, so
+	 * it is only new in predicateIndex if no other entry has the same id.
+	 */
+	private void indexTriple(int id, int relation, int subject) {
+		loadPredicates(relation);
+		loadObjects(subject);
+		ConcurrentHashMap<Integer, TermList> subjects = predicateIndex.get(relation);
+		if (subjects == null) {
+			subjects = predicateIndex.computeIfAbsent(relation, term -> new ConcurrentHashMap<>());
+		}
+		synchronized (indexStripe(subject)) {
+			// Only this lock writes the subject into both indexes, so get and put are enough
+			TermList ids = subjects.get(subject);
+			if (ids == null) {
+				ids = new TermList();
+				subjects.put(subject, ids);
+			}
+			if (!sharedIds) {
+				ids.add(id);
+				tripleCount.increment();
+			} else if (ids.addIfAbsent(id)) {
+				tripleCount.increment();
+			}
+			HashMap<Integer, TermList> relationsById = objectIndex.get(subject);
+			if (relationsById == null) {
+				relationsById = new HashMap<>();
+				objectIndex.put(subject, relationsById);
+			}
+			relationsById.computeIfAbsent(id, term -> new TermList()).addIfAbsent(relation);
+		}
+		statistics.remove(relation);
+		adjacencies.remove(relation);
+	}
+
+	private void unindexTriple(int id, int relation, int subject) {
+		loadPredicates(relation);
+		loadObjects(subject);
+		synchronized (indexStripe(subject)) {
+			if (removeFromIndex(predicateIndex, relation, subject, id)) {
+				tripleCount.decrement();
+			}
+			removeFromIndex(objectIndex, subject, id, relation);
+		}
+		statistics.remove(relation);
+		adjacencies.remove(relation);
+	}
+
+	/**
+	 * Removes a term from a two-level index, dropping the levels left empty.
+	 * 
+	 * @return a boolean indicating whether the term was present.
+	 */
+	private static boolean removeFromIndex(Map<Integer, ? extends Map<Integer, TermList>> index, int first,
+			int second, int term) {
+		Map<Integer, TermList> level = index.get(first);
+		if (level == null) {
+			return false;
+		}
+		TermList terms = level.get(second);
+		if (terms == null || !terms.remove(term)) {
+			return false;
+		}
+		if (terms.isEmpty()) {
+			level.remove(second);
+			if (level.isEmpty()) {
+				index.remove(first);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of triples in the database.
+	 * 
+	 * @return the number of triples.
+	 */
+	public long tripleCount() {
+		return tripleCount.sum();
+	}
+
+	/**
+	 * Restores the transient indexes once the serialized fields are read.
+	 * 
+	 * @param in
+	 *            the stream the database is read from.
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		ArrayList<Data> serializedObjects = (ArrayList<Data>) fields.get("objects", null);
+		objects = serializedObjects.toArray(new Data[Math.max(16, serializedObjects.size())]);
+		objectCount = serializedObjects.size();
+		table = new ConcurrentHashMap<>((HashMap<Integer, EntryData>) fields.get("table", null));
+		primaryIndex = fields.get("primaryIndex", 1);
+		entryCount = table.size();
+		createLocks();
+		rebuildSymbolTables();
+		rebuildKeyIndex();
+		rebuildPermutationIndexes();
+		listeners = new ArrayList<>();
+	}
+
+	/**
+	 * Writes the serialized fields, table as a HashMap.
+	 * 
+	 * @param out
+	 *            the stream the database is written to.
+	 * @throws IOException
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("objects", new ArrayList<>(Arrays.asList(objects).subList(0, objectCount)));
+		fields.put("table", new HashMap<>(table));
+		fields.put("primaryIndex", primaryIndex);
+		out.writeFields();
 	}
 
 	/**
@@ -50,16 +580,133 @@ public class Database implements Serializable {
 	 *            instance of EntryData
 	 */
 	public void insert(EntryData entryData) {
-		table.put(autoIncrementValue(), entryData);
+		int key = autoIncrementValue();
+		table.put(key, entryData);
+		synchronized (keyLock) {
+			entryCount++;
+			indexKey(entryData.getIdTerm(), key);
+		}
+		indexTriples(entryData);
+		synchronized (listeners) {
+			for (DatabaseListener listener : listeners) {
+				listener.entryInserted(key, entryData);
+			}
+		}
 	}
 
 	/**
-	 * Increments the key (primaryIndex) used in table.
+	 * Returns the entry whose id is term, inserting an empty one if there is none.
+	 * Two threads asking for the same id get the same entry.
+	 * 
+	 * @param term
+	 *            a subject term.
+	 * @return an instance of EntryData.
+	 */
+	public EntryData findOrInsertEntry(int term) {
+		synchronized (entryStripe(term)) {
+			int key = findKey(term);
+			if (key != 0) {
+				return getEntryData(key);
+			}
+			EntryData entryData = new EntryData(term);
+			insert(entryData);
+			return entryData;
+		}
+	}
+
+	/**
+	 * Puts an entry at a given key while a database is loaded from a file, without
+	 * notifying listeners.
+	 * 
+	 * @param key
+	 *            the key of the entry in the file.
+	 * @param entryData
+	 *            instance of EntryData
+	 */
+	void restoreEntry(int key, EntryData entryData) {
+		if (table.put(key, entryData) == null) {
+			entryCount++;
+		}
+		indexKey(entryData.getIdTerm(), key);
+		indexTriples(entryData);
+	}
+
+	void setPrimaryIndex(int primaryIndex) {
+		this.primaryIndex = primaryIndex;
+	}
+
+	/**
+	 * Returns a key greater than every key of table, for the classes of this
+	 * package that stream it.
+	 * 
+	 * @return an upper bound of the keys.
+	 */
+	int keyLimit() {
+		int limit = Math.max(primaryIndex, snapshotKeys);
+		for (int key : table.keySet()) {
+			limit = Math.max(limit, key + 1);
+		}
+		return limit;
+	}
+
+	boolean hasSharedIds() {
+		return sharedIds;
+	}
+
+	/**
+	 * Returns the object identified by a term id like getData, without keeping it
+	 * on the heap if it has to be decoded from the snapshot.
+	 */
+	Data peekData(int term) {
+		if (term >= snapshotTerms) {
+			return objects[term - snapshotTerms];
+		}
+		Data data = snapshotObjects.get(term);
+		return data != null ? data : snapshot.readData(term);
+	}
+
+	/**
+	 * Returns the entry associated with a key like getEntryData, without keeping
+	 * it on the heap if it has to be decoded from the snapshot.
+	 */
+	EntryData peekEntry(int key) {
+		EntryData entryData = table.get(key);
+		if (entryData == null && key < snapshotKeys) {
+			entryData = snapshot.readEntry(key);
+		}
+		return entryData;
+	}
+
+	/**
+	 * Returns the block of predicateIndex of a relation, without keeping it on the
+	 * heap if it has to be decoded from the snapshot.
+	 */
+	Map<Integer, TermList> peekPredicates(int relation) {
+		if (snapshot != null && relation < snapshotTerms && !loadedPredicates.contains(relation)) {
+			return snapshot.readPredicates(relation);
+		}
+		return predicateIndex.get(relation);
+	}
+
+	/**
+	 * Returns the block of objectIndex of a subject, without keeping it on the heap
+	 * if it has to be decoded from the snapshot.
+	 */
+	Map<Integer, TermList> peekObjects(int subject) {
+		if (snapshot != null && subject < snapshotTerms && !loadedObjects.contains(subject)) {
+			return snapshot.readObjects(subject);
+		}
+		return objectIndex.get(subject);
+	}
+
+	/**
+	 * Increments the key (primaryIndex) used in table. Concurrent insertions
+	 * receive distinct keys.
 	 * 
 	 * @return an int corresponding to an incremented primaryKey.
 	 */
 	private int autoIncrementValue() {
-		return primaryIndex++;
+		return PRIMARY_INDEX.getAndIncrement(this);
 	}
 
 	/**
@@ -67,9 +714,19 @@ public class Database implements Serializable {
 	 * The primaryIndex field is decremented.
 	 */
 	public void removeLastEntry() {
-		if (table.containsKey(primaryIndex - 1)) {
+		EntryData entryData = getEntryData(primaryIndex - 1);
+		if (entryData != null) {
 			table.remove(primaryIndex - 1);
+			snapshotKeys = Math.min(snapshotKeys, primaryIndex - 1);
+			entryCount--;
+			unindexKey(entryData.getIdTerm(), primaryIndex - 1);
+			unindexTriples(entryData);
 			primaryIndex--;
+			synchronized (listeners) {
+				for (DatabaseListener listener : listeners) {
+					listener.lastEntryRemoved(primaryIndex, entryData);
+				}
+			}
 		}
 	}
 
@@ -78,8 +735,33 @@ public class Database implements Serializable {
 	 */
 	public void reset() {
 		table.clear();
-		objects.clear();
+		Arrays.fill(objects, null);
+		objectCount = 0;
+		subjects.clear();
+		relations.clear();
+		Arrays.fill(keys, 0);
+		keyBase = 0;
+		keyOverrides = null;
+		snapshot = null;
+		snapshotTerms = 0;
+		snapshotKeys = 0;
+		snapshotObjects = null;
+		loadedPredicates = null;
+		loadedObjects = null;
+		entryCount = 0;
+		sharedIds = false;
+		predicateIndex.clear();
+		objectIndex.clear();
+		statistics.clear();
+		adjacencies.clear();
+		tripleCount.reset();
 		primaryIndex = 1;
+		version++;
+		synchronized (listeners) {
+			for (DatabaseListener listener : listeners) {
+				listener.databaseReset();
+			}
+		}
 	}
 
 	/**
@@ -92,12 +774,14 @@ public class Database implements Serializable {
 	 * @return an instance of Subject.
 	 */
 	public Subject findSubject(String id) {
-		for (Data data : objects) {
-			if (data.getId().equals(id)) {
-				return (Subject) data;
+		Subject subject = subjects.get(id);
+		if (subject == null && snapshot != null) {
+			int term = snapshot.findTerm(id, false);
+			if (term >= 0 && term < snapshotTerms) {
+				subject = getSubject(term);
 			}
 		}
-		return null;
+		return subject;
 	}
 
 	/**
@@ -109,32 +793,154 @@ public class Database implements Serializable {
 	 * @return an instance of Relation.
 	 */
 	public Relation findRelation(String id) {
-		for (Data data : objects) {
-			if (data.getId().equals(id)) {
-				return (Relation) data;
-			}
-		}
-		return null;
+		return relations.get(id);
 	}
 
 	/**
-	 * Adds an instance of Subject to the objects field.
+	 * Adds an instance of Subject to the objects field and assigns it the next
+	 * term id. A subject whose id is already known receives the existing term.
 	 * 
 	 * @param newSubject
 	 *            an instance of Subject.
+	 * @return the term id of the subject.
 	 */
-	public void addSubject(Subject newSubject) {
-		objects.add(newSubject);
+	public int addSubject(Subject newSubject) {
+		Subject subject = findSubject(newSubject.getId());
+		if (subject == null) {
+			synchronized (dictionaryLock) {
+				subject = findSubject(newSubject.getId());
+				if (subject == null) {
+					encode(newSubject);
+					subjects.put(newSubject.getId(), newSubject);
+					return newSubject.getTerm();
+				}
+			}
+		}
+		newSubject.setTerm(subject.getTerm());
+		return newSubject.getTerm();
 	}
 
 	/**
-	 * Adds an instance of Relation to the objects field.
+	 * Adds an instance of Relation to the objects field and assigns it the next
+	 * term id. A relation whose id is already known receives the existing term.
 	 * 
 	 * @param newRelation
 	 *            an instance of Relation.
+	 * @return the term id of the relation.
+	 */
+	public int addRelation(Relation newRelation) {
+		Relation relation = relations.get(newRelation.getId());
+		if (relation == null) {
+			synchronized (dictionaryLock) {
+				relation = relations.get(newRelation.getId());
+				if (relation == null) {
+					encode(newRelation);
+					relations.put(newRelation.getId(), newRelation);
+					return newRelation.getTerm();
+				}
+			}
+		}
+		newRelation.setTerm(relation.getTerm());
+		return newRelation.getTerm();
+	}
+
+	/**
+	 * Removes the last term of the dictionary. The term must no longer be used by
+	 * any entry or triple, which holds when mutations are undone in reverse order.
 	 */
-	public void addRelation(Relation newRelation) {
-		objects.add(newRelation);
+	void removeLastTerm() {
+		Data data;
+		if (objectCount > 0) {
+			data = objects[objectCount - 1];
+			objects[--objectCount] = null;
+		} else {
+			data = getData(snapshotTerms - 1);
+			snapshotObjects.remove(--snapshotTerms);
+		}
+		if (data instanceof Relation) {
+			relations.remove(data.getId(), data);
+		} else {
+			subjects.remove(data.getId(), data);
+		}
+		version++;
+		synchronized (listeners) {
+			for (DatabaseListener listener : listeners) {
+				listener.lastTermRemoved(data);
+			}
+		}
+	}
+
+	/**
+	 * Appends an object to the dictionary and assigns it a dense term id.
+	 */
+	private void encode(Data data) {
+		data.setTerm(termCount());
+		Data[] current = objects;
+		if (objectCount == current.length) {
+			current = Arrays.copyOf(current, current.length * 2);
+			objects = current;
+		}
+		current[objectCount] = data;
+		objectCount++;
+		version++;
+		synchronized (listeners) {
+			for (DatabaseListener listener : listeners) {
+				listener.termAdded(data);
+			}
+		}
+	}
+
+	/**
+	 * Returns the object identified by a term id.
+	 * 
+	 * @param term
+	 *            a term id.
+	 * @return an instance of Subject or Relation.
+	 */
+	public Data getData(int term) {
+		if (term >= snapshotTerms) {
+			return objects[term - snapshotTerms];
+		}
+		Data data = snapshotObjects.get(term);
+		if (data == null) {
+			// Relations are decoded when the snapshot is opened, so data is a Subject
+			data = snapshot.readData(term);
+			snapshotObjects.put(term, data);
+			subjects.put(data.getId(), (Subject) data);
+		}
+		return data;
+	}
+
+	public Subject getSubject(int term) {
+		return (Subject) getData(term);
+	}
+
+	public Relation getRelation(int term) {
+		return (Relation) getData(term);
+	}
+
+	/**
+	 * Returns the id string of a term.
+	 * 
+	 * @param term
+	 *            a term id.
+	 * @return the textual representation of the term.
+	 */
+	public String decode(int term) {
+		if (term >= snapshotTerms) {
+			return objects[term - snapshotTerms].getId();
+		}
+		Data data = snapshotObjects.get(term);
+		return data != null ? data.getId() : snapshot.readId(term);
+	}
+
+	/**
+	 * Returns the number of terms in the dictionary.
+	 * 
+	 * @return the number of terms.
+	 */
+	public int termCount() {
+		return snapshotTerms + objectCount;
 	}
 
 	/**
@@ -146,7 +952,18 @@ public class Database implements Serializable {
 	 * @return an instance of EntryData.
 	 */
 	public EntryData getEntryData(int databaseEntryNumber) {
-		return table.get(databaseEntryNumber);
+		EntryData entryData = table.get(databaseEntryNumber);
+		if (entryData == null && databaseEntryNumber < snapshotKeys) {
+			entryData = snapshot.readEntry(databaseEntryNumber);
+			if (entryData != null) {
+				// Another thread may have decoded the same entry
+				EntryData decoded = table.putIfAbsent(databaseEntryNumber, entryData);
+				if (decoded != null) {
+					entryData = decoded;
+				}
+			}
+		}
+		return entryData;
 	}
 
 	/**
@@ -159,43 +976,74 @@ public class Database implements Serializable {
 	 * @return a key as an int.
 	 */
 	public int findKey(String id) {
-		for (int key : table.keySet()) {
-			if (table.get(key).getIdAsString().equals(id)) {
-				return key;
-			}
-		}
-		return 0;
+		Subject subject = findSubject(id);
+		return subject != null ? findKey(subject.getTerm()) : 0;
 	}
 	
 	public int findKey(Subject subject) {
 		return findKey(subject.getId());
 	}
 
+	/**
+	 * Returns the key of the entry whose id is term, or 0 if there is none.
+	 * 
+	 * @param term
+	 *            a subject term.
+	 * @return a key as an int.
+	 */
+	public int findKey(int term) {
+		if (term < 0) {
+			return 0;
+		}
+		if (term >= keyBase) {
+			int[] currentKeys = keys;
+			return term - keyBase < currentKeys.length ? currentKeys[term - keyBase] : 0;
+		}
+		Integer key = keyOverrides.get(term);
+		if (key != null) {
+			return key;
+		}
+		return term < snapshotTerms ? snapshot.key(term) : 0;
+	}
+
 	@Override
 	public String toString() {
 
 		StringBuilder res = new StringBuilder();
-		if (objects.size() > 0) {
+		if (termCount() > 0) {
 			res.append("\nWhat's in the database?\n");
 		} else {
 			return "Nothing is in the database.";
 		}
 		
-		for (Integer key : table.keySet()) {
+		// A mapped database is printed in key order without keeping its entries
+		Iterable<Integer> printedKeys = table.keySet();
+		if (snapshot != null) {
+			ArrayList<Integer> allKeys = new ArrayList<>();
+			for (int key = 1; key < keyLimit(); key++) {
+				allKeys.add(key);
+			}
+			printedKeys = allKeys;
+		}
+		for (Integer key : printedKeys) {
+			EntryData entryData = peekEntry(key);
+			if (entryData == null) {
+				continue;
+			}
 			res.append("\nindex => ").append(key).append(" | ");
-			EntryData entryData = table.get(key);
-			res.append("id => ").append(entryData.getIdAsString()).append(" | ");
-			for (Relation relation : entryData.getRelations()) {
-				res.append(relation.getId()).append(" => ");
-				ArrayList<Subject> subjects = entryData.getSubjects(relation);
-				if (subjects.size() > 1) {
+			res.append("id => ").append(decode(entryData.getIdTerm())).append(" | ");
+			for (int index = 0; index < entryData.relationCount(); index++) {
+				int relation = entryData.getRelationTerm(index);
+				res.append(decode(relation)).append(" => ");
+				TermList terms = entryData.getSubjects(relation);
+				if (terms.size() > 1) {
 					res.append("{ ");
-					for (Subject subject : subjects) {
-						res.append(subject.getId()).append(' ');
+					for (int position = 0; position < terms.size(); position++) {
+						res.append(decode(terms.get(position))).append(' ');
 					}
 					res.append("} | ");
-				} else if (subjects.size() == 1) {
-					res.append(((Subject) subjects.toArray()[0]).getId());
+				} else if (terms.size() == 1) {
+					res.append(decode(terms.get(0)));
 					res.append(" | ");
 				}
 			}
@@ -209,6 +1057,7 @@ public class Database implements Serializable {
 	 * @return a set of keys.
 	 */
 	public Set<Integer> getAllKeys() {
+		loadSnapshot();
 		return table.keySet();
 	}
 
@@ -218,23 +1067,17 @@ public class Database implements Serializable {
 	 * @return a collection of every EntryData instance.
 	 */
 	public Collection<EntryData> getAllEntries() {
+		loadSnapshot();
 		return table.values();
 	}
 
 	/**
-	 * Traverses the objects field and counts every instance of Relation, returning
-	 * the result.
+	 * Returns the number of distinct instances of Relation in objects.
 	 * 
 	 * @return an int representing the number of instances of Relation in objects.
 	 */
 	public int relationCount() {
-		int counter = 0;
-		for (Data data : objects) {
-			if (data instanceof Relation) {
-				counter++;
-			}
-		}
-		return counter;
+		return relations.size();
 	}
 
 	/**
@@ -245,7 +1088,7 @@ public class Database implements Serializable {
 	 * @return a boolean indicating the presence of a key.
 	 */
 	public boolean testKey(int key) {
-		return table.keySet().contains(key);
+		return table.containsKey(key) || key < snapshotKeys && snapshot.hasEntry(key);
 	}
 
 	/**
@@ -257,16 +1100,13 @@ public class Database implements Serializable {
 	}
 	
 	/**
-	 * Creates a file at the path given in argument containing the database serialized
+	 * Creates a file at the path given in argument containing the database in the
+	 * binary format of SnapshotFile
 	 * @param path the absolute path where the database will be saved
 	 * @throws IOException
 	 */
 	public void writeObject(String path) throws IOException {
-		FileOutputStream fileOut = new FileOutputStream(path);
-		ObjectOutputStream out = new ObjectOutputStream(fileOut);
-		out.writeObject(this);
-		out.close();
-		fileOut.close();
+		SnapshotFile.write(this, path);
 		//System.out.printf("data serialized in " + path + "\n");
 	}
 
@@ -275,26 +1115,31 @@ public class Database implements Serializable {
 	 * @param db the previous database where the new one will be saved
 	 * @param path the absolute path where the file containing the future database is located
 	 * @return the database contained in the file
-	 * @throws IOException
+	 * @throws IOException if the file cannot be read, rather than returning db,
+	 *             which would be saved over the file
 	 * @throws ClassNotFoundException
 	 */
 	public Database readObject(Database db, String path) throws IOException, ClassNotFoundException {
-		FileInputStream fileIn;
-		try {
-			fileIn = new FileInputStream(path);
-			ObjectInputStream in = new ObjectInputStream(fileIn);
-			db = (Database) in.readObject();
-			in.close();
-			fileIn.close();
-		} catch (IOException | ClassNotFoundException e) {
-			e.printStackTrace();
-		}
 		//System.out.println("data read from " + path + "\n");
-		return db;
+		return SnapshotFile.read(path);
+	}
+
+	/**
+	 * Opens the database stored in the file at path without reading it: the file
+	 * is mapped and decoded as it is accessed
+	 * @param db the previous database where the new one will be saved
+	 * @param path the absolute path where the file containing the future database is located
+	 * @return the database contained in the file
+	 * @throws IOException if the file cannot be read, rather than returning db,
+	 *             which would be saved over the file
+	 * @throws ClassNotFoundException
+	 */
+	public Database mapObject(Database db, String path) throws IOException, ClassNotFoundException {
+		return SnapshotFile.map(path);
 	}
 
 	public Subject getID(Integer key) {
-		return table.get(key).getID().getSubject();
+		return getSubject(getEntryData(key).getIdTerm());
 	}
 	
 	/**
@@ -302,13 +1147,10 @@ public class Database implements Serializable {
 	 * @return all the relations of objects
 	 */
 	public ArrayList<Relation> getAllRelations() {
-		ArrayList<Relation> relations = new ArrayList<>();
-		for (Data data : objects) {
-			if (data instanceof Relation) {
-				relations.add((Relation) data);
-			}
-		}
-		return relations;
+		ArrayList<Relation> allRelations = new ArrayList<>(relations.values());
+		// In the order they were added
+		allRelations.sort(Comparator.comparingInt(Relation::getTerm));
+		return allRelations;
 	}
 
 	/**
@@ -317,6 +1159,283 @@ public class Database implements Serializable {
 	 * @param entryData the new entrydata
 	 */
 	public void replaceEntry(int key, EntryData entryData) {
+		EntryData previous = getEntryData(key);
 		table.put(key, entryData);
+		if (previous == null) {
+			synchronized (keyLock) {
+				entryCount++;
+			}
+		}
+		if (previous != null && previous != entryData) {
+			unindexKey(previous.getIdTerm(), key);
+			unindexTriples(previous);
+			indexTriples(entryData);
+		}
+		indexKey(entryData.getIdTerm(), key);
+		if (previous != entryData) {
+			synchronized (listeners) {
+				for (DatabaseListener listener : listeners) {
+					listener.entryReplaced(key, previous, entryData);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the triple (id of entryData, relation, subject) to an entry and to the
+	 * permutation indexes.
+	 * 
+	 * @param entryData
+	 *            the entry holding the triple.
+	 * @param relation
+	 *            a relation term.
+	 * @param subject
+	 *            a subject term.
+	 * @return a boolean indicating whether the triple was new.
+	 */
+	public boolean addTriple(EntryData entryData, int relation, int subject) {
+		int id = entryData.getIdTerm();
+		synchronized (entryStripe(id)) {
+			if (!entryData.put(relation, subject)) {
+				return false;
+			}
+			indexTriple(id, relation, subject);
+			// Notified under the lock of the entry, so in the order of its triples
+			synchronized (listeners) {
+				for (DatabaseListener listener : listeners) {
+					listener.tripleAdded(id, relation, subject);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Removes the triple (id of entryData, relation, subject) from an entry and
+	 * from the permutation indexes.
+	 * 
+	 * @param entryData
+	 *            the entry holding the triple.
+	 * @param relation
+	 *            a relation term.
+	 * @param subject
+	 *            a subject term.
+	 * @return a boolean indicating whether the triple existed.
+	 */
+	public boolean removeTriple(EntryData entryData, int relation, int subject) {
+		int id = entryData.getIdTerm();
+		synchronized (entryStripe(id)) {
+			if (!entryData.removeSubjectFromRelation(relation, subject)) {
+				return false;
+			}
+			unindexTriple(id, relation, subject);
+			synchronized (listeners) {
+				for (DatabaseListener listener : listeners) {
+					listener.tripleRemoved(id, relation, subject);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether the triple (id, relation, subject) exists, under the lock of
+	 * the entry, so that it can be called during concurrent insertions.
+	 * 
+	 * @param id
+	 *            an id term.
+	 * @param relation
+	 *            a relation term.
+	 * @param subject
+	 *            a subject term.
+	 * @return a boolean indicating the presence of the triple.
+	 */
+	public boolean containsTriple(int id, int relation, int subject) {
+		synchronized (entryStripe(id)) {
+			EntryData entryData = getEntryData(findKey(id));
+			return entryData != null && entryData.relationContainsSubject(relation, subject);
+		}
+	}
+
+	/**
+	 * Changes the state of a property of a relation.
+	 * 
+	 * @param relation
+	 *            an instance of Relation.
+	 * @param property
+	 *            an element of the Properties.
+	 * @param state
+	 *            the new state of the property.
+	 */
+	public void setRelationProperty(Relation relation, Relation.Properties property, boolean state) {
+		if (relation.isPropertyActive(property) == state) {
+			return;
+		}
+		relation.setProperty(property, state);
+		synchronized (listeners) {
+			for (DatabaseListener listener : listeners) {
+				listener.propertyChanged(relation, property, state);
+			}
+		}
+	}
+
+	/**
+	 * Returns the ids of every triple (id, relation, subject), or null if there
+	 * is none. This is a direct lookup in the predicate-first index.
+	 * 
+	 * @param relation
+	 *            a relation term.
+	 * @param subject
+	 *            a subject term, the object of the triples.
+	 * @return a list of id terms or null.
+	 */
+	public TermList findIds(int relation, int subject) {
+		loadPredicates(relation);
+		Map<Integer, TermList> subjects = predicateIndex.get(relation);
+		return subjects != null ? subjects.get(subject) : null;
+	}
+
+	/**
+	 * Returns the triples of a relation grouped by subject (object of the
+	 * triple), each subject being associated with its ids.
+	 * 
+	 * @param relation
+	 *            a relation term.
+	 * @return a map of subject term -> id terms, empty if the relation is unused.
+	 */
+	public Map<Integer, TermList> getPredicateIndex(int relation) {
+		loadPredicates(relation);
+		Map<Integer, TermList> subjects = predicateIndex.get(relation);
+		return subjects != null ? subjects : Collections.<Integer, TermList>emptyMap();
+	}
+
+	/**
+	 * Returns the triples pointing to a subject grouped by id, each id being
+	 * associated with the relations linking it to the subject.
+	 * 
+	 * @param subject
+	 *            a subject term, the object of the triples.
+	 * @return a map of id term -> relation terms, empty if nothing points to
+	 *         subject.
+	 */
+	public Map<Integer, TermList> getObjectIndex(int subject) {
+		loadObjects(subject);
+		HashMap<Integer, TermList> ids = objectIndex.get(subject);
+		return ids != null ? ids : Collections.<Integer, TermList>emptyMap();
+	}
+
+	/**
+	 * Returns the version of the dictionary, which changes whenever a term is
+	 * added or removed and when the database is reset.
+	 * 
+	 * @return a version number.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the statistics of a relation. They are computed from the
+	 * predicate-first index the first time they are asked for and kept until a
+	 * triple of the relation is added or removed.
+	 * 
+	 * @param relation
+	 *            a relation term.
+	 * @return an instance of RelationStatistics.
+	 */
+	public RelationStatistics getStatistics(int relation) {
+		RelationStatistics relationStatistics = statistics.get(relation);
+		if (relationStatistics == null) {
+			Map<Integer, TermList> subjects = getPredicateIndex(relation);
+			HashSet<Integer> ids = new HashSet<>();
+			long triples = 0;
+			for (TermList terms : subjects.values()) {
+				for (int index = 0; index < terms.size(); index++) {
+					ids.add(terms.get(index));
+				}
+				triples += terms.size();
+			}
+			relationStatistics = new RelationStatistics(triples, ids.size(), subjects.size());
+			statistics.put(relation, relationStatistics);
+		}
+		return relationStatistics;
+	}
+
+	/**
+	 * Returns a sorted adjacency index of a relation. Both directions are built
+	 * from the predicate-first index the first time one of them is asked for and
+	 * kept until a triple of the relation is added or removed.
+	 * 
+	 * @param relation
+	 *            a relation term.
+	 * @param idFirst
+	 *            true for ids -> subjects, false for subjects -> ids.
+	 * @return an instance of SortedAdjacency.
+	 */
+	public SortedAdjacency getAdjacency(int relation, boolean idFirst) {
+		SortedAdjacency[] relationAdjacencies = adjacencies.get(relation);
+		if (relationAdjacencies == null) {
+			Map<Integer, TermList> subjects = getPredicateIndex(relation);
+			int size = 0;
+			for (TermList ids : subjects.values()) {
+				size += ids.size();
+			}
+			long[] idPairs = new long[size];
+			long[] subjectPairs = new long[size];
+			int position = 0;
+			for (Map.Entry<Integer, TermList> subject : subjects.entrySet()) {
+				TermList ids = subject.getValue();
+				for (int index = 0; index < ids.size(); index++, position++) {
+					idPairs[position] = (long) ids.get(index) << 32 | subject.getKey();
+					subjectPairs[position] = (long) subject.getKey() << 32 | ids.get(index);
+				}
+			}
+			relationAdjacencies = new SortedAdjacency[] { new SortedAdjacency(idPairs),
+					new SortedAdjacency(subjectPairs) };
+			adjacencies.put(relation, relationAdjacencies);
+		}
+		return relationAdjacencies[idFirst ? 0 : 1];
+	}
+
+	/**
+	 * Counts the triples matching a pattern whose terms are either known or free.
+	 * The count is read from the index giving direct access to the known terms.
+	 * 
+	 * @param id
+	 *            an id term, or -1 if it is free.
+	 * @param relation
+	 *            a relation term, or -1 if it is free.
+	 * @param subject
+	 *            a subject term, or -1 if it is free.
+	 * @return the number of matching triples.
+	 */
+	public long countTriples(int id, int relation, int subject) {
+		if (id >= 0) {
+			EntryData entryData = getEntryData(findKey(id));
+			if (entryData == null) {
+				return 0;
+			}
+			long count = 0;
+			for (int index = 0; index < entryData.relationCount(); index++) {
+				int term = entryData.getRelationTerm(index);
+				if (relation < 0 || term == relation) {
+					TermList terms = entryData.getSubjects(term);
+					count += subject < 0 ? terms.size() : terms.contains(subject) ? 1 : 0;
+				}
+			}
+			return count;
+		}
+		if (subject >= 0) {
+			if (relation >= 0) {
+				TermList ids = findIds(relation, subject);
+				return ids != null ? ids.size() : 0;
+			}
+			long count = 0;
+			for (TermList terms : getObjectIndex(subject).values()) {
+				count += terms.size();
+			}
+			return count;
+		}
+		return relation >= 0 ? getStatistics(relation).getTripleCount() : tripleCount.sum();
 	}
-}
\ No newline at end of file
+}
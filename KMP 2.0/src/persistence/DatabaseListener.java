@@ -0,0 +1,97 @@
+package persistence;
+
+import model.Data;
+import model.Relation;
+
+/**
+ * This interface is implemented by classes that need to follow every mutation
+ * of a Database, such as the write-ahead log. Listeners are called after the
+ * mutation is applied. Every method does nothing by default.
+ */
+public interface DatabaseListener {
+
+	/**
+	 * Called when a Subject or Relation receives a new term id.
+	 * 
+	 * @param data
+	 *            the new instance of Subject or Relation.
+	 */
+	default void termAdded(Data data) {
+	}
+
+	/**
+	 * Called when the last term of the dictionary is removed.
+	 * 
+	 * @param data
+	 *            the removed instance of Subject or Relation.
+	 */
+	default void lastTermRemoved(Data data) {
+	}
+
+	/**
+	 * Called when an entry is inserted into table.
+	 * 
+	 * @param key
+	 *            the key of the entry.
+	 * @param entryData
+	 *            the new entry.
+	 */
+	default void entryInserted(int key, EntryData entryData) {
+	}
+
+	/**
+	 * Called when the entry associated with a key is replaced by another
+	 * instance.
+	 * 
+	 * @param key
+	 *            the key of the entry.
+	 * @param previous
+	 *            the entry that was replaced, or null.
+	 * @param entryData
+	 *            the new entry.
+	 */
+	default void entryReplaced(int key, EntryData previous, EntryData entryData) {
+	}
+
+	/**
+	 * Called when the last entry of table is removed.
+	 * 
+	 * @param key
+	 *            the key of the removed entry.
+	 * @param entryData
+	 *            the removed entry.
+	 */
+	default void lastEntryRemoved(int key, EntryData entryData) {
+	}
+
+	/**
+	 * Called when the triple (id, relation, subject) is added.
+	 */
+	default void tripleAdded(int id, int relation, int subject) {
+	}
+
+	/**
+	 * Called when the triple (id, relation, subject) is removed.
+	 */
+	default void tripleRemoved(int id, int relation, int subject) {
+	}
+
+	/**
+	 * Called when a property of a relation changes state.
+	 * 
+	 * @param relation
+	 *            the relation.
+	 * @param property
+	 *            the property that changed.
+	 * @param state
+	 *            the new state of the property.
+	 */
+	default void propertyChanged(Relation relation, Relation.Properties property, boolean state) {
+	}
+
+	/**
+	 * Called when the database is reset.
+	 */
+	default void databaseReset() {
+	}
+}
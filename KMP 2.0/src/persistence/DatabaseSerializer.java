@@ -1,237 +1,374 @@
-package persistence;
-
-import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-/**
- * This class is used to create the architecture files to save the database.
- */
-public class DatabaseSerializer {
-
-	private Database db;
-	private final String databasePath = System.getProperty("user.home") + System.getProperty("file.separator") + "KMP_dataSerialized" + System.getProperty("file.separator");
-	private final String databaseFileName = "kmp_database.kmp";
-	private final String temporaryDataBasePath = databasePath + "tmp" + System.getProperty("file.separator");
-	private final String temporaryDirectory = "tmp" + System.getProperty("file.separator");
-	private int numberTemporaryDatabase = 0;
-	
-	public DatabaseSerializer() {
-		
-	}
-	
-	public DatabaseSerializer(Database db) {
-		this.db = db;
-	}
-	
-	public Database getDb() {
-		return db;
-	}
-
-	public String getDatabasePath() {
-		return databasePath;
-	}
-
-	public String getDatabaseFileName() {
-		return databaseFileName;
-	}
-
-	public String getTemporaryDataBasePath() {
-		return temporaryDataBasePath;
-	}
-
-	public String getTemporaryDirectory() {
-		return temporaryDirectory;
-	}
-
-	public int getNumberTemporaryDatabase() {
-		return numberTemporaryDatabase;
-	}
-
-	/**
-	 * Checks if an anterior version of the current version exists
-	 * @return the relative path of the file
-	 */
-	public String getPreviousTemporaryFileName() {
-		String path = temporaryDirectory + "tmp" + (numberTemporaryDatabase-2) + ".kmp"; 
-		if ((numberTemporaryDatabase < 2) && (!Files.exists(Paths.get(databasePath + path)))) {
-			System.out.println("File doesn't exist !");
-			return null;
-		}
-		else return path;
-	}
-	
-	/**
-	 * Creates the path of the next temporary file  
-	 * @return the relative path of the file
-	 */
-	public String getTemporaryFileName() {
-		return temporaryDirectory + "tmp" + numberTemporaryDatabase + ".kmp";
-	}
-	
-	/**
-	 * Checks if a future version of the current version exists
-	 * @return the relative path of the file
-	 */
-	public String getNextTemporaryFileName() {
-		String path = temporaryDirectory + "tmp" + numberTemporaryDatabase + ".kmp"; 
-		if (!Files.exists(Paths.get(databasePath + path))) {
-			System.out.println("File doesn't exist !");
-			return null;
-		}
-		else return path;
-	}
-	
-	public void incrementNumberTemporaryDatabase() {
-		numberTemporaryDatabase++;
-	}
-	
-	/**
-	 * Checks that the numberTemporaryDatabase is positive and decrement it
-	 */
-	public void decrementNumberTemporaryDatabase() {
-		if (numberTemporaryDatabase < 1) System.out.println("No anterior temporary file !");
-		else numberTemporaryDatabase--;
-	}
-	
-	/**
-	 * Builds the architecture of the file system and loads the previous database built by the user if it exists 
-	 * @return the database created or found
-	 * @throws ClassNotFoundException
-	 * @throws IOException
-	 */
-	public Database initCommand() throws ClassNotFoundException, IOException {
-		if (!Files.exists(Paths.get(databasePath + databaseFileName))) {
-        	Files.createDirectories(Paths.get(databasePath));
-        	db.writeObject(databasePath + databaseFileName);
-        } else {
-        	//System.out.println("Trying to get previous data");
-        	db = db.readObject(db, databasePath + databaseFileName);
-        	System.out.println(db.toString());
-        }
-		Files.createDirectories(Paths.get(temporaryDataBasePath));
-    	db.writeObject(databasePath + getTemporaryFileName());
-    	incrementNumberTemporaryDatabase();
-		return db;
-	}
-
-	/**
-	 * Creates a new file containing the database serialized 
-	 * @param db the current database used by the user
-	 * @throws IOException
-	 */
-	public void insertCommand(Database db) throws IOException {
-		this.db = db;
-		db.writeObject(databasePath + getTemporaryFileName());
-		db.writeObject(databasePath + databaseFileName);
-    	incrementNumberTemporaryDatabase();
-	}
-	
-	/**
-	 * Creates a new file containing the database serialized 
-	 * @param db the current database used by the user
-	 * @throws IOException
-	 */
-	public void inspectRelationsCommand(Database db) throws IOException {
-		this.db = db;
-		db.writeObject(databasePath + getTemporaryFileName());
-		db.writeObject(databasePath + databaseFileName);
-    	incrementNumberTemporaryDatabase();
-	}
-	
-	/**
-	 * Checks if a file containing the previous database exists and loads it
-	 * @return the previous database 
-	 * @throws ClassNotFoundException
-	 * @throws IOException
-	 */
-	public Database undoCommand() throws ClassNotFoundException, IOException {
-		String path = getPreviousTemporaryFileName();
-		if (path != null) {
-			decrementNumberTemporaryDatabase();
-			db = db.readObject(db, databasePath + path);
-			db.writeObject(databasePath + databaseFileName);
-		}
-		return db;
-	}
-	
-	/**
-	 * Checks if a file containing the future database exists and loads it
-	 * @return the future database
-	 * @throws ClassNotFoundException
-	 * @throws IOException
-	 */
-	public Database redoCommand() throws ClassNotFoundException, IOException {
-		String path = getNextTemporaryFileName();
-		if (path != null) {
-			db = db.readObject(db, databasePath + path);
-			db.writeObject(databasePath + databaseFileName);
-			incrementNumberTemporaryDatabase();
-		}
-		return db;
-	}
-	
-	/**
-	 * Checks if there is a file containing a database at the path given, loads it and creates a new temporary file
-	 * @param path the path of the file containing a database
-	 * @return the database at the path given
-	 * @throws ClassNotFoundException
-	 * @throws IOException
-	 */
-	public Database importCommand(String path) throws ClassNotFoundException, IOException {
-		if (!Files.exists(Paths.get(path)))
-			System.out.println("File doesn't exist !");
-		else {
-			db = db.readObject(db, path);
-			db.writeObject(databasePath + databaseFileName);
-			db.writeObject(databasePath + getTemporaryFileName());
-			incrementNumberTemporaryDatabase();
-		}
-		return db;
-	}
-	
-	/**
-	 * Creates folders and a file containing the current database
-	 * @param path the path of the file where the database has to be saved
-	 * @throws IOException
-	 */
-	public void exportCommand(String path) throws IOException {
-		if (!Files.exists(Paths.get(path))) {
-        	Files.createDirectories(Paths.get(path));
-        }
-    	db.writeObject(path);
-    	System.out.println("Export succeeded");
-	}
-
-	/**
-	 * Changes the current database with the database given in parameter and creates a temporary file
-	 * @param db the new database to be used
-	 * @throws IOException
-	 */
-	public void resetCommand(Database db) throws IOException {		
-		this.db = db;
-		db.writeObject(databasePath + databaseFileName);
-		db.writeObject(databasePath + getTemporaryFileName());
-		incrementNumberTemporaryDatabase();
-	}
-
-	/**
-	 * Deletes all the temporary files and the folder
-	 */
-	public void deleteTemporaryDatabaseDirectory() {
-	    File file = new File(temporaryDataBasePath);
-		File[] contents = file.listFiles();
-		if (contents != null) {
-			for (File f : contents) f.delete();
-		}
-	    file.delete();
-	}
-	
-	/**
-	 * Saves the current database and deletes the temporary files
-	 * @throws IOException
-	 */
-	public void quitCommand() throws IOException {
-		deleteTemporaryDatabaseDirectory();
-	}
+package persistence;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+/**
+ * This class is used to create the architecture files to save the database.
+ * By default, commands append their changes to a write-ahead log and the full
+ * database file is only rewritten as a checkpoint once the log holds enough
+ * records. Setting the kmp.wal system property to false restores the former
+ * behaviour of rewriting the database file after every command.
+ * 
+ * The database file is mapped in memory when it is loaded and decoded as it is
+ * accessed, so that loading does not depend on its size. Setting the kmp.mmap
+ * system property to false reads it entirely instead. Every checkpoint
+ * replaces the file while the database still maps it, which Windows does not
+ * allow, so the file is always read entirely there.
+ * 
+ * The kmp.durability system property decides when a commit of the log is
+ * forced to the disk: "sync", the default, forces it before the command
+ * returns. "group" hands it to a background committer forcing the file once
+ * the oldest pending commit is kmp.commit.interval milliseconds old (5 by
+ * default) or once the pending commits hold kmp.commit.records records (1000 by
+ * default), the commits of every writer sharing one fsync; the writer waits
+ * for its commit through awaitDurability. "async" uses the same committer but
+ * nobody waits, so a crash may lose the last commits.
+ * 
+ * Undo and redo rely on an in-memory journal of the mutations of each command,
+ * whose length is bounded by the kmp.undo.depth (number of commands) and
+ * kmp.undo.memory (bytes) system properties.
+ */
+public class DatabaseSerializer {
+
+	private Database db;
+	private final String databasePath = System.getProperty("user.home") + System.getProperty("file.separator") + "KMP_dataSerialized" + System.getProperty("file.separator");
+	private final String databaseFileName = "kmp_database.kmp";
+	private final String logFileName = "kmp_database.log";
+	private final boolean writeAheadLogEnabled = Boolean.parseBoolean(System.getProperty("kmp.wal", "true"));
+	private final boolean mappingEnabled = Boolean.parseBoolean(System.getProperty("kmp.mmap", "true"))
+			&& !System.getProperty("os.name", "").startsWith("Windows");
+	private WriteAheadLog writeAheadLog;
+	private Database loggedDatabase;
+	private final UndoJournal undoJournal = new UndoJournal();
+	
+	public DatabaseSerializer() {
+		
+	}
+	
+	public DatabaseSerializer(Database db) {
+		this.db = db;
+	}
+	
+	public Database getDb() {
+		return db;
+	}
+
+	public String getDatabasePath() {
+		return databasePath;
+	}
+
+	public String getDatabaseFileName() {
+		return databaseFileName;
+	}
+
+	/**
+	 * Builds the architecture of the file system and loads the previous database built by the user if it exists 
+	 * @return the database created or found
+	 * @throws ClassNotFoundException
+	 * @throws IOException if the existing database or its log cannot be read, in which case nothing is
+	 * written to the folder of the database
+	 */
+	public Database initCommand() throws ClassNotFoundException, IOException {
+		if (!Files.exists(Paths.get(databasePath + databaseFileName))) {
+        	Files.createDirectories(Paths.get(databasePath));
+        	db.writeObject(databasePath + databaseFileName);
+        } else {
+        	//System.out.println("Trying to get previous data");
+        	if (mappingEnabled) {
+        		db = db.mapObject(db, databasePath + databaseFileName);
+        	} else {
+        		db = db.readObject(db, databasePath + databaseFileName);
+        	}
+        	if (writeAheadLogEnabled) {
+        		WriteAheadLog.replay(db, databasePath + logFileName);
+        	}
+        	if (mappingEnabled) {
+        		System.out.println(db.tableSize() + " entries and " + db.tripleCount() + " triples opened from " + databaseFileName);
+        	} else {
+        		System.out.println(db.toString());
+        	}
+        }
+		if (writeAheadLogEnabled) {
+			writeAheadLog = new WriteAheadLog(databasePath + logFileName);
+			writeAheadLog.setSyncInterval(Integer.getInteger("kmp.wal.sync", 1));
+			writeAheadLog.setCheckpointInterval(Integer.getInteger("kmp.wal.checkpoint", 10000));
+			writeAheadLog.setDurability(
+					WriteAheadLog.Durability.valueOf(System.getProperty("kmp.durability", "sync").toUpperCase()),
+					Long.getLong("kmp.commit.interval", 5), Integer.getInteger("kmp.commit.records", 1000));
+		}
+		undoJournal.setDepth(Integer.getInteger("kmp.undo.depth", 100));
+		undoJournal.setMemoryCap(Long.getLong("kmp.undo.memory", 64L * 1024 * 1024));
+		attachListeners(db);
+		return db;
+	}
+
+	/**
+	 * Ends an insertion: its changes become a step of the undo history and are saved
+	 * @param db the current database used by the user
+	 * @return the number of the commit, to be given to awaitDurability
+	 * @throws IOException
+	 */
+	public long insertCommand(Database db) throws IOException {
+		this.db = db;
+		return commit();
+	}
+	
+	/**
+	 * Ends an inspection of relations: its changes become a step of the undo history and are saved
+	 * @param db the current database used by the user
+	 * @return the number of the commit, to be given to awaitDurability
+	 * @throws IOException
+	 */
+	public long inspectRelationsCommand(Database db) throws IOException {
+		this.db = db;
+		return commit();
+	}
+
+	/**
+	 * Waits until a commit is on the disk with the "group" durability, returns at
+	 * once otherwise. It can be called by any thread, so that a writer can wait
+	 * without holding the lock other writers need to commit
+	 * @param commit a number returned by insertCommand or inspectRelationsCommand
+	 * @throws IOException if the log could not be forced to the disk
+	 */
+	public void awaitDurability(long commit) throws IOException {
+		if (writeAheadLog != null) {
+			writeAheadLog.awaitDurability(commit);
+		}
+	}
+
+	/**
+	 * Starts a bulk load: the changes made until endBulkLoadCommand are neither
+	 * journaled for undo nor logged, the database is written once at the end
+	 * instead. A crash during a bulk load loses the batch, not the data saved
+	 * before it.
+	 * @param db the current database used by the user
+	 * @throws IOException
+	 */
+	public void beginBulkLoadCommand(Database db) throws IOException {
+		this.db = db;
+		commit();
+		if (loggedDatabase != null) {
+			loggedDatabase.removeListener(undoJournal);
+			if (writeAheadLog != null) {
+				loggedDatabase.removeListener(writeAheadLog);
+			}
+			loggedDatabase = null;
+		}
+	}
+
+	/**
+	 * Ends a bulk load by writing the whole database. The bulk load cannot be
+	 * undone, so the undo history is forgotten.
+	 * @param db the current database used by the user
+	 * @throws IOException
+	 */
+	public void endBulkLoadCommand(Database db) throws IOException {
+		this.db = db;
+		undoJournal.clear();
+		checkpoint();
+	}
+
+	/**
+	 * Closes the undo step of the last command and saves its changes.
+	 * @return the number of the commit in the log, 0 if nothing is left to force
+	 * @throws IOException
+	 */
+	private long commit() throws IOException {
+		undoJournal.commit();
+		return save(db);
+	}
+
+	/**
+	 * Writes the whole database to its file and empties the write-ahead log. The
+	 * file is written next to the previous one, forced to the disk and moved over
+	 * it, and the move is forced with the folder of the database, so that a crash
+	 * leaves either the old checkpoint with its log or the new one. The log is
+	 * only emptied once the new checkpoint is durable. A database mapped from the
+	 * previous file keeps reading it after the move.
+	 * @throws IOException
+	 */
+	private void checkpoint() throws IOException {
+		String checkpointPath = databasePath + databaseFileName + ".new";
+		db.writeObject(checkpointPath);
+		Path databaseFile = Paths.get(databasePath + databaseFileName);
+		Files.move(Paths.get(checkpointPath), databaseFile, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory(databaseFile.getParent());
+		attachListeners(db);
+		if (writeAheadLog != null) {
+			writeAheadLog.truncate();
+		}
+	}
+
+	/**
+	 * Forces the entries of a folder, such as a file moved into it, to the disk.
+	 * Some platforms, Windows among them, cannot open a folder as a channel, and
+	 * their moves are left to the file system.
+	 * @param directory the folder
+	 * @throws IOException if the folder was opened but could not be forced
+	 */
+	private static void syncDirectory(Path directory) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(directory, StandardOpenOption.READ);
+		} catch (IOException e) {
+			return;
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Makes the write-ahead log and the undo journal follow the mutations of db
+	 * instead of the previous database instance.
+	 * @param db the current database
+	 */
+	private void attachListeners(Database db) {
+		if (loggedDatabase != db) {
+			if (loggedDatabase != null) {
+				loggedDatabase.removeListener(undoJournal);
+				if (writeAheadLog != null) {
+					loggedDatabase.removeListener(writeAheadLog);
+				}
+			}
+			db.addListener(undoJournal);
+			if (writeAheadLog != null) {
+				db.addListener(writeAheadLog);
+			}
+			loggedDatabase = db;
+		}
+	}
+	
+	/**
+	 * Undoes the changes of the last command. They are reverted in place, except
+	 * for a reset or an import which give the previous database back
+	 * @return the previous database 
+	 * @throws IOException
+	 */
+	public Database undoCommand() throws IOException {
+		if (!undoJournal.canUndo()) {
+			System.out.println("Nothing to undo !");
+			return db;
+		}
+		Database previous = db;
+		db = undoJournal.undo(db);
+		awaitDurability(save(previous));
+		return db;
+	}
+	
+	/**
+	 * Redoes the changes of the last undone command
+	 * @return the future database
+	 * @throws IOException
+	 */
+	public Database redoCommand() throws IOException {
+		if (!undoJournal.canRedo()) {
+			System.out.println("Nothing to redo !");
+			return db;
+		}
+		Database previous = db;
+		db = undoJournal.redo(db);
+		awaitDurability(save(previous));
+		return db;
+	}
+
+	/**
+	 * Makes the last changes durable: they are committed to the write-ahead log,
+	 * which is checkpointed when it holds enough records, or the whole database is
+	 * written when the log is disabled. A database that replaced previous, after
+	 * the undo or the redo of a reset or an import, is checkpointed.
+	 * @param previous the database used before the last command
+	 * @return the number of the commit in the log, 0 if nothing is left to force
+	 * @throws IOException
+	 */
+	private long save(Database previous) throws IOException {
+		if (previous != db) {
+			checkpoint();
+			return 0;
+		}
+		attachListeners(db);
+		if (writeAheadLog == null) {
+			// Not in place, the database may be mapped from its file
+			checkpoint();
+			return 0;
+		}
+		long commit;
+		try {
+			commit = writeAheadLog.commit();
+		} catch (IOException e) {
+			// The records of the command may be incomplete and are not committed, the whole database is written instead
+			e.printStackTrace();
+			checkpoint();
+			return 0;
+		}
+		if (writeAheadLog.checkpointRequired()) {
+			checkpoint();
+		}
+		return commit;
+	}
+	
+	/**
+	 * Checks if there is a file containing a database at the path given and loads it, the import can be undone
+	 * @param path the path of the file containing a database
+	 * @return the database at the path given
+	 * @throws ClassNotFoundException
+	 * @throws IOException
+	 */
+	public Database importCommand(String path) throws ClassNotFoundException, IOException {
+		if (!Files.exists(Paths.get(path)))
+			System.out.println("File doesn't exist !");
+		else {
+			Database previous = db;
+			db = db.readObject(db, path);
+			undoJournal.replaced(previous, db);
+			checkpoint();
+		}
+		return db;
+	}
+	
+	/**
+	 * Creates folders and a file containing the current database
+	 * @param path the path of the file where the database has to be saved
+	 * @throws IOException
+	 */
+	public void exportCommand(String path) throws IOException {
+		Path parent = Paths.get(path).toAbsolutePath().getParent();
+		if (parent != null && !Files.exists(parent)) {
+        	Files.createDirectories(parent);
+        }
+    	db.writeObject(path);
+    	System.out.println("Export succeeded");
+	}
+
+	/**
+	 * Changes the current database with the database given in parameter, the reset can be undone
+	 * @param db the new database to be used
+	 * @throws IOException
+	 */
+	public void resetCommand(Database db) throws IOException {
+		if (db != this.db) {
+			undoJournal.replaced(this.db, db);
+		}
+		this.db = db;
+		checkpoint();
+	}
+
+	/**
+	 * Saves the current database
+	 * @throws IOException
+	 */
+	public void quitCommand() throws IOException {
+		if (writeAheadLog != null) {
+			writeAheadLog.close();
+		}
+	}
 }
\ No newline at end of file
@@ -1,178 +1,175 @@
 package persistence;
 
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Set;
-
-import model.ID;
-import model.Relation;
-import model.Subject;
+import java.util.Arrays;
 
 /**
- * This class is used to store in the form of a map between Relation objects and
- * Subject objects. Every EntryData instance has an ID field.
+ * This class is used to store in the form of a map between relation terms and
+ * subject terms. Every EntryData instance has an id term. Terms are the int ids
+ * assigned by the Database dictionary. Triples are added and removed through
+ * Database so that its indexes stay in sync.
  */
 public class EntryData implements Serializable {
 
 	/**
 	 * 
 	 */
-	private static final long serialVersionUID = 1L;
-	private ID id;
-	private HashMap<Relation, ArrayList<Subject>> relationMap;
-
-	public EntryData() {
-		relationMap = new HashMap<>();
+	private static final long serialVersionUID = 2L;
+	private int id;
+	private int[] relations;
+	private TermList[] subjects;
+	private int relationCount;
+
+	public EntryData(int id) {
+		this.id = id;
+		relations = new int[2];
+		subjects = new TermList[2];
 	}
 
 	/**
-	 * Returns the all Relation object keys of the relationMap field.
+	 * Returns the id term of this entry.
 	 * 
-	 * @return a set of relations.
+	 * @return a term id.
 	 */
-	public Set<Relation> getRelations() {
-		return relationMap.keySet();
+	public int getIdTerm() {
+		return id;
 	}
 
 	/**
-	 * Returns a collection of all sets of subjects from the relationMap field.
-	 * @return 
+	 * Returns the number of relations held by this entry.
 	 * 
-	 * @return a collection of sets of subjects.
+	 * @return the number of relations.
 	 */
-	public Collection<ArrayList<Subject>> subjects() {
-		return relationMap.values();
+	public int relationCount() {
+		return relationCount;
 	}
 
 	/**
-	 * Puts a Subject instance into the set of subjects associated with the relation
-	 * parameter.
+	 * Returns the relation term stored at index, in insertion order.
 	 * 
-	 * @param relation
-	 *            an instance of Relation.
-	 * @param subject
-	 *            an instance of Subject.
+	 * @param index
+	 *            a position between 0 and relationCount() - 1.
+	 * @return a relation term.
 	 */
-	public void put(Relation relation, Subject subject) {
-		ArrayList<Subject> subjects = relationMap.get(relation);
-		if (subjects != null) {
-			if (!subjects.contains(subject)) {
-				subjects.add(subject);
-			}
-			relationMap.put(relation, subjects);
-		} else {
-			subjects = new ArrayList<>();
-			subjects.add(subject);
-			relationMap.put(relation, subjects);
-		}
-	}
-
-	public void setID(Subject subject) {
-		if (id != null) {
-			id.setSubject(subject);
-		} else {
-			id = new ID(subject);
-		}
-	}
-
-	public String getIdAsString() {
-		return id.getSubject().getId();
+	public int getRelationTerm(int index) {
+		return relations[index];
 	}
 
 	/**
-	 * Returns the set of subjects associated with a particular relation.
+	 * Returns a copy of every relation term of this entry.
 	 * 
-	 * @param relation
-	 *            an instance of Relation
-	 * @return 
-	 * @return a set of subjects.
+	 * @return an array of relation terms.
 	 */
-	public ArrayList<Subject> getSubjects(Relation relation) {
-		return relationMap.get(relation);
+	public int[] getRelationTerms() {
+		return Arrays.copyOf(relations, relationCount);
+	}
+
+	private int indexOfRelation(int relation) {
+		for (int index = 0; index < relationCount; index++) {
+			if (relations[index] == relation) {
+				return index;
+			}
+		}
+		return -1;
 	}
 
 	/**
-	 * Returns a boolean indicating whether an instance of Relation is present in
-	 * this EntryData.
+	 * Puts a subject term into the list of subjects associated with the relation
+	 * term.
 	 * 
 	 * @param relation
-	 *            an instance of Relation.
-	 * @return a boolean indicating the presence of relation.
+	 *            a relation term.
+	 * @param subject
+	 *            a subject term.
+	 * @return a boolean indicating whether the pair was new.
 	 */
-	public boolean hasRelation(Relation relation) {
-		return relationMap.containsKey(relation);
-	}
-
-	@Override
-	public String toString() {
-		StringBuilder res = new StringBuilder();
-		res.append("id => ").append(this.getIdAsString()).append(" | ");
-		for (Relation relation : this.getRelations()) {
-			res.append(relation.getId()).append(" => ");
-			ArrayList<Subject> subjects = this.getSubjects(relation);
-			if (subjects.size() > 1) {
-				res.append("{ ");
-				for (Subject subject : subjects) {
-					res.append(subject.getId()).append(' ');
-				}
-				res.append("} | ");
-			} else if (subjects.size() == 1) {
-				res.append(((Subject) subjects.toArray()[0]).getId());
-				res.append(" | ");
+	boolean put(int relation, int subject) {
+		int index = indexOfRelation(relation);
+		if (index < 0) {
+			if (relationCount == relations.length) {
+				relations = Arrays.copyOf(relations, relationCount * 2);
+				subjects = Arrays.copyOf(subjects, relationCount * 2);
 			}
+			index = relationCount++;
+			relations[index] = relation;
+			subjects[index] = new TermList();
 		}
-		return res.toString();
+		return subjects[index].addIfAbsent(subject);
 	}
 
-	public ID getID() {
-		return id;
-	}
-	
 	/**
-	 * Checks in the relationMap if the relation contains the subject
-	 * @param relation the relation searched
-	 * @param subject the subject searched
-	 * @return if the relation contains the subject or not
+	 * Returns the list of subject terms associated with a particular relation
+	 * term, or null if the relation is absent.
+	 * 
+	 * @param relation
+	 *            a relation term.
+	 * @return a list of subject terms.
 	 */
-	public boolean relationContainsSubject(Relation relation, Subject subject) {
-		if (relationMap.get(relation).contains(subject)) {
-			return true;
-		}
-		return false;
+	public TermList getSubjects(int relation) {
+		int index = indexOfRelation(relation);
+		return index < 0 ? null : subjects[index];
 	}
 
 	/**
-	 * Deletes all the subjects of a relation
-	 * @param relation the relation that has to be purged
+	 * Returns a boolean indicating whether a relation term is present in this
+	 * EntryData.
+	 * 
+	 * @param relation
+	 *            a relation term.
+	 * @return a boolean indicating the presence of relation.
 	 */
-	public void purgeSubjectsFromRelation(Relation relation) {
-		relationMap.get(relation).clear();
+	public boolean hasRelation(int relation) {
+		return indexOfRelation(relation) >= 0;
 	}
 
 	/**
-	 * Deletes the subject from the list of the relation 
-	 * @param relation the relation containing the subject that has to be removed
+	 * Checks if the relation contains the subject
+	 * @param relation the relation term searched
+	 * @param subject the subject term searched
+	 * @return if the relation contains the subject or not
 	 */
-	public void removeIdFromRelation(Relation relation) {
-		relationMap.get(relation).remove(this.id.getSubject());
+	public boolean relationContainsSubject(int relation, int subject) {
+		TermList terms = getSubjects(relation);
+		return terms != null && terms.contains(subject);
 	}
 
 	/**
-	 * Gets the subject links to the ID
-	 * @return the subjects links to the ID
+	 * Deletes a subject contained in a relation. A relation left without subjects
+	 * is removed from the entry.
+	 * @param relation the relation term that has to be changed
+	 * @param subject the subject term that has to be removed
+	 * @return if the subject was removed
 	 */
-	public Subject getIDSubject() {
-		return this.id.getSubject();
+	boolean removeSubjectFromRelation(int relation, int subject) {
+		int index = indexOfRelation(relation);
+		if (index < 0 || !subjects[index].remove(subject)) {
+			return false;
+		}
+		if (subjects[index].isEmpty()) {
+			System.arraycopy(relations, index + 1, relations, index, relationCount - index - 1);
+			System.arraycopy(subjects, index + 1, subjects, index, relationCount - index - 1);
+			subjects[--relationCount] = null;
+		}
+		return true;
 	}
 
 	/**
-	 * Deletes a subject contained in a relation
-	 * @param relation the relation that has to be changed 
-	 * @param subject the subject that has to be removed
+	 * Returns a deep copy of this entry, which shares no list with it.
+	 * 
+	 * @return a new instance of EntryData.
 	 */
-	public void removeSubjectFromRelation(Relation relation, Subject subject) {
-		relationMap.get(relation).remove(subject);
+	EntryData copy() {
+		EntryData copy = new EntryData(id);
+		copy.relations = Arrays.copyOf(relations, Math.max(2, relationCount));
+		copy.subjects = new TermList[copy.relations.length];
+		copy.relationCount = relationCount;
+		for (int index = 0; index < relationCount; index++) {
+			TermList terms = subjects[index];
+			copy.subjects[index] = new TermList(terms.size());
+			for (int position = 0; position < terms.size(); position++) {
+				copy.subjects[index].add(terms.get(position));
+			}
+		}
+		return copy;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,219 @@
+package persistence;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class forces the commits of a WriteAheadLog to the disk on a background
+ * thread, so that the commits of many writers share one fsync. The records of a
+ * commit are written to the file by the committing thread, which only hands
+ * the number of the commit to the committer. The committer forces the file
+ * once the oldest commit not forced yet is interval old, or once the commits
+ * not forced yet hold enough records, whichever comes first. Every commit
+ * written before the force started is then durable, and the threads waiting
+ * for one of them are woken up.
+ *
+ * When a force fails, the threads waiting for a commit not durable yet get the
+ * failure, and the committer stops forcing the file, whose pages may have been
+ * dropped, until forced reports that the commits are durable another way, by
+ * a checkpoint. The failure is reported by checkFailure until then, so that the
+ * log makes the next command checkpoint instead of committing.
+ *
+ * The state is guarded by a ReentrantLock rather than a monitor, so that a
+ * virtual thread waiting for its commit does not hold its carrier thread.
+ */
+final class GroupCommitter implements Runnable {
+
+	private final FileChannel channel;
+	private final long interval;
+	private final int records;
+	private final Thread thread;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+
+	private long committed;
+	private long durable;
+	private int pendingRecords;
+	private long oldestPending;
+	private IOException failure;
+	private boolean closed;
+
+	/**
+	 * Starts the committer of a log file.
+	 *
+	 * @param channel
+	 *            the channel of the log file.
+	 * @param interval
+	 *            the longest time a commit waits for the force, in milliseconds.
+	 * @param records
+	 *            the number of records that makes the committer force the file
+	 *            without waiting for the interval.
+	 */
+	GroupCommitter(FileChannel channel, long interval, int records) {
+		this.channel = channel;
+		this.interval = TimeUnit.MILLISECONDS.toNanos(Math.max(0, interval));
+		this.records = Math.max(1, records);
+		thread = new Thread(this, "kmp-group-commit");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Hands a commit whose records are written to the file to the committer.
+	 *
+	 * @param commit
+	 *            the number of the commit, greater than the previous ones.
+	 * @param commitRecords
+	 *            the number of records of the commit.
+	 */
+	void committed(long commit, int commitRecords) {
+		lock.lock();
+		try {
+			if (committed == durable) {
+				oldestPending = System.nanoTime();
+			}
+			committed = commit;
+			pendingRecords += commitRecords;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Marks every commit handed so far as durable, once the file was forced by
+	 * another thread or a checkpoint holds them, and clears the failure of the
+	 * last force.
+	 */
+	void forced() {
+		lock.lock();
+		try {
+			durable = committed;
+			pendingRecords = 0;
+			failure = null;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Throws the failure of the last force, until forced is called.
+	 *
+	 * @throws IOException
+	 *             if the file could not be forced.
+	 */
+	void checkFailure() throws IOException {
+		lock.lock();
+		try {
+			if (failure != null) {
+				throw failure;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Blocks until a commit is durable.
+	 *
+	 * @param commit
+	 *            the number of the commit.
+	 * @throws IOException
+	 *             if the file could not be forced.
+	 */
+	void await(long commit) throws IOException {
+		boolean interrupted = false;
+		lock.lock();
+		try {
+			while (durable < commit && failure == null && !closed) {
+				try {
+					changed.await();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (durable < commit) {
+				throw failure != null ? failure : new IOException("The log was closed before the commit was durable");
+			}
+		} finally {
+			lock.unlock();
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Stops the committer. The commits not forced yet are left to the caller.
+	 */
+	void close() {
+		lock.lock();
+		try {
+			closed = true;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			long target;
+			lock.lock();
+			try {
+				while (!closed && (committed == durable || failure != null)) {
+					changed.await();
+				}
+				// Let the following commits join the force until the interval or the records run out
+				long remaining;
+				while (!closed && pendingRecords < records
+						&& (remaining = oldestPending + interval - System.nanoTime()) > 0) {
+					changed.awaitNanos(remaining);
+				}
+				if (closed) {
+					return;
+				}
+				target = committed;
+				pendingRecords = 0;
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				lock.unlock();
+			}
+			IOException error = null;
+			try {
+				channel.force(false);
+			} catch (IOException e) {
+				error = e;
+			}
+			lock.lock();
+			try {
+				if (error != null) {
+					failure = error;
+				} else if (target > durable) {
+					durable = target;
+					if (committed > durable) {
+						// Commits handed during the force wait from now on
+						oldestPending = System.nanoTime();
+					}
+				}
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			if (error != null) {
+				error.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package persistence;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamField;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import model.Data;
+import model.ID;
+import model.Relation;
+import model.Subject;
+
+/**
+ * This class reads the databases saved by Java serialization, including those
+ * saved before terms were dictionary-encoded. Such a file holds a Database of
+ * serialVersionUID 1 whose entries are EntryData of serialVersionUID 1, mapping
+ * instances of Relation to lists of instances of Subject and holding their id
+ * as an instance of ID. While the file is read, the descriptions of both
+ * classes are replaced by those of Layout and Entry, which declare the same
+ * serialized fields, and the database is then rebuilt term by term. Files
+ * holding the current classes are read as they are.
+ */
+final class LegacyDatabase {
+
+	private static final long LEGACY_VERSION = 1L;
+
+	private LegacyDatabase() {
+	}
+
+	/**
+	 * Reads a database written by ObjectOutputStream.
+	 *
+	 * @param in
+	 *            the stream positioned on the serialization header.
+	 * @return the database read.
+	 * @throws IOException
+	 *             if the stream holds no database, or a layout this class does
+	 *             not know.
+	 * @throws ClassNotFoundException
+	 */
+	static Database read(InputStream in) throws IOException, ClassNotFoundException {
+		Object object = new LegacyInputStream(in).readObject();
+		if (object instanceof Database) {
+			return (Database) object;
+		}
+		if (object instanceof Layout) {
+			return convert((Layout) object);
+		}
+		throw new InvalidClassException(object == null ? "null" : object.getClass().getName(),
+				"not a serialized database");
+	}
+
+	/**
+	 * Adds every term of a former database to a new one, then its entries at
+	 * their former keys.
+	 */
+	private static Database convert(Layout layout) {
+		Database db = new Database();
+		if (layout.objects != null) {
+			for (Data data : layout.objects) {
+				if (data != null) {
+					termOf(db, data);
+				}
+			}
+		}
+		if (layout.table != null) {
+			// In the order of the keys, as the database wrote them
+			for (Map.Entry<Integer, Entry> row : new TreeMap<>(layout.table).entrySet()) {
+				Entry entry = row.getValue();
+				if (entry == null || entry.id == null || entry.id.getSubject() == null) {
+					continue;
+				}
+				EntryData entryData = new EntryData(termOf(db, entry.id.getSubject()));
+				if (entry.relationMap != null) {
+					// The former map was ordered by identity hash codes and could hold a relation twice
+					TreeMap<Integer, ArrayList<Subject>> adjacency = new TreeMap<>();
+					for (Map.Entry<Relation, ArrayList<Subject>> relation : entry.relationMap.entrySet()) {
+						if (relation.getKey() != null && relation.getValue() != null) {
+							adjacency.computeIfAbsent(termOf(db, relation.getKey()), term -> new ArrayList<>())
+									.addAll(relation.getValue());
+						}
+					}
+					for (Map.Entry<Integer, ArrayList<Subject>> relation : adjacency.entrySet()) {
+						for (Subject subject : relation.getValue()) {
+							if (subject != null) {
+								entryData.put(relation.getKey(), termOf(db, subject));
+							}
+						}
+					}
+				}
+				db.restoreEntry(row.getKey(), entryData);
+			}
+		}
+		db.setPrimaryIndex(Math.max(layout.primaryIndex, db.keyLimit()));
+		return db;
+	}
+
+	/**
+	 * Returns the term of a deserialized subject or relation, adding a copy of it
+	 * to db the first time its id is met. The copy has the same kind and, for a
+	 * relation, the same active properties.
+	 */
+	private static int termOf(Database db, Data data) {
+		if (data instanceof Relation) {
+			Relation relation = db.findRelation(data.getId());
+			if (relation == null) {
+				relation = new Relation(data.getId());
+				Map<Relation.Properties, Boolean> properties = ((Relation) data).getProperties();
+				for (Relation.Properties property : Relation.Properties.values()) {
+					relation.setProperty(property, properties != null && Boolean.TRUE.equals(properties.get(property)));
+				}
+				db.addRelation(relation);
+			}
+			return relation.getTerm();
+		}
+		Subject subject = db.findSubject(data.getId());
+		if (subject == null) {
+			subject = (Subject) SnapshotFile.newData(SnapshotFile.kindOf(data), data.getId());
+			db.addSubject(subject);
+		}
+		return subject.getTerm();
+	}
+
+	/**
+	 * Reads the former Database and EntryData as Layout and Entry.
+	 */
+	private static final class LegacyInputStream extends ObjectInputStream {
+
+		LegacyInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+
+		@Override
+		protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+			ObjectStreamClass descriptor = super.readClassDescriptor();
+			if (descriptor.getSerialVersionUID() == LEGACY_VERSION) {
+				if (descriptor.getName().equals(Database.class.getName())) {
+					return replace(descriptor, Layout.class);
+				}
+				if (descriptor.getName().equals(EntryData.class.getName())) {
+					return replace(descriptor, Entry.class);
+				}
+			}
+			return descriptor;
+		}
+
+		/**
+		 * Returns the description of the class read instead of a former one. The
+		 * stream is then decoded with it, so its fields must be the ones written.
+		 */
+		private static ObjectStreamClass replace(ObjectStreamClass descriptor, Class<?> replacement)
+				throws InvalidClassException {
+			ObjectStreamClass local = ObjectStreamClass.lookup(replacement);
+			ObjectStreamField[] written = descriptor.getFields();
+			ObjectStreamField[] expected = local.getFields();
+			boolean same = written.length == expected.length;
+			for (int index = 0; same && index < written.length; index++) {
+				same = written[index].getName().equals(expected[index].getName())
+						&& written[index].getTypeCode() == expected[index].getTypeCode();
+			}
+			if (!same) {
+				throw new InvalidClassException(descriptor.getName(), "unknown layout of a former version");
+			}
+			return local;
+		}
+	}
+
+	/**
+	 * The serialized fields of the former Database.
+	 */
+	private static final class Layout implements Serializable {
+
+		private static final long serialVersionUID = LEGACY_VERSION;
+		private ArrayList<Data> objects;
+		private HashMap<Integer, Entry> table;
+		private int primaryIndex = 1;
+	}
+
+	/**
+	 * The serialized fields of the former EntryData.
+	 */
+	private static final class Entry implements Serializable {
+
+		private static final long serialVersionUID = LEGACY_VERSION;
+		private ID id;
+		private HashMap<Relation, ArrayList<Subject>> relationMap;
+	}
+}
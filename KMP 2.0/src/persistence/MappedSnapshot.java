@@ -0,0 +1,301 @@
+package persistence;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import model.Data;
+import model.Relation;
+
+/**
+ * This class gives random access to a database file of version 2 of the
+ * SnapshotFile format through FileChannel.map. Nothing is decoded when the file
+ * is opened: terms, entries and blocks of the permutation indexes are read from
+ * the mapped region, hence from the page cache, when a Database asks for them.
+ * The file is mapped in segments of 1 GB so that it can be larger than 2 GB.
+ */
+class MappedSnapshot {
+
+	private static final int SEGMENT_BITS = 30;
+	private static final long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+
+	private final MappedByteBuffer[] segments;
+	final boolean sharedIds;
+	final int termCount;
+	final int keyLimit;
+	final int primaryIndex;
+	final int entryCount;
+	final long tripleCount;
+	private final long relationsOffset;
+	private final long termOffsets;
+	private final long hashOffset;
+	private final int hashSlots;
+	private final long keysOffset;
+	private final long entryOffsets;
+	private final long predicateOffsets;
+	private final long objectOffsets;
+
+	/**
+	 * Maps the file at path, which must start with a version 2 header.
+	 *
+	 * @param path
+	 *            the absolute path of the file.
+	 * @throws IOException
+	 */
+	MappedSnapshot(String path) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+			long size = channel.size();
+			segments = new MappedByteBuffer[(int) ((size + SEGMENT_MASK) >>> SEGMENT_BITS)];
+			for (int index = 0; index < segments.length; index++) {
+				long start = (long) index << SEGMENT_BITS;
+				segments[index] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+						Math.min(SEGMENT_MASK + 1, size - start));
+			}
+		}
+		if (segments.length == 0 || getInt(0) != SnapshotFile.MAGIC || get(4) != 2) {
+			throw new IOException(path + " is not a version 2 KMP database");
+		}
+		sharedIds = (getInt(SnapshotFile.FLAGS) & SnapshotFile.SHARED_IDS) != 0;
+		termCount = getInt(SnapshotFile.TERM_COUNT);
+		keyLimit = getInt(SnapshotFile.KEY_LIMIT);
+		primaryIndex = getInt(SnapshotFile.PRIMARY_INDEX);
+		entryCount = getInt(SnapshotFile.ENTRY_COUNT);
+		tripleCount = getLong(SnapshotFile.TRIPLE_COUNT);
+		relationsOffset = getLong(SnapshotFile.RELATIONS_OFFSET);
+		termOffsets = getLong(SnapshotFile.TERM_OFFSETS);
+		hashOffset = getLong(SnapshotFile.HASH_OFFSET);
+		hashSlots = getInt(SnapshotFile.HASH_SLOTS);
+		keysOffset = getLong(SnapshotFile.KEYS_OFFSET);
+		entryOffsets = getLong(SnapshotFile.ENTRY_OFFSETS);
+		predicateOffsets = getLong(SnapshotFile.PREDICATE_OFFSETS);
+		objectOffsets = getLong(SnapshotFile.OBJECT_OFFSETS);
+	}
+
+	/**
+	 * Decodes every relation of the file with its properties, in term order.
+	 *
+	 * @return a list of relations whose term is set.
+	 */
+	ArrayList<Relation> readRelations() {
+		Cursor cursor = new Cursor(relationsOffset);
+		int count = cursor.readVarInt();
+		ArrayList<Relation> relations = new ArrayList<>(count);
+		for (int index = 0; index < count; index++) {
+			Relation relation = (Relation) readData(cursor.readVarInt());
+			SnapshotFile.applyFlags(relation, cursor.readVarInt());
+			relations.add(relation);
+		}
+		return relations;
+	}
+
+	/**
+	 * Decodes a new instance of the Subject or Relation identified by term.
+	 *
+	 * @param term
+	 *            a term id lower than termCount.
+	 * @return an instance of Data whose term is set.
+	 */
+	Data readData(int term) {
+		Cursor cursor = new Cursor(getLong(termOffsets + 8L * term));
+		byte kind = get(cursor.position++);
+		Data data = SnapshotFile.newData(kind, cursor.readString());
+		data.setTerm(term);
+		return data;
+	}
+
+	/**
+	 * Decodes the id string of a term without creating its Data instance.
+	 *
+	 * @param term
+	 *            a term id lower than termCount.
+	 * @return the id string of term.
+	 */
+	String readId(int term) {
+		Cursor cursor = new Cursor(getLong(termOffsets + 8L * term) + 1);
+		return cursor.readString();
+	}
+
+	/**
+	 * Looks an id string up in the hash table of the file.
+	 *
+	 * @param id
+	 *            an id string.
+	 * @param relation
+	 *            whether a Relation or a Subject is searched.
+	 * @return the term of id or -1.
+	 */
+	int findTerm(String id, boolean relation) {
+		if (hashSlots == 0) {
+			return -1;
+		}
+		byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+		int mask = hashSlots - 1;
+		for (int slot = SnapshotFile.hash(bytes) & mask;; slot = (slot + 1) & mask) {
+			int term = getInt(hashOffset + 4L * slot) - 1;
+			if (term < 0) {
+				return -1;
+			}
+			Cursor cursor = new Cursor(getLong(termOffsets + 8L * term));
+			if ((get(cursor.position++) == SnapshotFile.RELATION) == relation && cursor.matches(bytes)) {
+				return term;
+			}
+		}
+	}
+
+	/**
+	 * Returns the key of the entry whose id is term, or 0.
+	 *
+	 * @param term
+	 *            a term id lower than termCount.
+	 * @return a key or 0.
+	 */
+	int key(int term) {
+		return getInt(keysOffset + 4L * term);
+	}
+
+	/**
+	 * Returns a boolean indicating whether the file holds an entry at key.
+	 *
+	 * @param key
+	 *            a key of table.
+	 * @return whether an entry exists at key.
+	 */
+	boolean hasEntry(int key) {
+		return key > 0 && key < keyLimit && getLong(entryOffsets + 8L * key) != 0;
+	}
+
+	/**
+	 * Decodes a new instance of the entry stored at key.
+	 *
+	 * @param key
+	 *            a key of table.
+	 * @return an instance of EntryData or null.
+	 */
+	EntryData readEntry(int key) {
+		if (!hasEntry(key)) {
+			return null;
+		}
+		Cursor cursor = new Cursor(getLong(entryOffsets + 8L * key));
+		cursor.readVarInt();
+		EntryData entryData = new EntryData(cursor.readVarInt());
+		int relationCount = cursor.readVarInt();
+		for (int index = 0; index < relationCount; index++) {
+			int relation = cursor.readVarInt();
+			int size = cursor.readVarInt();
+			for (int position = 0; position < size; position++) {
+				entryData.put(relation, cursor.readVarInt());
+			}
+		}
+		return entryData;
+	}
+
+	/**
+	 * Decodes the block of predicateIndex associated with a relation.
+	 *
+	 * @param relation
+	 *            a term id lower than termCount.
+	 * @return a map of subject term -> id terms, or null.
+	 */
+	HashMap<Integer, TermList> readPredicates(int relation) {
+		return readLevel(getLong(predicateOffsets + 8L * relation));
+	}
+
+	/**
+	 * Decodes the block of objectIndex associated with a subject.
+	 *
+	 * @param subject
+	 *            a term id lower than termCount.
+	 * @return a map of id term -> relation terms, or null.
+	 */
+	HashMap<Integer, TermList> readObjects(int subject) {
+		return readLevel(getLong(objectOffsets + 8L * subject));
+	}
+
+	private HashMap<Integer, TermList> readLevel(long offset) {
+		if (offset == 0) {
+			return null;
+		}
+		Cursor cursor = new Cursor(offset);
+		int count = cursor.readVarInt();
+		HashMap<Integer, TermList> level = new HashMap<>(count * 2);
+		for (int index = 0; index < count; index++) {
+			int term = cursor.readVarInt();
+			int size = cursor.readVarInt();
+			TermList terms = new TermList(size);
+			for (int position = 0; position < size; position++) {
+				terms.add(cursor.readVarInt());
+			}
+			level.put(term, terms);
+		}
+		return level;
+	}
+
+	private byte get(long position) {
+		return segments[(int) (position >>> SEGMENT_BITS)].get((int) (position & SEGMENT_MASK));
+	}
+
+	private int getInt(long position) {
+		int offset = (int) (position & SEGMENT_MASK);
+		MappedByteBuffer segment = segments[(int) (position >>> SEGMENT_BITS)];
+		if (offset + 4 <= segment.limit()) {
+			return segment.getInt(offset);
+		}
+		int value = 0;
+		for (int index = 0; index < 4; index++) {
+			value = value << 8 | get(position + index) & 0xFF;
+		}
+		return value;
+	}
+
+	private long getLong(long position) {
+		return (long) getInt(position) << 32 | getInt(position + 4) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Reads varints and strings sequentially from a position of the file.
+	 */
+	private class Cursor {
+
+		private long position;
+
+		Cursor(long position) {
+			this.position = position;
+		}
+
+		int readVarInt() {
+			int value = 0;
+			for (int shift = 0;; shift += 7) {
+				byte b = get(position++);
+				value |= (b & 0x7F) << shift;
+				if (b >= 0) {
+					return value;
+				}
+			}
+		}
+
+		String readString() {
+			byte[] bytes = new byte[readVarInt()];
+			for (int index = 0; index < bytes.length; index++) {
+				bytes[index] = get(position++);
+			}
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		boolean matches(byte[] bytes) {
+			if (readVarInt() != bytes.length) {
+				return false;
+			}
+			for (int index = 0; index < bytes.length; index++) {
+				if (get(position++) != bytes[index]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
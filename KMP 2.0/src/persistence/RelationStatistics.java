@@ -0,0 +1,51 @@
+package persistence;
+
+/**
+ * This class holds the cardinalities of a relation used by the query planner:
+ * its number of triples, the number of distinct ids holding it and the number of
+ * distinct subjects it points to.
+ */
+public class RelationStatistics {
+
+	private final long tripleCount;
+	private final int idCount;
+	private final int subjectCount;
+
+	RelationStatistics(long tripleCount, int idCount, int subjectCount) {
+		this.tripleCount = tripleCount;
+		this.idCount = idCount;
+		this.subjectCount = subjectCount;
+	}
+
+	/**
+	 * Returns the number of triples of the relation.
+	 * 
+	 * @return a number of triples.
+	 */
+	public long getTripleCount() {
+		return tripleCount;
+	}
+
+	/**
+	 * Returns the number of distinct ids, the first term of the triples.
+	 * 
+	 * @return a number of ids.
+	 */
+	public int getIdCount() {
+		return idCount;
+	}
+
+	/**
+	 * Returns the number of distinct subjects, the last term of the triples.
+	 * 
+	 * @return a number of subjects.
+	 */
+	public int getSubjectCount() {
+		return subjectCount;
+	}
+
+	@Override
+	public String toString() {
+		return tripleCount + " triples, " + idCount + " ids, " + subjectCount + " subjects";
+	}
+}
@@ -0,0 +1,438 @@
+package persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+
+import model.Class;
+import model.Data;
+import model.Instance;
+import model.Relation;
+import model.Subject;
+
+/**
+ * This class reads and writes the binary .kmp format of a Database. The file is
+ * streamed through a buffer section by section:
+ *
+ * <pre>
+ * header      magic "KMP1", format version, then in version 2 a fixed-size
+ *             header holding the counts and the offsets of the tables below
+ * dictionary  term count (version 1), then for every term its kind and its id
+ *             string
+ * properties  relation count, then for every relation its term and a bitflag
+ *             of its active properties
+ * table       primary index and entry count (version 1), then for every entry
+ *             its key, its id term and its adjacency list (relation term,
+ *             subject count, subject terms)
+ * </pre>
+ *
+ * Version 2 appends the blocks of the permutation indexes and fixed-width
+ * tables (offset of every term, hash table of the id strings, key of every
+ * term, offset of every entry and of every index block), so that MappedSnapshot
+ * can open the file without decoding it.
+ *
+ * Every count and term is written as a varint. Files written by Java
+ * serialization are still read: those saved before terms were encoded are
+ * converted by LegacyDatabase, those saved once terms were encoded but before
+ * this format existed are read as they are.
+ */
+public class SnapshotFile {
+
+	static final int MAGIC = 0x4B4D5031;
+	private static final int VERSION = 2;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	static final byte SUBJECT = 0;
+	static final byte RELATION = 1;
+	static final byte CLASS = 2;
+	static final byte INSTANCE = 3;
+
+	/**
+	 * Positions of the fields of the version 2 header.
+	 */
+	static final int FLAGS = 8;
+	static final int TERM_COUNT = 12;
+	static final int KEY_LIMIT = 16;
+	static final int PRIMARY_INDEX = 20;
+	static final int ENTRY_COUNT = 24;
+	static final int TRIPLE_COUNT = 28;
+	static final int RELATIONS_OFFSET = 36;
+	static final int TERM_OFFSETS = 44;
+	static final int HASH_OFFSET = 52;
+	static final int HASH_SLOTS = 60;
+	static final int KEYS_OFFSET = 64;
+	static final int ENTRY_OFFSETS = 72;
+	static final int PREDICATE_OFFSETS = 80;
+	static final int OBJECT_OFFSETS = 88;
+	private static final int HEADER_SIZE = 128;
+
+	static final int SHARED_IDS = 1;
+
+	/**
+	 * First bytes of a file written by ObjectOutputStream.
+	 */
+	private static final int SERIALIZATION_MAGIC = 0xACED;
+
+	private SnapshotFile() {
+	}
+
+	/**
+	 * Writes a database at path. Terms, entries and index blocks the database has
+	 * not decoded from its own snapshot are copied without being kept on the heap.
+	 * The file is forced to the disk before it is closed.
+	 *
+	 * @param db
+	 *            the database to write.
+	 * @param path
+	 *            the absolute path of the file.
+	 * @throws IOException
+	 */
+	public static void write(Database db, String path) throws IOException {
+		try (FileOutputStream fileOut = new FileOutputStream(path)) {
+			CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(fileOut, BUFFER_SIZE));
+			DataOutputStream out = new DataOutputStream(counter);
+			out.write(new byte[HEADER_SIZE]);
+
+			int termCount = db.termCount();
+			long[] termOffsets = new long[termCount];
+			int hashSlots = Integer.highestOneBit(Math.max(termCount, 1) * 2 - 1) << 1;
+			int[] hashTable = new int[hashSlots];
+			ArrayList<Relation> relations = new ArrayList<>();
+			for (int term = 0; term < termCount; term++) {
+				Data data = db.peekData(term);
+				byte[] bytes = data.getId().getBytes(StandardCharsets.UTF_8);
+				termOffsets[term] = counter.count;
+				out.writeByte(kindOf(data));
+				WriteAheadLog.writeVarInt(out, bytes.length);
+				out.write(bytes);
+				int slot = hash(bytes) & (hashSlots - 1);
+				while (hashTable[slot] != 0) {
+					slot = (slot + 1) & (hashSlots - 1);
+				}
+				hashTable[slot] = term + 1;
+				if (data instanceof Relation) {
+					relations.add((Relation) data);
+				}
+			}
+
+			long relationsOffset = counter.count;
+			WriteAheadLog.writeVarInt(out, relations.size());
+			for (Relation relation : relations) {
+				WriteAheadLog.writeVarInt(out, relation.getTerm());
+				WriteAheadLog.writeVarInt(out, flagsOf(relation));
+			}
+
+			int keyLimit = db.keyLimit();
+			long[] entryOffsets = new long[keyLimit];
+			int entryCount = 0;
+			for (int key = 1; key < keyLimit; key++) {
+				EntryData entryData = db.peekEntry(key);
+				if (entryData == null) {
+					continue;
+				}
+				entryOffsets[key] = counter.count;
+				entryCount++;
+				WriteAheadLog.writeVarInt(out, key);
+				WriteAheadLog.writeVarInt(out, entryData.getIdTerm());
+				WriteAheadLog.writeVarInt(out, entryData.relationCount());
+				for (int index = 0; index < entryData.relationCount(); index++) {
+					int relation = entryData.getRelationTerm(index);
+					TermList subjects = entryData.getSubjects(relation);
+					WriteAheadLog.writeVarInt(out, relation);
+					writeTerms(out, subjects);
+				}
+			}
+
+			long[] predicateOffsets = new long[termCount];
+			long[] objectOffsets = new long[termCount];
+			for (int term = 0; term < termCount; term++) {
+				predicateOffsets[term] = writeLevel(out, counter, db.peekPredicates(term));
+				objectOffsets[term] = writeLevel(out, counter, db.peekObjects(term));
+			}
+
+			long termOffsetsOffset = counter.count;
+			for (long offset : termOffsets) {
+				out.writeLong(offset);
+			}
+			long hashOffset = counter.count;
+			for (int slot : hashTable) {
+				out.writeInt(slot);
+			}
+			long keysOffset = counter.count;
+			for (int term = 0; term < termCount; term++) {
+				out.writeInt(db.findKey(term));
+			}
+			long entryOffsetsOffset = counter.count;
+			for (long offset : entryOffsets) {
+				out.writeLong(offset);
+			}
+			long predicateOffsetsOffset = counter.count;
+			for (long offset : predicateOffsets) {
+				out.writeLong(offset);
+			}
+			long objectOffsetsOffset = counter.count;
+			for (long offset : objectOffsets) {
+				out.writeLong(offset);
+			}
+			out.flush();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(0, MAGIC);
+			header.put(4, (byte) VERSION);
+			header.putInt(FLAGS, db.hasSharedIds() ? SHARED_IDS : 0);
+			header.putInt(TERM_COUNT, termCount);
+			header.putInt(KEY_LIMIT, keyLimit);
+			header.putInt(PRIMARY_INDEX, db.getPrimaryIndex());
+			header.putInt(ENTRY_COUNT, entryCount);
+			header.putLong(TRIPLE_COUNT, db.tripleCount());
+			header.putLong(RELATIONS_OFFSET, relationsOffset);
+			header.putLong(TERM_OFFSETS, termOffsetsOffset);
+			header.putLong(HASH_OFFSET, hashOffset);
+			header.putInt(HASH_SLOTS, hashSlots);
+			header.putLong(KEYS_OFFSET, keysOffset);
+			header.putLong(ENTRY_OFFSETS, entryOffsetsOffset);
+			header.putLong(PREDICATE_OFFSETS, predicateOffsetsOffset);
+			header.putLong(OBJECT_OFFSETS, objectOffsetsOffset);
+			fileOut.getChannel().write(header, 0);
+			// The file must be on the disk before it can be moved over a checkpoint
+			fileOut.getChannel().force(true);
+		}
+	}
+
+	/**
+	 * Writes a block of a permutation index: the number of first level terms,
+	 * then every term with its list.
+	 *
+	 * @return the position of the block, or 0 if it is empty.
+	 */
+	private static long writeLevel(DataOutputStream out, CountingOutputStream counter, Map<Integer, TermList> level)
+			throws IOException {
+		if (level == null || level.isEmpty()) {
+			return 0;
+		}
+		long offset = counter.count;
+		WriteAheadLog.writeVarInt(out, level.size());
+		for (Map.Entry<Integer, TermList> entry : level.entrySet()) {
+			WriteAheadLog.writeVarInt(out, entry.getKey());
+			writeTerms(out, entry.getValue());
+		}
+		return offset;
+	}
+
+	private static void writeTerms(DataOutputStream out, TermList terms) throws IOException {
+		WriteAheadLog.writeVarInt(out, terms.size());
+		for (int position = 0; position < terms.size(); position++) {
+			WriteAheadLog.writeVarInt(out, terms.get(position));
+		}
+	}
+
+	/**
+	 * Reads the whole database stored at path into the heap, in the binary format
+	 * or in one of the former Java serialization formats, which LegacyDatabase
+	 * reads.
+	 *
+	 * @param path
+	 *            the absolute path of the file.
+	 * @return the database read.
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static Database read(String path) throws IOException, ClassNotFoundException {
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(path), BUFFER_SIZE))) {
+			in.mark(4);
+			int magic = in.readInt();
+			if (magic >>> 16 == SERIALIZATION_MAGIC) {
+				in.reset();
+				return readSerialized(in);
+			}
+			if (magic != MAGIC) {
+				throw new IOException(path + " is not a KMP database");
+			}
+			int version = WriteAheadLog.readVarInt(in);
+			if (version > VERSION) {
+				throw new IOException("Unsupported KMP database version " + version);
+			}
+
+			Database db = new Database();
+			int termCount;
+			int primaryIndex;
+			int entryCount;
+			if (version == 1) {
+				termCount = WriteAheadLog.readVarInt(in);
+				readTerms(in, db, termCount, path);
+				readRelations(in, db);
+				primaryIndex = WriteAheadLog.readVarInt(in);
+				entryCount = WriteAheadLog.readVarInt(in);
+			} else {
+				byte[] header = new byte[HEADER_SIZE];
+				in.readFully(header, 5, HEADER_SIZE - 5);
+				ByteBuffer buffer = ByteBuffer.wrap(header);
+				termCount = buffer.getInt(TERM_COUNT);
+				primaryIndex = buffer.getInt(PRIMARY_INDEX);
+				entryCount = buffer.getInt(ENTRY_COUNT);
+				readTerms(in, db, termCount, path);
+				readRelations(in, db);
+			}
+			for (int index = 0; index < entryCount; index++) {
+				int key = WriteAheadLog.readVarInt(in);
+				EntryData entryData = new EntryData(WriteAheadLog.readVarInt(in));
+				int relationCount = WriteAheadLog.readVarInt(in);
+				for (int position = 0; position < relationCount; position++) {
+					int relation = WriteAheadLog.readVarInt(in);
+					int size = WriteAheadLog.readVarInt(in);
+					for (int subject = 0; subject < size; subject++) {
+						entryData.put(relation, WriteAheadLog.readVarInt(in));
+					}
+				}
+				db.restoreEntry(key, entryData);
+			}
+			db.setPrimaryIndex(primaryIndex);
+			return db;
+		}
+	}
+
+	/**
+	 * Opens the database stored at path. A version 2 file is mapped and decoded
+	 * lazily, older files are read like read(path) does.
+	 *
+	 * @param path
+	 *            the absolute path of the file.
+	 * @return the database opened.
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static Database map(String path) throws IOException, ClassNotFoundException {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(path))) {
+			if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+				return read(path);
+			}
+		}
+		return new Database(new MappedSnapshot(path));
+	}
+
+	private static void readTerms(DataInputStream in, Database db, int termCount, String path) throws IOException {
+		for (int term = 0; term < termCount; term++) {
+			Data data = newData(in.readByte(), readString(in));
+			if (data instanceof Relation) {
+				db.addRelation((Relation) data);
+			} else {
+				db.addSubject((Subject) data);
+			}
+			if (db.termCount() != term + 1) {
+				throw new IOException("Duplicate term " + data.getId() + " in " + path);
+			}
+		}
+	}
+
+	private static void readRelations(DataInputStream in, Database db) throws IOException {
+		int relationCount = WriteAheadLog.readVarInt(in);
+		for (int index = 0; index < relationCount; index++) {
+			Relation relation = db.getRelation(WriteAheadLog.readVarInt(in));
+			applyFlags(relation, WriteAheadLog.readVarInt(in));
+		}
+	}
+
+	private static Database readSerialized(InputStream in) throws IOException, ClassNotFoundException {
+		return LegacyDatabase.read(in);
+	}
+
+	/**
+	 * Creates the instance of Data matching a kind of term.
+	 */
+	static Data newData(byte kind, String id) {
+		switch (kind) {
+		case RELATION:
+			return new Relation(id);
+		case CLASS:
+			return new Class(id);
+		case INSTANCE:
+			return new Instance(id);
+		default:
+			return new Subject(id);
+		}
+	}
+
+	static byte kindOf(Data data) {
+		if (data instanceof Relation) {
+			return RELATION;
+		}
+		if (data instanceof Class) {
+			return CLASS;
+		}
+		if (data instanceof Instance) {
+			return INSTANCE;
+		}
+		return SUBJECT;
+	}
+
+	private static int flagsOf(Relation relation) {
+		int flags = 0;
+		for (Relation.Properties property : Relation.Properties.values()) {
+			if (relation.isPropertyActive(property)) {
+				flags |= 1 << property.ordinal();
+			}
+		}
+		return flags;
+	}
+
+	static void applyFlags(Relation relation, int flags) {
+		for (Relation.Properties property : Relation.Properties.values()) {
+			relation.setProperty(property, (flags & 1 << property.ordinal()) != 0);
+		}
+	}
+
+	/**
+	 * Hashes the UTF-8 bytes of an id string (FNV-1a) for the hash table of the
+	 * file.
+	 */
+	static int hash(byte[] bytes) {
+		int hash = 0x811C9DC5;
+		for (byte b : bytes) {
+			hash = (hash ^ (b & 0xFF)) * 0x01000193;
+		}
+		return hash ^ hash >>> 16;
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[WriteAheadLog.readVarInt(in)];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Counts the bytes written to a stream, to know the position of every
+	 * section in the file.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		private long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			out.write(buffer, offset, length);
+			count += length;
+		}
+	}
+}
@@ -0,0 +1,428 @@
+package persistence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import model.Data;
+import model.Relation;
+import model.Subject;
+
+/**
+ * This class lets queries run on other threads than the one writing to a
+ * database, without locks on either side. It keeps two replicas of the
+ * database, the front one being read by the queries while the back one is
+ * brought up to date by the writer. Every mutation of the database is recorded
+ * by the listener methods into a log per replica. When the writer reaches the
+ * end of a command it calls publish, which replays its log on the back replica
+ * and makes it the front one. A query acquires the front replica as a Snapshot
+ * and reads it until the snapshot is closed; the replica does not change in
+ * the meantime, since the writer never replays a log on a replica that is
+ * still acquired. Such a publication is postponed to the next call to publish,
+ * the writer never waits for the snapshots. A thread needing the changes of
+ * the writer to be published, such as a client reading its own writes, blocks
+ * in awaitPublication outside of the writer until the last snapshot of the
+ * back replica is closed, then has the writer publish again.
+ *
+ * The database, its listeners, publish and getPendingVersion are used by the
+ * writer thread only. acquire, awaitPublication and the snapshots can be used
+ * by any number of threads. Both
+ * replicas are complete copies of the database, so the memory it uses is
+ * tripled.
+ */
+public class SnapshotPublisher implements DatabaseListener {
+
+	private static final int TERM_ADDED = 0;
+	private static final int TERM_REMOVED = 1;
+	private static final int ENTRY_INSERTED = 2;
+	private static final int ENTRY_REPLACED = 3;
+	private static final int ENTRY_REMOVED = 4;
+	private static final int TRIPLE_ADDED = 5;
+	private static final int TRIPLE_REMOVED = 6;
+	private static final int PROPERTY_CHANGED = 7;
+	private static final int RESET = 8;
+
+	private Database database;
+	private volatile Replicas replicas;
+	private long version;
+
+	/**
+	 * Signals the threads of awaitPublication when a replica is released or
+	 * published.
+	 */
+	private final ReentrantLock releaseLock = new ReentrantLock();
+	private final Condition released = releaseLock.newCondition();
+
+	/**
+	 * Makes the publisher follow a database. Both replicas are copied from it if
+	 * it is not the database they were copied from, as after a reset, an import
+	 * or an undo replacing the database, and published as a new version.
+	 *
+	 * @param database
+	 *            the database written by the writer thread.
+	 */
+	public void attach(Database database) {
+		if (this.database != database) {
+			if (this.database != null) {
+				this.database.removeListener(this);
+			}
+			replicas = new Replicas(copy(database), copy(database), ++version);
+			database.addListener(this);
+			this.database = database;
+			signalWaiters();
+		}
+	}
+
+	/**
+	 * Makes the mutations recorded since the last publication visible to the
+	 * snapshots acquired from now on. Nothing is done if a snapshot of the
+	 * previous publication is still open.
+	 *
+	 * @return false if the publication is postponed.
+	 */
+	public boolean publish() {
+		Replicas current = replicas;
+		if (current == null) {
+			return true;
+		}
+		int front = current.front;
+		int back = 1 - front;
+		if (current.logs.get(front).isEmpty()) {
+			// The front replica already holds every mutation
+			return true;
+		}
+		if (current.readers.get(back) > 0) {
+			return false;
+		}
+		Database replica = current.databases[back];
+		for (Change change : current.logs.get(back)) {
+			change.apply(replica);
+		}
+		current.logs.get(back).clear();
+		current.versions[back] = ++version;
+		current.front = back;
+		signalWaiters();
+		return true;
+	}
+
+	/**
+	 * Returns the version the mutations recorded so far are published as, the
+	 * last published one if there are none.
+	 *
+	 * @return a version number, 0 if the publisher follows no database yet.
+	 */
+	public long getPendingVersion() {
+		Replicas current = replicas;
+		if (current == null) {
+			return 0;
+		}
+		return current.logs.get(current.front).isEmpty() ? current.versions[current.front] : version + 1;
+	}
+
+	/**
+	 * Blocks until a version is published, or until publish could publish it,
+	 * once the last snapshot of the back replica is closed. It can be called by
+	 * any thread; publish must then be called by the writer.
+	 *
+	 * @param version
+	 *            a number returned by getPendingVersion.
+	 * @return true if the version is published or the thread is interrupted,
+	 *         false if publish must be called.
+	 */
+	public boolean awaitPublication(long version) {
+		releaseLock.lock();
+		try {
+			while (true) {
+				Replicas current = replicas;
+				if (current == null || current.versions[current.front] >= version) {
+					return true;
+				}
+				if (current.readers.get(1 - current.front) == 0) {
+					return false;
+				}
+				try {
+					released.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return true;
+				}
+			}
+		} finally {
+			releaseLock.unlock();
+		}
+	}
+
+	private void signalWaiters() {
+		releaseLock.lock();
+		try {
+			released.signalAll();
+		} finally {
+			releaseLock.unlock();
+		}
+	}
+
+	/**
+	 * Releases a replica held by a snapshot, waking up the threads of
+	 * awaitPublication when its last snapshot is closed.
+	 */
+	private void release(Replicas current, int index) {
+		if (current.readers.decrementAndGet(index) == 0) {
+			signalWaiters();
+		}
+	}
+
+	/**
+	 * Acquires the last published version of the database. The snapshot must be
+	 * closed once its results are read, so that the writer can reuse its replica.
+	 *
+	 * @return an instance of Snapshot.
+	 * @throws IllegalStateException
+	 *             if the publisher follows no database yet.
+	 */
+	public Snapshot acquire() {
+		while (true) {
+			Replicas current = replicas;
+			if (current == null) {
+				throw new IllegalStateException("No database is published");
+			}
+			int front = current.front;
+			current.readers.incrementAndGet(front);
+			// The writer may have switched replicas before the increment was seen
+			if (replicas == current && current.front == front) {
+				return new Snapshot(this, current, front);
+			}
+			release(current, front);
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Returns the number of the last published version.
+	 *
+	 * @return a version number, 0 if nothing is published.
+	 */
+	public long getVersion() {
+		Replicas current = replicas;
+		return current != null ? current.versions[current.front] : 0;
+	}
+
+	private void record(Change change) {
+		Replicas current = replicas;
+		current.logs.get(0).add(change);
+		current.logs.get(1).add(change);
+	}
+
+	@Override
+	public void termAdded(Data data) {
+		record(new Change(TERM_ADDED, 0, 0, 0, copy(data)));
+	}
+
+	@Override
+	public void lastTermRemoved(Data data) {
+		record(new Change(TERM_REMOVED, 0, 0, 0, null));
+	}
+
+	@Override
+	public void entryInserted(int key, EntryData entryData) {
+		record(new Change(ENTRY_INSERTED, key, 0, 0, entryData.copy()));
+	}
+
+	@Override
+	public void entryReplaced(int key, EntryData previous, EntryData entryData) {
+		record(new Change(ENTRY_REPLACED, key, 0, 0, entryData.copy()));
+	}
+
+	@Override
+	public void lastEntryRemoved(int key, EntryData entryData) {
+		record(new Change(ENTRY_REMOVED, key, 0, 0, null));
+	}
+
+	@Override
+	public void tripleAdded(int id, int relation, int subject) {
+		record(new Change(TRIPLE_ADDED, id, relation, subject, null));
+	}
+
+	@Override
+	public void tripleRemoved(int id, int relation, int subject) {
+		record(new Change(TRIPLE_REMOVED, id, relation, subject, null));
+	}
+
+	@Override
+	public void propertyChanged(Relation relation, Relation.Properties property, boolean state) {
+		record(new Change(PROPERTY_CHANGED, relation.getTerm(), property.ordinal(), state ? 1 : 0, null));
+	}
+
+	@Override
+	public void databaseReset() {
+		record(new Change(RESET, 0, 0, 0, null));
+	}
+
+	/**
+	 * Copies every term, relation property and entry of a database.
+	 */
+	private static Database copy(Database source) {
+		Database copy = new Database();
+		int termCount = source.termCount();
+		for (int term = 0; term < termCount; term++) {
+			add(copy, copy(source.peekData(term)));
+		}
+		int keyLimit = source.keyLimit();
+		for (int key = 1; key < keyLimit; key++) {
+			EntryData entryData = source.peekEntry(key);
+			if (entryData != null) {
+				copy.restoreEntry(key, entryData.copy());
+			}
+		}
+		copy.setPrimaryIndex(source.getPrimaryIndex());
+		return copy;
+	}
+
+	/**
+	 * Creates an instance of Subject or Relation with the same id and properties
+	 * as data, but no term.
+	 */
+	private static Data copy(Data data) {
+		Data copy = SnapshotFile.newData(SnapshotFile.kindOf(data), data.getId());
+		if (data instanceof Relation) {
+			for (Relation.Properties property : Relation.Properties.values()) {
+				((Relation) copy).setProperty(property, ((Relation) data).isPropertyActive(property));
+			}
+		}
+		return copy;
+	}
+
+	private static void add(Database database, Data data) {
+		if (data instanceof Relation) {
+			database.addRelation((Relation) data);
+		} else {
+			database.addSubject((Subject) data);
+		}
+	}
+
+	/**
+	 * A mutation of the database, replayed on each replica in turn. Terms and
+	 * entries are copied again for each replica, so that replicas share nothing.
+	 */
+	private static final class Change {
+
+		private final int type;
+		private final int first;
+		private final int second;
+		private final int third;
+		private final Object value;
+
+		Change(int type, int first, int second, int third, Object value) {
+			this.type = type;
+			this.first = first;
+			this.second = second;
+			this.third = third;
+			this.value = value;
+		}
+
+		void apply(Database replica) {
+			switch (type) {
+			case TERM_ADDED:
+				add(replica, copy((Data) value));
+				break;
+			case TERM_REMOVED:
+				replica.removeLastTerm();
+				break;
+			case ENTRY_INSERTED:
+				replica.restoreEntry(first, ((EntryData) value).copy());
+				// Concurrent insertions may be notified out of the order of their keys
+				replica.setPrimaryIndex(Math.max(replica.getPrimaryIndex(), first + 1));
+				break;
+			case ENTRY_REPLACED:
+				replica.replaceEntry(first, ((EntryData) value).copy());
+				break;
+			case ENTRY_REMOVED:
+				replica.removeLastEntry();
+				break;
+			case TRIPLE_ADDED:
+				replica.addTriple(replica.getEntryData(replica.findKey(first)), second, third);
+				break;
+			case TRIPLE_REMOVED:
+				replica.removeTriple(replica.getEntryData(replica.findKey(first)), second, third);
+				break;
+			case PROPERTY_CHANGED:
+				replica.setRelationProperty(replica.getRelation(first), Relation.Properties.values()[second],
+						third != 0);
+				break;
+			case RESET:
+				replica.reset();
+				break;
+			default:
+				throw new IllegalStateException("Unknown change " + type);
+			}
+		}
+	}
+
+	/**
+	 * The two replicas of a database, the index of the front one, and the number
+	 * of open snapshots of each.
+	 */
+	private static final class Replicas {
+
+		private final Database[] databases;
+		private final AtomicIntegerArray readers = new AtomicIntegerArray(2);
+		private final long[] versions;
+		private final List<List<Change>> logs;
+		private volatile int front;
+
+		Replicas(Database first, Database second, long version) {
+			databases = new Database[] { first, second };
+			versions = new long[] { version, version };
+			logs = Arrays.asList(new ArrayList<Change>(), new ArrayList<Change>());
+		}
+	}
+
+	/**
+	 * A published version of the database, read by one thread. It stays valid
+	 * until it is closed.
+	 */
+	public static final class Snapshot implements AutoCloseable {
+
+		private final SnapshotPublisher publisher;
+		private final Replicas replicas;
+		private final int index;
+		private boolean closed;
+
+		private Snapshot(SnapshotPublisher publisher, Replicas replicas, int index) {
+			this.publisher = publisher;
+			this.replicas = replicas;
+			this.index = index;
+		}
+
+		/**
+		 * Returns the replica of the database, which must only be read.
+		 *
+		 * @return an instance of Database.
+		 */
+		public Database getDatabase() {
+			if (closed) {
+				throw new IllegalStateException("The snapshot is closed");
+			}
+			return replicas.databases[index];
+		}
+
+		/**
+		 * Returns the number of the published version.
+		 *
+		 * @return a version number.
+		 */
+		public long getVersion() {
+			return replicas.versions[index];
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				publisher.release(replicas, index);
+			}
+		}
+	}
+}
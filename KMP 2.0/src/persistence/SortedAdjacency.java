@@ -0,0 +1,105 @@
+package persistence;
+
+import java.util.Arrays;
+
+/**
+ * This class is a sorted adjacency index of one relation, in one direction:
+ * every id holding the relation associated with its subjects, or every subject
+ * associated with the ids pointing to it. Keys and the values of each key are
+ * sorted, as required by the leapfrog triejoin of the query engine, and stored
+ * in three arrays: the keys, the start of the values of each key and the
+ * values.
+ */
+public class SortedAdjacency {
+
+	private final int[] keys;
+	private final int[] starts;
+	private final int[] values;
+
+	/**
+	 * @param pairs
+	 *            pairs (key, value) packed as key << 32 | value, in any order.
+	 */
+	SortedAdjacency(long[] pairs) {
+		Arrays.sort(pairs);
+		int keyCount = 0;
+		int valueCount = 0;
+		for (int index = 0; index < pairs.length; index++) {
+			if (index == 0 || pairs[index] != pairs[index - 1]) {
+				valueCount++;
+				if (index == 0 || pairs[index] >>> 32 != pairs[index - 1] >>> 32) {
+					keyCount++;
+				}
+			}
+		}
+		keys = new int[keyCount];
+		starts = new int[keyCount + 1];
+		values = new int[valueCount];
+		int key = -1;
+		int value = 0;
+		for (int index = 0; index < pairs.length; index++) {
+			// Shared ids can produce the same pair twice
+			if (index > 0 && pairs[index] == pairs[index - 1]) {
+				continue;
+			}
+			if (index == 0 || pairs[index] >>> 32 != pairs[index - 1] >>> 32) {
+				keys[++key] = (int) (pairs[index] >>> 32);
+				starts[key] = value;
+			}
+			values[value++] = (int) pairs[index];
+		}
+		starts[keyCount] = valueCount;
+	}
+
+	/**
+	 * Returns the sorted keys. The array must not be modified.
+	 * 
+	 * @return an array of terms.
+	 */
+	public int[] getKeys() {
+		return keys;
+	}
+
+	/**
+	 * Returns the values of every key, one key after the other. The array must
+	 * not be modified.
+	 * 
+	 * @return an array of terms.
+	 */
+	public int[] getValues() {
+		return values;
+	}
+
+	/**
+	 * Returns the position of a key in getKeys.
+	 * 
+	 * @param key
+	 *            a term.
+	 * @return a position or a negative number if key is absent.
+	 */
+	public int indexOf(int key) {
+		return Arrays.binarySearch(keys, key);
+	}
+
+	/**
+	 * Returns the position in getValues of the first value of a key.
+	 * 
+	 * @param index
+	 *            a position in getKeys.
+	 * @return a position in getValues.
+	 */
+	public int getStart(int index) {
+		return starts[index];
+	}
+
+	/**
+	 * Returns the position in getValues following the last value of a key.
+	 * 
+	 * @param index
+	 *            a position in getKeys.
+	 * @return a position in getValues.
+	 */
+	public int getEnd(int index) {
+		return starts[index + 1];
+	}
+}
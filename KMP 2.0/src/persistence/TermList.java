@@ -0,0 +1,130 @@
+package persistence;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * This class is a growable list of term ids. It replaces lists of Subject
+ * objects wherever the database only needs to compare or store terms.
+ */
+public class TermList implements Serializable {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 1L;
+	private int[] terms;
+	private int size;
+
+	public TermList() {
+		terms = new int[2];
+	}
+
+	public TermList(int capacity) {
+		terms = new int[Math.max(capacity, 1)];
+	}
+
+	/**
+	 * Appends a term to the end of the list.
+	 * 
+	 * @param term
+	 *            a term id.
+	 */
+	public void add(int term) {
+		if (size == terms.length) {
+			terms = Arrays.copyOf(terms, size * 2);
+		}
+		terms[size++] = term;
+	}
+
+	/**
+	 * Appends a term to the end of the list unless it is already present.
+	 * 
+	 * @param term
+	 *            a term id.
+	 * @return a boolean indicating whether the term was added.
+	 */
+	public boolean addIfAbsent(int term) {
+		if (contains(term)) {
+			return false;
+		}
+		add(term);
+		return true;
+	}
+
+	/**
+	 * Returns the term stored at index.
+	 * 
+	 * @param index
+	 *            a position in the list.
+	 * @return a term id.
+	 */
+	public int get(int index) {
+		return terms[index];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns a boolean indicating the presence of a term in the list.
+	 * 
+	 * @param term
+	 *            a term id.
+	 * @return a boolean indicating the presence of term.
+	 */
+	public boolean contains(int term) {
+		return indexOf(term) >= 0;
+	}
+
+	/**
+	 * Returns the position of the first occurrence of a term, or -1.
+	 * 
+	 * @param term
+	 *            a term id.
+	 * @return the index of term or -1.
+	 */
+	public int indexOf(int term) {
+		for (int index = 0; index < size; index++) {
+			if (terms[index] == term) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Removes the first occurrence of a term, keeping the order of the others.
+	 * 
+	 * @param term
+	 *            a term id.
+	 * @return a boolean indicating whether the term was removed.
+	 */
+	public boolean remove(int term) {
+		int index = indexOf(term);
+		if (index < 0) {
+			return false;
+		}
+		System.arraycopy(terms, index + 1, terms, index, size - index - 1);
+		size--;
+		return true;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Returns a copy of the terms as an array.
+	 * 
+	 * @return an array of term ids.
+	 */
+	public int[] toArray() {
+		return Arrays.copyOf(terms, size);
+	}
+}
@@ -0,0 +1,398 @@
+package persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * This class reads a file of triples, one per line, written in the N-Triples
+ * style "subject predicate object ." or as CSV "subject,predicate,object". Files
+ * whose name ends with .csv are read as CSV. Blank lines and lines starting with
+ * '#' are skipped, as are lines without three terms.
+ *
+ * The insert and query syntax only read terms made of ASCII letters, digits
+ * and '_', so every term is mapped to such a name. An IRI keeps its local name,
+ * the part after its last '#', '/' or ':', so that
+ * "http://example.org/people#laurent" becomes "laurent". A blank node
+ * "_:b0" becomes "_b0". Then every other character of a term, such as the
+ * spaces and dots of a literal, is replaced by '_'. IRIs with the same local
+ * name in different namespaces therefore become the same term.
+ *
+ * The file is read in chunks of kmp.import.chunk bytes, 4 MiB by default, cut at
+ * line ends. Chunks are parsed by kmp.import.threads threads, the number of
+ * processors by default, each into a Batch whose triples refer to a dictionary
+ * local to the batch, so that parsing never touches the database. Batches are
+ * handed to a single writer by nextBatch in the order of the file. At most two
+ * chunks per thread are read ahead of the writer, so the memory used does not
+ * depend on the size of the file.
+ */
+public class TripleImporter implements Closeable {
+
+	private static final int CHUNK_SIZE = Integer.getInteger("kmp.import.chunk", 4 << 20);
+	private static final int THREADS = Integer.getInteger("kmp.import.threads",
+			Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Marks the end of the file in the queue of parsed chunks.
+	 */
+	private static final Future<Batch> END = CompletableFuture.completedFuture(null);
+
+	private final InputStream input;
+	private final boolean csv;
+	private final ExecutorService parsers;
+	private final BlockingQueue<Future<Batch>> parsed;
+	private final Thread reader;
+
+	/**
+	 * Starts reading and parsing a file.
+	 *
+	 * @param path
+	 *            the path of an N-Triples or CSV file.
+	 * @throws IOException
+	 */
+	public TripleImporter(String path) throws IOException {
+		input = Files.newInputStream(Paths.get(path));
+		csv = path.toLowerCase().endsWith(".csv");
+		int threads = Math.max(1, THREADS);
+		parsers = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "kmp-import-parser");
+			thread.setDaemon(true);
+			return thread;
+		});
+		parsed = new ArrayBlockingQueue<>(2 * threads);
+		reader = new Thread(this::read, "kmp-import-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Returns the next chunk of the file once it is parsed.
+	 *
+	 * @return an instance of Batch, or null at the end of the file.
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 */
+	public Batch nextBatch() throws IOException {
+		try {
+			return parsed.take().get();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.interrupt();
+		parsers.shutdownNow();
+		input.close();
+	}
+
+	/**
+	 * Cuts the file into chunks ending at a line end and submits them to the
+	 * parsing threads. A line longer than a chunk makes the chunk grow.
+	 */
+	private void read() {
+		Future<Batch> last = END;
+		try {
+			byte[] rest = new byte[0];
+			boolean end = false;
+			while (!end) {
+				byte[] chunk = Arrays.copyOf(rest, Math.max(CHUNK_SIZE, 2 * rest.length));
+				int length = rest.length;
+				int count = 0;
+				while (length < chunk.length && (count = input.read(chunk, length, chunk.length - length)) >= 0) {
+					length += count;
+				}
+				end = count < 0;
+				int lineEnd = end ? length : lastLineEnd(chunk, length);
+				rest = Arrays.copyOfRange(chunk, lineEnd, length);
+				if (lineEnd > 0) {
+					int chunkLength = lineEnd;
+					parsed.put(parsers.submit(() -> parse(chunk, chunkLength)));
+				}
+			}
+		} catch (IOException e) {
+			CompletableFuture<Batch> failure = new CompletableFuture<>();
+			failure.completeExceptionally(e);
+			last = failure;
+		} catch (InterruptedException | RejectedExecutionException e) {
+			// The importer was closed before the end of the file
+			return;
+		}
+		try {
+			parsed.put(last);
+		} catch (InterruptedException e) {
+			// The importer was closed before the writer read the end of the file
+		}
+	}
+
+	private static int lastLineEnd(byte[] chunk, int length) {
+		for (int index = length - 1; index >= 0; index--) {
+			if (chunk[index] == '\n') {
+				return index + 1;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Parses the lines of a chunk.
+	 */
+	private Batch parse(byte[] chunk, int length) {
+		String text = new String(chunk, 0, length, StandardCharsets.UTF_8);
+		Batch batch = new Batch();
+		String[] terms = new String[3];
+		int start = 0;
+		while (start < text.length()) {
+			int end = text.indexOf('\n', start);
+			if (end < 0) {
+				end = text.length();
+			}
+			String line = text.substring(start, end).trim();
+			start = end + 1;
+			if (line.isEmpty() || line.charAt(0) == '#') {
+				continue;
+			}
+			if (csv ? parseCsv(line, terms) : parseNTriples(line, terms)) {
+				batch.add(terms);
+			} else {
+				batch.skipped++;
+			}
+		}
+		return batch;
+	}
+
+	/**
+	 * Reads the three first fields of a CSV line. Fields may be quoted, a quote
+	 * inside a quoted field being doubled.
+	 */
+	private static boolean parseCsv(String line, String[] terms) {
+		int position = 0;
+		for (int index = 0; index < 3; index++) {
+			if (position > line.length()) {
+				return false;
+			}
+			StringBuilder field = new StringBuilder();
+			boolean quoted = false;
+			for (; position < line.length(); position++) {
+				char character = line.charAt(position);
+				if (quoted) {
+					if (character != '"') {
+						field.append(character);
+					} else if (position + 1 < line.length() && line.charAt(position + 1) == '"') {
+						field.append('"');
+						position++;
+					} else {
+						quoted = false;
+					}
+				} else if (character == '"') {
+					quoted = true;
+				} else if (character == ',') {
+					break;
+				} else {
+					field.append(character);
+				}
+			}
+			// Skip the separator
+			position++;
+			terms[index] = field.toString().trim();
+			if (terms[index].isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the three terms of an N-Triples line. An IRI between '<' and '>' is
+	 * read as its local name and a literal between quotes without its quotes, the
+	 * language tag or datatype of a literal being dropped. Other terms, such as
+	 * blank nodes, end at a whitespace.
+	 */
+	private static boolean parseNTriples(String line, String[] terms) {
+		int position = 0;
+		for (int index = 0; index < 3; index++) {
+			while (position < line.length() && Character.isWhitespace(line.charAt(position))) {
+				position++;
+			}
+			if (position >= line.length()) {
+				return false;
+			}
+			char first = line.charAt(position);
+			if (first == '<') {
+				int end = line.indexOf('>', position);
+				if (end < 0) {
+					return false;
+				}
+				terms[index] = localName(line.substring(position + 1, end));
+				position = end + 1;
+			} else if (first == '"') {
+				StringBuilder literal = new StringBuilder();
+				for (position++; position < line.length() && line.charAt(position) != '"'; position++) {
+					char character = line.charAt(position);
+					if (character == '\\' && position + 1 < line.length()) {
+						character = line.charAt(++position);
+					}
+					literal.append(character);
+				}
+				if (position >= line.length()) {
+					return false;
+				}
+				terms[index] = literal.toString();
+				// Skip the closing quote and a language tag or datatype
+				while (position < line.length() && !Character.isWhitespace(line.charAt(position))) {
+					position++;
+				}
+			} else {
+				int end = position;
+				while (end < line.length() && !Character.isWhitespace(line.charAt(end))) {
+					end++;
+				}
+				terms[index] = line.startsWith("_:", position) ? "_" + line.substring(position + 2, end)
+						: line.substring(position, end);
+				position = end;
+			}
+			if (terms[index].isEmpty() || index < 2 && terms[index].equals(".")) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the part of an IRI after its last '#', '/' or ':', or the whole IRI
+	 * if it ends with one of them.
+	 */
+	static String localName(String iri) {
+		int end = iri.length();
+		while (end > 0 && "#/:".indexOf(iri.charAt(end - 1)) >= 0) {
+			end--;
+		}
+		int start = end;
+		while (start > 0 && "#/:".indexOf(iri.charAt(start - 1)) < 0) {
+			start--;
+		}
+		return start < end ? iri.substring(start, end) : iri;
+	}
+
+	/**
+	 * Replaces every character of a term other than an ASCII letter, a digit or
+	 * '_' by '_'.
+	 */
+	static String queryName(String term) {
+		char[] characters = null;
+		for (int index = 0; index < term.length(); index++) {
+			char character = term.charAt(index);
+			if (!(character >= 'a' && character <= 'z' || character >= 'A' && character <= 'Z'
+					|| character >= '0' && character <= '9' || character == '_')) {
+				if (characters == null) {
+					characters = term.toCharArray();
+				}
+				characters[index] = '_';
+			}
+		}
+		return characters != null ? new String(characters) : term;
+	}
+
+	/**
+	 * The triples of a chunk of the file. Terms are numbered in the order they
+	 * first appear in the chunk, whatever their position in the triples.
+	 */
+	public static final class Batch {
+
+		private final ArrayList<String> terms = new ArrayList<>();
+		private final HashMap<String, Integer> localTerms = new HashMap<>();
+		private final TermList triples = new TermList();
+		private int skipped;
+
+		private void add(String[] triple) {
+			for (String tripleTerm : triple) {
+				String term = queryName(tripleTerm);
+				Integer local = localTerms.get(term);
+				if (local == null) {
+					local = terms.size();
+					localTerms.put(term, local);
+					terms.add(term);
+				}
+				triples.add(local);
+			}
+		}
+
+		/**
+		 * Returns the number of triples of the batch.
+		 *
+		 * @return a number of triples.
+		 */
+		public int size() {
+			return triples.size() / 3;
+		}
+
+		/**
+		 * Returns the number of distinct terms of the batch.
+		 *
+		 * @return a number of terms.
+		 */
+		public int termCount() {
+			return terms.size();
+		}
+
+		/**
+		 * Returns the string of a term of the batch.
+		 *
+		 * @param term
+		 *            a term number local to the batch.
+		 * @return a string.
+		 */
+		public String getTerm(int term) {
+			return terms.get(term);
+		}
+
+		/**
+		 * Returns the local number of the id of a triple.
+		 */
+		public int getId(int triple) {
+			return triples.get(3 * triple);
+		}
+
+		/**
+		 * Returns the local number of the relation of a triple.
+		 */
+		public int getRelation(int triple) {
+			return triples.get(3 * triple + 1);
+		}
+
+		/**
+		 * Returns the local number of the subject of a triple.
+		 */
+		public int getSubject(int triple) {
+			return triples.get(3 * triple + 2);
+		}
+
+		/**
+		 * Returns the number of lines of the chunk that could not be read as a
+		 * triple.
+		 *
+		 * @return a number of lines.
+		 */
+		public int getSkipped() {
+			return skipped;
+		}
+	}
+}
@@ -0,0 +1,366 @@
+package persistence;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import model.Data;
+import model.Relation;
+import model.Subject;
+
+/**
+ * This class keeps the undo and redo history of a database in memory. Every
+ * mutation reported by the database is recorded in the current step and a step
+ * is closed at the end of each user command. Undoing a step applies the inverse
+ * of its mutations in reverse order, redoing it applies them again, so both cost
+ * the size of the change rather than the size of the database.
+ *
+ * The history is bounded by a number of steps and by an estimation of the
+ * memory it uses. The oldest steps are forgotten first.
+ */
+public class UndoJournal implements DatabaseListener {
+
+	private static final int TERM_ADDED = 1;
+	private static final int TERM_REMOVED = 2;
+	private static final int ENTRY_INSERTED = 3;
+	private static final int ENTRY_REPLACED = 4;
+	private static final int ENTRY_REMOVED = 5;
+	private static final int TRIPLE_ADDED = 6;
+	private static final int TRIPLE_REMOVED = 7;
+	private static final int PROPERTY_CHANGED = 8;
+
+	/**
+	 * Estimated size of a recorded mutation and of a term or triple held by a
+	 * replaced database, in bytes.
+	 */
+	private static final long RECORD_SIZE = 16;
+	private static final long REFERENCE_SIZE = 8;
+	private static final long DATABASE_ELEMENT_SIZE = 64;
+
+	/**
+	 * A step of the history. Mutations are stored as four ints: a type and three
+	 * arguments. Arguments referring to objects are indices in the objects list.
+	 * A step created by a reset or an import replaces the whole database instead.
+	 */
+	private static class Step {
+		private final TermList records = new TermList(8);
+		private final ArrayList<Object> objects = new ArrayList<>();
+		private Database before;
+		private Database after;
+
+		private void add(int type, int first, int second, int third) {
+			records.add(type);
+			records.add(first);
+			records.add(second);
+			records.add(third);
+		}
+
+		private int addObject(Object object) {
+			objects.add(object);
+			return objects.size() - 1;
+		}
+
+		private boolean isEmpty() {
+			return records.isEmpty() && before == null;
+		}
+
+		private long estimatedSize() {
+			if (before != null) {
+				return DATABASE_ELEMENT_SIZE * (before.termCount() + before.tripleCount());
+			}
+			return RECORD_SIZE * (records.size() / 4) + REFERENCE_SIZE * objects.size();
+		}
+	}
+
+	private final ArrayDeque<Step> undoSteps = new ArrayDeque<>();
+	private final ArrayDeque<Step> redoSteps = new ArrayDeque<>();
+	private Step current = new Step();
+	private boolean applying = false;
+	private int depth = 100;
+	private long memoryCap = 64L * 1024 * 1024;
+	private long memoryUsed = 0;
+
+	/**
+	 * Sets the maximum number of steps that can be undone.
+	 *
+	 * @param depth
+	 *            a number of steps.
+	 */
+	public void setDepth(int depth) {
+		this.depth = Math.max(0, depth);
+		trim();
+	}
+
+	/**
+	 * Sets the maximum amount of memory the history should use, in bytes.
+	 *
+	 * @param memoryCap
+	 *            a number of bytes.
+	 */
+	public void setMemoryCap(long memoryCap) {
+		this.memoryCap = memoryCap;
+		trim();
+	}
+
+	/**
+	 * Closes the current step. A non-empty step becomes the next one to undo and
+	 * the redo history is discarded.
+	 */
+	public void commit() {
+		if (current.isEmpty()) {
+			return;
+		}
+		push(current);
+		current = new Step();
+		for (Step step : redoSteps) {
+			memoryUsed -= step.estimatedSize();
+		}
+		redoSteps.clear();
+	}
+
+	/**
+	 * Records that a command replaced the whole database, as a reset or an import
+	 * does. The replaced instance is kept so that the command can be undone.
+	 *
+	 * @param before
+	 *            the replaced database.
+	 * @param after
+	 *            the new database.
+	 */
+	public void replaced(Database before, Database after) {
+		commit();
+		Step step = new Step();
+		step.before = before;
+		step.after = after;
+		current = step;
+		commit();
+	}
+
+	public boolean canUndo() {
+		return !undoSteps.isEmpty() || !current.isEmpty();
+	}
+
+	public boolean canRedo() {
+		return !redoSteps.isEmpty();
+	}
+
+	/**
+	 * Undoes the last step.
+	 *
+	 * @param db
+	 *            the current database.
+	 * @return the database after the step is undone, which is another instance
+	 *         if the step replaced the database.
+	 */
+	public Database undo(Database db) {
+		commit();
+		Step step = undoSteps.pollLast();
+		if (step == null) {
+			return db;
+		}
+		redoSteps.addLast(step);
+		if (step.before != null) {
+			return step.before;
+		}
+		applying = true;
+		try {
+			TermList records = step.records;
+			for (int index = records.size() - 4; index >= 0; index -= 4) {
+				revert(db, step, records.get(index), records.get(index + 1), records.get(index + 2),
+						records.get(index + 3));
+			}
+		} finally {
+			applying = false;
+		}
+		return db;
+	}
+
+	/**
+	 * Redoes the last undone step.
+	 *
+	 * @param db
+	 *            the current database.
+	 * @return the database after the step is redone, which is another instance if
+	 *         the step replaced the database.
+	 */
+	public Database redo(Database db) {
+		Step step = redoSteps.pollLast();
+		if (step == null) {
+			return db;
+		}
+		undoSteps.addLast(step);
+		if (step.after != null) {
+			return step.after;
+		}
+		applying = true;
+		try {
+			TermList records = step.records;
+			for (int index = 0; index < records.size(); index += 4) {
+				replay(db, step, records.get(index), records.get(index + 1), records.get(index + 2),
+						records.get(index + 3));
+			}
+		} finally {
+			applying = false;
+		}
+		return db;
+	}
+
+	/**
+	 * Forgets the whole history.
+	 */
+	public void clear() {
+		undoSteps.clear();
+		redoSteps.clear();
+		current = new Step();
+		memoryUsed = 0;
+	}
+
+	private void push(Step step) {
+		undoSteps.addLast(step);
+		memoryUsed += step.estimatedSize();
+		trim();
+	}
+
+	/**
+	 * Forgets the oldest steps until the history fits its depth and memory cap.
+	 */
+	private void trim() {
+		while (!undoSteps.isEmpty() && (undoSteps.size() > depth || memoryUsed > memoryCap)) {
+			memoryUsed -= undoSteps.pollFirst().estimatedSize();
+		}
+	}
+
+	private void revert(Database db, Step step, int type, int first, int second, int third) {
+		switch (type) {
+		case TERM_ADDED:
+			db.removeLastTerm();
+			break;
+		case TERM_REMOVED:
+			addTerm(db, (Data) step.objects.get(first));
+			break;
+		case ENTRY_INSERTED:
+			db.removeLastEntry();
+			break;
+		case ENTRY_REPLACED:
+			EntryData previous = (EntryData) step.objects.get(second);
+			if (previous != null) {
+				db.replaceEntry(first, previous);
+			}
+			break;
+		case ENTRY_REMOVED:
+			db.insert((EntryData) step.objects.get(second));
+			break;
+		case TRIPLE_ADDED:
+			db.removeTriple(db.getEntryData(db.findKey(first)), second, third);
+			break;
+		case TRIPLE_REMOVED:
+			db.addTriple(db.getEntryData(db.findKey(first)), second, third);
+			break;
+		case PROPERTY_CHANGED:
+			db.setRelationProperty((Relation) step.objects.get(first), Relation.Properties.values()[second],
+					third == 0);
+			break;
+		}
+	}
+
+	private void replay(Database db, Step step, int type, int first, int second, int third) {
+		switch (type) {
+		case TERM_ADDED:
+			addTerm(db, (Data) step.objects.get(first));
+			break;
+		case TERM_REMOVED:
+			db.removeLastTerm();
+			break;
+		case ENTRY_INSERTED:
+			db.insert((EntryData) step.objects.get(second));
+			break;
+		case ENTRY_REPLACED:
+			db.replaceEntry(first, (EntryData) step.objects.get(third));
+			break;
+		case ENTRY_REMOVED:
+			db.removeLastEntry();
+			break;
+		case TRIPLE_ADDED:
+			db.addTriple(db.getEntryData(db.findKey(first)), second, third);
+			break;
+		case TRIPLE_REMOVED:
+			db.removeTriple(db.getEntryData(db.findKey(first)), second, third);
+			break;
+		case PROPERTY_CHANGED:
+			db.setRelationProperty((Relation) step.objects.get(first), Relation.Properties.values()[second],
+					third != 0);
+			break;
+		}
+	}
+
+	private static void addTerm(Database db, Data data) {
+		if (data instanceof Relation) {
+			db.addRelation((Relation) data);
+		} else {
+			db.addSubject((Subject) data);
+		}
+	}
+
+	@Override
+	public void termAdded(Data data) {
+		if (!applying) {
+			current.add(TERM_ADDED, current.addObject(data), 0, 0);
+		}
+	}
+
+	@Override
+	public void lastTermRemoved(Data data) {
+		if (!applying) {
+			current.add(TERM_REMOVED, current.addObject(data), 0, 0);
+		}
+	}
+
+	@Override
+	public void entryInserted(int key, EntryData entryData) {
+		if (!applying) {
+			current.add(ENTRY_INSERTED, key, current.addObject(entryData), 0);
+		}
+	}
+
+	@Override
+	public void entryReplaced(int key, EntryData previous, EntryData entryData) {
+		if (!applying) {
+			current.add(ENTRY_REPLACED, key, current.addObject(previous), current.addObject(entryData));
+		}
+	}
+
+	@Override
+	public void lastEntryRemoved(int key, EntryData entryData) {
+		if (!applying) {
+			current.add(ENTRY_REMOVED, key, current.addObject(entryData), 0);
+		}
+	}
+
+	@Override
+	public void tripleAdded(int id, int relation, int subject) {
+		if (!applying) {
+			current.add(TRIPLE_ADDED, id, relation, subject);
+		}
+	}
+
+	@Override
+	public void tripleRemoved(int id, int relation, int subject) {
+		if (!applying) {
+			current.add(TRIPLE_REMOVED, id, relation, subject);
+		}
+	}
+
+	@Override
+	public void propertyChanged(Relation relation, Relation.Properties property, boolean state) {
+		if (!applying) {
+			current.add(PROPERTY_CHANGED, current.addObject(relation), property.ordinal(), state ? 1 : 0);
+		}
+	}
+
+	@Override
+	public void databaseReset() {
+		if (!applying) {
+			// An in-place reset cannot be inverted from its records
+			clear();
+		}
+	}
+}
@@ -0,0 +1,581 @@
+package persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+import model.Data;
+import model.Relation;
+import model.Subject;
+
+/**
+ * This class is an append-only log of the mutations of a Database. Every
+ * mutation is written as a compact binary record when it happens, so that a
+ * command only costs the size of its changes. The log is replayed on top of the
+ * last full snapshot (the checkpoint) when the database is loaded, and it is
+ * truncated every time a new checkpoint is written.
+ *
+ * A COMMIT record ends the records of every command, and a new log starts with
+ * one. Records may reach the file before their command ends, when the buffer
+ * is full, so the replay only applies the records followed by a COMMIT and
+ * removes the others from the file. A log holding no COMMIT record at all was
+ * written before they existed and is applied entirely.
+ *
+ * The durability of a commit depends on the Durability of the log. With SYNC
+ * the committing thread forces the file itself, every syncInterval commits.
+ * With GROUP and ASYNC a GroupCommitter forces the file in the background for
+ * the commits of every thread at once; with GROUP the committing thread then
+ * waits for its commit in awaitDurability, with ASYNC nobody waits and the last
+ * commits may be lost by a crash. Once the committer fails to force the file,
+ * the next commit throws its failure, so that a checkpoint writes the commits
+ * it could not force and lets it force the following ones.
+ */
+public class WriteAheadLog implements DatabaseListener {
+
+	private static final byte SUBJECT = 1;
+	private static final byte RELATION = 2;
+	private static final byte ENTRY = 3;
+	private static final byte REPLACE = 4;
+	private static final byte REMOVE_LAST = 5;
+	private static final byte TRIPLE_ADDED = 6;
+	private static final byte TRIPLE_REMOVED = 7;
+	private static final byte PROPERTY = 8;
+	private static final byte RESET = 9;
+	private static final byte REMOVE_TERM = 10;
+	private static final byte COMMIT = 11;
+
+	/**
+	 * The ways a commit can be made durable.
+	 */
+	public enum Durability {
+		SYNC, GROUP, ASYNC
+	}
+
+	private final FileOutputStream fileOut;
+	private final DataOutputStream out;
+	private int syncInterval = 1;
+	private int checkpointInterval = 10000;
+	private int commitsSinceSync = 0;
+	private int recordsSinceCheckpoint = 0;
+	private int recordsSinceCommit = 0;
+	private long commits = 0;
+	private Durability durability = Durability.SYNC;
+	private GroupCommitter committer;
+	private IOException failure;
+
+	/**
+	 * Opens the log at path in append mode, creating it if needed.
+	 * 
+	 * @param path
+	 *            the absolute path of the log file.
+	 * @throws IOException
+	 */
+	public WriteAheadLog(String path) throws IOException {
+		fileOut = new FileOutputStream(path, true);
+		out = new DataOutputStream(new BufferedOutputStream(fileOut));
+		if (fileOut.getChannel().size() == 0) {
+			out.writeByte(COMMIT);
+		}
+	}
+
+	/**
+	 * Sets the number of commits between two fsync calls. 1 makes every commit
+	 * durable, higher values trade durability of the last commits for speed.
+	 * 
+	 * @param syncInterval
+	 *            a number of commits, at least 1.
+	 */
+	public void setSyncInterval(int syncInterval) {
+		this.syncInterval = Math.max(1, syncInterval);
+	}
+
+	/**
+	 * Sets the number of records after which a checkpoint is required.
+	 * 
+	 * @param checkpointInterval
+	 *            a number of records.
+	 */
+	public void setCheckpointInterval(int checkpointInterval) {
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	/**
+	 * Sets how commits are made durable. GROUP and ASYNC start a committer
+	 * forcing the file once the oldest commit not forced yet is interval
+	 * milliseconds old or once the commits not forced yet hold records records.
+	 * 
+	 * @param durability
+	 *            SYNC, GROUP or ASYNC.
+	 * @param interval
+	 *            a number of milliseconds, used by GROUP and ASYNC.
+	 * @param records
+	 *            a number of records, used by GROUP and ASYNC.
+	 */
+	public void setDurability(Durability durability, long interval, int records) {
+		if (committer != null) {
+			committer.close();
+			committer = null;
+		}
+		this.durability = durability;
+		if (durability != Durability.SYNC) {
+			committer = new GroupCommitter(fileOut.getChannel(), interval, records);
+		}
+	}
+
+	/**
+	 * Ends a command: a COMMIT record follows its records, which are written to
+	 * the file and, with SYNC durability every syncInterval commits, forced to the
+	 * disk. With GROUP and ASYNC durability they are forced later by the
+	 * committer. A failure to write one of the records of the command, or of the
+	 * committer to force the file, is reported here, and no COMMIT record is
+	 * written, so the log must be truncated by a checkpoint before it is used
+	 * again.
+	 * 
+	 * The records of a command that threw before its end are committed with the
+	 * next one, as its changes are left in the database.
+	 * 
+	 * @return the number of the commit, for awaitDurability.
+	 * @throws IOException
+	 */
+	public long commit() throws IOException {
+		if (failure != null) {
+			IOException e = failure;
+			failure = null;
+			throw e;
+		}
+		if (committer != null) {
+			committer.checkFailure();
+		}
+		if (recordsSinceCommit > 0) {
+			out.writeByte(COMMIT);
+		}
+		out.flush();
+		commits++;
+		recordsSinceCheckpoint += recordsSinceCommit;
+		if (committer != null) {
+			committer.committed(commits, recordsSinceCommit);
+		} else if (++commitsSinceSync >= syncInterval) {
+			sync();
+		}
+		recordsSinceCommit = 0;
+		return commits;
+	}
+
+	/**
+	 * Blocks until a commit is forced to the disk with GROUP durability. Returns
+	 * at once with SYNC durability, where commit already forced the file, and
+	 * with ASYNC durability. Unlike the other methods, it can be called by any
+	 * thread.
+	 * 
+	 * @param commit
+	 *            a number returned by commit.
+	 * @throws IOException
+	 *             if the file could not be forced.
+	 */
+	public void awaitDurability(long commit) throws IOException {
+		GroupCommitter current = committer;
+		if (durability == Durability.GROUP && current != null) {
+			current.await(commit);
+		}
+	}
+
+	/**
+	 * Forces every record written so far to the disk.
+	 * 
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		out.flush();
+		fileOut.getChannel().force(false);
+		commitsSinceSync = 0;
+		if (committer != null) {
+			committer.forced();
+		}
+	}
+
+	/**
+	 * Returns a boolean indicating that enough records were logged since the last
+	 * checkpoint for a new one to be written.
+	 * 
+	 * @return whether a checkpoint is required.
+	 */
+	public boolean checkpointRequired() {
+		return recordsSinceCheckpoint >= checkpointInterval;
+	}
+
+	/**
+	 * Empties the log, records not committed yet included. It must only be called
+	 * once a checkpoint containing every logged record is safely written.
+	 * 
+	 * @throws IOException
+	 */
+	public void truncate() throws IOException {
+		out.flush();
+		fileOut.getChannel().truncate(0);
+		fileOut.getChannel().force(true);
+		failure = null;
+		out.writeByte(COMMIT);
+		commitsSinceSync = 0;
+		recordsSinceCheckpoint = 0;
+		recordsSinceCommit = 0;
+		if (committer != null) {
+			// The checkpoint holds every commit
+			committer.forced();
+		}
+	}
+
+	/**
+	 * Forces the remaining records to the disk and closes the log.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		sync();
+		if (committer != null) {
+			committer.close();
+		}
+		out.close();
+	}
+
+	@Override
+	public void termAdded(Data data) {
+		try {
+			out.writeByte(data instanceof Relation ? RELATION : SUBJECT);
+			out.writeUTF(data.getId());
+			recordsSinceCommit++;
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	@Override
+	public void lastTermRemoved(Data data) {
+		try {
+			out.writeByte(REMOVE_TERM);
+			recordsSinceCommit++;
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	@Override
+	public void entryInserted(int key, EntryData entryData) {
+		try {
+			out.writeByte(ENTRY);
+			writeVarInt(out, key);
+			writeEntry(out, entryData);
+			recordsSinceCommit++;
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	@Override
+	public void entryReplaced(int key, EntryData previous, EntryData entryData) {
+		try {
+			out.writeByte(REPLACE);
+			writeVarInt(out, key);
+			writeEntry(out, entryData);
+			recordsSinceCommit++;
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	@Override
+	public void lastEntryRemoved(int key, EntryData entryData) {
+		try {
+			out.writeByte(REMOVE_LAST);
+			recordsSinceCommit++;
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	@Override
+	public void tripleAdded(int id, int relation, int subject) {
+		writeTriple(TRIPLE_ADDED, id, relation, subject);
+	}
+
+	@Override
+	public void tripleRemoved(int id, int relation, int subject) {
+		writeTriple(TRIPLE_REMOVED, id, relation, subject);
+	}
+
+	@Override
+	public void propertyChanged(Relation relation, Relation.Properties property, boolean state) {
+		try {
+			out.writeByte(PROPERTY);
+			writeVarInt(out, relation.getTerm());
+			out.writeByte(state ? property.ordinal() | 0x80 : property.ordinal());
+			recordsSinceCommit++;
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	@Override
+	public void databaseReset() {
+		try {
+			out.writeByte(RESET);
+			recordsSinceCommit++;
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Keeps the first write failure until the next commit, since listeners cannot
+	 * throw IOException.
+	 */
+	private void fail(IOException e) {
+		if (failure == null) {
+			failure = e;
+		}
+	}
+
+	private void writeTriple(byte type, int id, int relation, int subject) {
+		try {
+			out.writeByte(type);
+			writeVarInt(out, id);
+			writeVarInt(out, relation);
+			writeVarInt(out, subject);
+			recordsSinceCommit++;
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Writes the id and every triple of an entry, so that the record does not
+	 * depend on triples added before the entry was inserted.
+	 */
+	private static void writeEntry(DataOutput out, EntryData entryData) throws IOException {
+		writeVarInt(out, entryData.getIdTerm());
+		writeVarInt(out, entryData.relationCount());
+		for (int index = 0; index < entryData.relationCount(); index++) {
+			int relation = entryData.getRelationTerm(index);
+			TermList subjects = entryData.getSubjects(relation);
+			writeVarInt(out, relation);
+			writeVarInt(out, subjects.size());
+			for (int position = 0; position < subjects.size(); position++) {
+				writeVarInt(out, subjects.get(position));
+			}
+		}
+	}
+
+	private static EntryData readEntry(DataInput in) throws IOException {
+		EntryData entryData = new EntryData(readVarInt(in));
+		int relationCount = readVarInt(in);
+		for (int index = 0; index < relationCount; index++) {
+			int relation = readVarInt(in);
+			int size = readVarInt(in);
+			for (int position = 0; position < size; position++) {
+				entryData.put(relation, readVarInt(in));
+			}
+		}
+		return entryData;
+	}
+
+	/**
+	 * Applies every committed record of the log at path to a database. The
+	 * records of a command are kept until its COMMIT record is read, those of a
+	 * command which did not end before a crash, or cut short by it, are not
+	 * applied and are removed from the file.
+	 * 
+	 * @param db
+	 *            the database loaded from the last checkpoint.
+	 * @param path
+	 *            the absolute path of the log file.
+	 * @return the number of records applied.
+	 * @throws IOException
+	 */
+	public static int replay(Database db, String path) throws IOException {
+		if (!Files.exists(Paths.get(path))) {
+			return 0;
+		}
+		int records = 0;
+		long validLength = 0;
+		long committedLength = -1;
+		ArrayList<Consumer<Database>> pending = new ArrayList<>();
+		try (CountingInputStream counter = new CountingInputStream(
+				new BufferedInputStream(new FileInputStream(path)))) {
+			DataInputStream in = new DataInputStream(counter);
+			while (true) {
+				int type = counter.read();
+				if (type < 0) {
+					break;
+				}
+				if (type == COMMIT) {
+					for (Consumer<Database> record : pending) {
+						record.accept(db);
+					}
+					records += pending.size();
+					pending.clear();
+					committedLength = counter.count;
+					continue;
+				}
+				try {
+					pending.add(read((byte) type, in));
+				} catch (EOFException e) {
+					System.out.println("Incomplete record at the end of the log, it is discarded.");
+					break;
+				}
+				validLength = counter.count;
+			}
+		}
+		if (committedLength < 0) {
+			// A log written before COMMIT records existed
+			for (Consumer<Database> record : pending) {
+				record.accept(db);
+			}
+			records += pending.size();
+		} else {
+			if (!pending.isEmpty()) {
+				System.out.println("Records of a command which did not end are discarded from the log.");
+			}
+			validLength = committedLength;
+		}
+		if (validLength < Files.size(Paths.get(path))) {
+			try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+				file.setLength(validLength);
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Reads a record whose type was read, and returns how to apply it.
+	 */
+	private static Consumer<Database> read(byte type, DataInputStream in) throws IOException {
+		switch (type) {
+		case SUBJECT: {
+			String id = in.readUTF();
+			return db -> db.addSubject(new Subject(id));
+		}
+		case RELATION: {
+			String id = in.readUTF();
+			return db -> db.addRelation(new Relation(id));
+		}
+		case ENTRY: {
+			// Keys are handed out again in the same order, the logged one is only informative
+			readVarInt(in);
+			EntryData entryData = readEntry(in);
+			return db -> db.insert(entryData);
+		}
+		case REPLACE: {
+			int key = readVarInt(in);
+			EntryData entryData = readEntry(in);
+			return db -> db.replaceEntry(key, entryData);
+		}
+		case REMOVE_LAST:
+			return db -> db.removeLastEntry();
+		case TRIPLE_ADDED:
+		case TRIPLE_REMOVED: {
+			int id = readVarInt(in);
+			int relation = readVarInt(in);
+			int subject = readVarInt(in);
+			return db -> {
+				EntryData entryData = db.getEntryData(db.findKey(id));
+				if (entryData != null) {
+					if (type == TRIPLE_ADDED) {
+						db.addTriple(entryData, relation, subject);
+					} else {
+						db.removeTriple(entryData, relation, subject);
+					}
+				}
+			};
+		}
+		case PROPERTY: {
+			int relation = readVarInt(in);
+			int property = in.readUnsignedByte();
+			return db -> db.setRelationProperty(db.getRelation(relation),
+					Relation.Properties.values()[property & 0x7F], (property & 0x80) != 0);
+		}
+		case RESET:
+			return db -> db.reset();
+		case REMOVE_TERM:
+			return db -> db.removeLastTerm();
+		default:
+			throw new IOException("Unknown record type " + type + " in the log");
+		}
+	}
+
+	/**
+	 * Writes a non-negative int using 1 to 5 bytes, 7 bits at a time.
+	 */
+	static void writeVarInt(DataOutput out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	/**
+	 * Reads an int written by writeVarInt.
+	 */
+	static int readVarInt(DataInput in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Counts the bytes consumed from a stream, to know where the last complete
+	 * record ends.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+
+		private long count = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int read = super.read(buffer, offset, length);
+			if (read > 0) {
+				count += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+}
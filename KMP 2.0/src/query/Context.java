@@ -2,27 +2,31 @@ package query;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
-import model.Data;
-import model.Relation;
-import model.Subject;
 import persistence.Database;
 import persistence.EntryData;
+import persistence.TermList;
 /**
- * This class is used to parse the query of the user, finds all the values of a variable and generates a result.
+ * This class is used to evaluate the compiled query of the user, finds all the values of a variable and generates a result.
+ * Every value handled during evaluation is a term id; strings are only resolved for the constants of the query.
  */
 public class Context {
 
-	private ArrayList<Data[]> globalMatrix;
-	private HashMap<String, ArrayList<Data>> globalVariables;
+	private ArrayList<int[]> globalMatrix;
+	private HashMap<String, TermList> globalVariables;
 
-	private ArrayList<ArrayList<Data>> currentMatrix;
-	private HashMap<String, ArrayList<Data>> currentVariables;
+	private ArrayList<int[]> currentMatrix;
+	private LinkedHashMap<String, TermList> currentVariables;
 
 	private HashMap<String, Integer> currentVariableIndices;
 	private HashMap<String, Integer> globalVariableIndices;
@@ -43,10 +47,36 @@ public class Context {
 	
 	private boolean associatedView = false;
 
+	/**
+	 * Set by the system property kmp.query.streaming to evaluate every query with
+	 * the pull-based operators, not only the ones with a LIMIT or an OFFSET.
+	 */
+	private static final boolean STREAMING = Boolean.getBoolean("kmp.query.streaming");
+
+	/**
+	 * Number of threads scanning and joining partitions of the data, read from the
+	 * system property kmp.query.parallelism, the number of processors by default.
+	 * A scan or a join is only split when it has at least kmp.query.partition
+	 * items, 4096 by default, per partition.
+	 */
+	private static final int PARALLELISM = Math.max(1,
+			Integer.getInteger("kmp.query.parallelism", Runtime.getRuntime().availableProcessors()));
+	private static final int PARTITION_SIZE = Math.max(1, Integer.getInteger("kmp.query.partition", 4096));
+	private static ForkJoinPool pool;
+
+	// Shape of the condition being scanned
+	private boolean leftVariable;
+	private boolean middleVariable;
+	private boolean rightVariable;
+	private boolean rightRepeatsLeft;
+	private int width;
+	private Set<Integer> relationValues;
+	private Set<Integer> subjectValues;
+
 	public Context(Database database) {
 		this.database = database;
 		currentMatrix = new ArrayList<>();
-		currentVariables = new HashMap<>();
+		currentVariables = new LinkedHashMap<>();
 		currentVariableIndices = new HashMap<>();
 		currentVariableTypes = new HashMap<>();
 		globalMatrix = new ArrayList<>();
@@ -57,34 +87,35 @@ public class Context {
 
 	/**
 	 * Method used to process queries written in a loosely based SPARQL-like
-	 * language. The method splits the query in two, the left side corresponding to
-	 * the SELECT phase, the right corresponding to the WHERE phase.
-	 *
+	 * language. The query is compiled by QueryCompiler, see generateResult(QueryPlan).
+	 * 
 	 * @param query
 	 *            a string corresponding to a user entry.
 	 * @return an instance of Result.
 	 */
 	public Result generateResult(String query) {
+		return generateResult(QueryCompiler.compile(database, query));
+	}
 
-		// Split the query into its SELECT phase and its WHERE phase
-		String[] splitQuery = query.split(":");
-
-		String selectStatement = splitQuery[0];
-		String[] selectorStrings = selectStatement.split(",");
-		// Remove unnecessary whitespace around each selector variable
-		List<String> selectorList = Arrays.asList(selectorStrings).stream().map(String::trim)
-				.collect(Collectors.toList());
-		selectorStrings = selectorList.toArray(new String[selectorList.size()]);
+	/**
+	 * Evaluates a compiled query. The conditions of the WHERE phase are evaluated
+	 * in the order of the plan and joined into the global matrix, from which the
+	 * variables of the SELECT phase are read.
+	 * 
+	 * @param plan
+	 *            an instance of QueryPlan compiled against the database.
+	 * @return an instance of Result.
+	 */
+	public Result generateResult(QueryPlan plan) {
+		if (plan.isBounded() || STREAMING || plan.getLeapfrogVariables() != null) {
+			return streamResult(plan);
+		}
 
-		String whereStatement = splitQuery[1]; // where -> ?X is ?Y & ?X has ?Z
-		// ...
-		// Split each WHERE substatement by '&'
-		String[] conditionStatements = whereStatement.split("&"); // condition statement -> ?X is ?Y
-		// Remove unnecessary whitespace around each condition statement
-		conditionStatements = Arrays.asList(conditionStatements).stream().map(String::trim).toArray(String[]::new);
+		String[] selectorStrings = plan.getSelectors();
+		QueryPlan.Pattern[] patterns = plan.getPatterns();
 
 		// Iterate through all the conditions of the WHERE statement
-		for (String conditionStatement : conditionStatements) {
+		for (int conditionIndex = 0; conditionIndex < patterns.length; conditionIndex++) {
 
 			// Clear previous variables
 			currentMatrix.clear();
@@ -92,237 +123,15 @@ public class Context {
 			currentVariableIndices.clear();
 			currentVariableTypes.clear();
 
-			String[] conditionStrings = conditionStatement.split(" ");
-			if (conditionStrings[0].isEmpty()) {
-				conditionStrings = Arrays.copyOfRange(conditionStrings, 1, conditionStrings.length);
-			}
-
-			// Evaluating left side of the condition
-			String left = conditionStrings[0];
-
 			// Fill current matrix
-			if (left.charAt(0) == '?') {
-				currentVariables.put(left, null);
-				currentVariableTypes.put(left, DataTypes.SUBJECT);
-				Set<Integer> keys;
-				// Search for existing values for left variable
-				if (globalVariables.containsKey(left)) {
-					ArrayList<Data> values = globalVariables.get(left);
-					keys = new HashSet<>();
-					for (Data data : values) {
-						Subject subject = (Subject) data;
-						int key = database.findKey(subject);
-						keys.add(key);
-					}
-				} else {
-					keys = database.getAllKeys();
-				}
-				for (int key : keys) {
-					EntryData entryData = database.getEntryData(key);
-					String middle = conditionStrings[1];
-					if (middle.charAt(0) == '?') {
-						currentVariables.put(middle, null);
-						currentVariableTypes.put(middle, DataTypes.RELATION);
-						Set<Relation> relations;
-						// Search for existing values for middle variable
-						if (globalVariables.containsKey(middle)) {
-							ArrayList<Data> values = globalVariables.get(middle);
-							relations = new HashSet<>();
-							for (Data data : values) {
-								relations.add((Relation) data);
-							}
-						} else {
-							relations = entryData.getRelations();
-						}
-						String right = conditionStrings[2];
-						for (Relation relation : relations) {
-							if (right.charAt(0) == '?') {
-								currentVariables.put(right, null);
-								currentVariableTypes.put(right, DataTypes.SUBJECT);
-								ArrayList<Subject> subjects;
-								// Search for existing values for right variable
-								if (globalVariables.containsKey(right)) {
-									ArrayList<Data> values = globalVariables.get(right);
-									subjects = new ArrayList<>();
-									for (Data data : values) {
-										subjects.add((Subject) data);
-									}
-								} else {
-									subjects = entryData.getSubjects(relation);
-								}
-								for (Subject subject : subjects) {
-									if (entryData.hasRelation(relation)) {
-										if (entryData.getSubjects(relation).contains(subject)) {
-											ArrayList<Data> line = new ArrayList<>();
-											line.add(database.getID(key));
-											line.add(relation);
-											line.add(subject);
-											currentMatrix.add(line);
-										}
-									}
-								}
-							} else {
-								Subject subject = database.findSubject(right);
-								if (subject != null) {
-									if (entryData.hasRelation(relation)) {
-										if (entryData.getSubjects(relation).contains(subject)) {
-											ArrayList<Data> line = new ArrayList<>();
-											line.add(database.getID(key));
-											line.add(relation);
-											currentMatrix.add(line);
-										}
-									}
-								}
-							}
-						}
-					} else {
-						Relation relation = database.findRelation(middle);
-						if (relation != null) {
-							if (entryData.hasRelation(relation)) {
-								String right = conditionStrings[2];
-								if (right.charAt(0) == '?') {
-									currentVariables.put(right, null);
-									currentVariableTypes.put(right, DataTypes.SUBJECT);
-									ArrayList<Subject> subjects;
-									// Search for existing values for right
-									// variable
-									if (globalVariables.containsKey(right)) {
-										ArrayList<Data> values = globalVariables.get(right);
-										subjects = new ArrayList<>();
-										for (Data data : values) {
-											subjects.add((Subject) data);
-										}
-									} else {
-										subjects = entryData.getSubjects(relation);
-									}
-									for (Subject subject : subjects) {
-										if (entryData.getSubjects(relation).contains(subject)) {
-											ArrayList<Data> line = new ArrayList<>();
-											line.add(database.getID(key));
-											line.add(subject);
-											currentMatrix.add(line);
-										}
-									}
-								} else {
-									Subject subject = database.findSubject(right);
-									if (subject != null) {
-										ArrayList<Subject> subjects = entryData.getSubjects(relation);
-										if (subjects.contains(subject)) {
-											ArrayList<Data> line = new ArrayList<>();
-											line.add(database.getID(key));
-											currentMatrix.add(line);
-										} else {
-											// System.out.println("EntryData did not contain subject");
-										}
-									}
-								}
-							}
-						}
-					}
-				}
-			} else {
-				int key = database.findKey(left);
-				if (key != 0) {
-					EntryData entryData = database.getEntryData(key);
-					String middle = conditionStrings[1];
-					if (middle.charAt(0) == '?') {
-						currentVariables.put(middle, null);
-						currentVariableTypes.put(middle, DataTypes.RELATION);
-						Set<Relation> relations;
-						// Search for existing values for middle variable
-						if (globalVariables.containsKey(middle)) {
-							ArrayList<Data> values = globalVariables.get(middle);
-							relations = new HashSet<>();
-							for (Data data : values) {
-								relations.add((Relation) data);
-							}
-						} else {
-							relations = entryData.getRelations();
-							boolean modeDetected, back;
-							String command;
-						}
-						for (Relation relation : relations) {
-							String right = conditionStrings[2];
-							if (right.charAt(0) == '?') {
-								currentVariables.put(right, null);
-								currentVariableTypes.put(right, DataTypes.SUBJECT);
-								ArrayList<Subject> subjects;
-								// Search for existing values for right variable
-								if (globalVariables.containsKey(right)) {
-									ArrayList<Data> values = globalVariables.get(right);
-									subjects = new ArrayList<>();
-									for (Data data : values) {
-										subjects.add((Subject) data);
-									}
-								} else {
-									subjects = entryData.getSubjects(relation);
-								}
-								for (Subject subject : subjects) {
-									if (entryData.hasRelation(relation)) {
-										if (entryData.getSubjects(relation).contains(subject)) {
-											ArrayList<Data> line = new ArrayList<>();
-											line.add(relation);
-											line.add(subject);
-											currentMatrix.add(line);
-										}
-									}
-								}
-							} else {
-								Subject subject = database.findSubject(right);
-								if (subject != null) {
-									if (entryData.hasRelation(relation)) {
-										if (entryData.getSubjects(relation).contains(subject)) {
-											ArrayList<Data> line = new ArrayList<>();
-											line.add(relation);
-											currentMatrix.add(line);
-										}
-									}
-								}
-							}
-						}
-					} else {
-						Relation relation = database.findRelation(middle);
-						if (relation != null) {
-							if (entryData.hasRelation(relation)) {
-								String right = conditionStrings[2];
-								if (right.charAt(0) == '?') {
-									currentVariables.put(right, null);
-									currentVariableTypes.put(right, DataTypes.SUBJECT);
-									ArrayList<Subject> subjects;
-									// Search for existing values for right
-									// variable
-									if (globalVariables.containsKey(right)) {
-										ArrayList<Data> values = globalVariables.get(right);
-										subjects = new ArrayList<>();
-										for (Data data : values) {
-											subjects.add((Subject) data);
-										}
-									} else {
-										subjects = entryData.getSubjects(relation);
-									}
-									for (Subject subject : subjects) {
-										if (entryData.getSubjects(relation).contains(subject)) {
-											ArrayList<Data> line = new ArrayList<>();
-											line.add(subject);
-											currentMatrix.add(line);
-										}
-									}
-								} else {
-									// ?
-								}
-							}
-						}
-					}
-				}
-			}
+			scan(patterns[conditionIndex]);
 
 			// Aggregate current variable values
 			int currentVariableIndex = 0;
 			for (String variable : currentVariables.keySet()) {
-				ArrayList<Data> variableValues = new ArrayList<>();
-				for (ArrayList<Data> line : currentMatrix) {
-					Data data = line.get(currentVariableIndex);
-					variableValues.add(data);
+				TermList variableValues = new TermList(currentMatrix.size());
+				for (int[] line : currentMatrix) {
+					variableValues.add(line[currentVariableIndex]);
 				}
 				currentVariables.replace(variable, variableValues);
 				currentVariableIndex++;
@@ -339,9 +148,7 @@ public class Context {
 			// Clear previous indices
 			int currentIndex = 0;
 			for (String variable : currentVariables.keySet()) {
-				if (globalVariables.containsKey(variable)) {
-					globalVariables.get(variable).retainAll(currentVariables.get(variable));
-				} else {
+				if (!globalVariables.containsKey(variable)) {
 					globalVariables.put(variable, currentVariables.get(variable));
 					globalVariableIndices.put(variable, globalVariableIndex);
 					incrementVariableIndex();
@@ -357,141 +164,26 @@ public class Context {
 
 			// Update the global matrix in accordance with global variable
 			// values
-			if (globalMatrix.size() > 0) {
+			if (conditionIndex > 0) {
 				
 				// Integrate new entries
-				ArrayList<Data[]> newGlobalMatrix;
-				
 				ArrayList<String> intersectingVariables = new ArrayList<>();
 				for (String variable : currentVariables.keySet()) {
 					if (!newVariables.contains(variable)) {
 						intersectingVariables.add(variable);
 					}
 				}
+				globalMatrix = join(intersectingVariables);
 				
-				switch (intersectingVariables.size()) {
-				
-				// Cartesian product
-				case 0:
-					newGlobalMatrix = new ArrayList<>();
-					for (Data[] datafield : globalMatrix) {
-						for (ArrayList<Data> line : currentMatrix) {
-							Data[] newDatafield = new Data[globalVariableIndices.size()];
-							for (String variable : globalVariables.keySet()) {
-								int globalVariableIndex_ = globalVariableIndices.get(variable);
-								if (datafield.length > globalVariableIndex_) { // Check if globalVariableIndex_ is applicable to the current globalMatrix
-									newDatafield[globalVariableIndex_] = datafield[globalVariableIndex_];
-								}
-							}
-							for (String variable : currentVariables.keySet()) {
-								int globalVariableIndex_ = globalVariableIndices.get(variable);
-								int currentVariableIndex_ = currentVariableIndices.get(variable);
-								newDatafield[globalVariableIndex_] = line.get(currentVariableIndex_);
-							}
-							newGlobalMatrix.add(newDatafield);
-						}
-					}
-					globalMatrix = newGlobalMatrix;
-					break;
-				
-				case 1:
-					String intersectingVariable = intersectingVariables.get(0);
-					
-					if (intersectingVariable != null) {
-						int globalVariableIndex_ = globalVariableIndices.get(intersectingVariable);
-						int currentVariableIndex_ = currentVariableIndices.get(intersectingVariable);
-						newGlobalMatrix = new ArrayList<>();
-						for (Data[] datafield : globalMatrix) {
-							for (ArrayList<Data> line : currentMatrix) {
-								if (datafield[globalVariableIndex_].equals(line.get(currentVariableIndex_))) {
-									Data[] newDatafield = new Data[globalVariables.size()];
-									for (String variable : globalVariables.keySet()) {
-										if (!newVariables.contains(variable)) {
-											int globalVariableIndex__ = globalVariableIndices.get(variable);
-											newDatafield[globalVariableIndex__] = datafield[globalVariableIndex__];
-										}
-									}
-									for (String variable : currentVariables.keySet()) {
-										int globalVariableIndex__ = globalVariableIndices.get(variable);
-										int currentVariableIndex__ = currentVariableIndices.get(variable);
-										newDatafield[globalVariableIndex__] = line.get(currentVariableIndex__);
-									}
-									newGlobalMatrix.add(newDatafield);
-								}
-							}
-						}
-						globalMatrix = newGlobalMatrix;
-					}
-					break;
-				case 2:
-					if (intersectingVariables.size() == 2) {
-						newGlobalMatrix = new ArrayList<>();
-						for (Data[] datafield : globalMatrix) {
-							for (ArrayList<Data> line : currentMatrix) {
-								int variablesValid = 0;
-								for (String variable : intersectingVariables) {
-									int globalVariableIndex_ = globalVariableIndices.get(variable);
-									int currentVariableIndex_ = currentVariableIndices.get(variable);
-									if (datafield[globalVariableIndex_].equals(line.get(currentVariableIndex_))) {
-										variablesValid++;
-									}
-								}
-								if (variablesValid == 2) {
-									Data[] newDatafield = new Data[globalVariables.size()];
-									for (String variable : globalVariables.keySet()) {
-										if (!newVariables.contains(variable)) {
-											int globalVariableIndex_ = globalVariableIndices.get(variable);
-											newDatafield[globalVariableIndex_] = datafield[globalVariableIndex_];
-										}
-									}
-									for (String variable : currentVariables.keySet()) {
-										int globalVariableIndex_ = globalVariableIndices.get(variable);
-										int currentVariableIndex_ = currentVariableIndices.get(variable);
-										newDatafield[globalVariableIndex_] = line.get(currentVariableIndex_);
-									}
-									newGlobalMatrix.add(newDatafield);
-								}
-							}
-						}
-						globalMatrix = newGlobalMatrix;
-					}
-					
-					break;
-				case 3:
-					newGlobalMatrix = new ArrayList<>();
-					for (Data[] datafield : globalMatrix) {
-						for (ArrayList<Data> line : currentMatrix) {
-							int variablesValid = 0;
-							for (String variable : currentVariables.keySet()) {
-								int globalVariableIndex_ = globalVariableIndices.get(variable);
-								int currentVariableIndex_ = currentVariableIndices.get(variable);
-								if (datafield[globalVariableIndex_].equals(line.get(currentVariableIndex_))) {
-									variablesValid++;
-								}
-							}
-							if (variablesValid == 3) {
-								newGlobalMatrix.add(datafield);
-							}
-						}
-					}
-					globalMatrix = newGlobalMatrix;
-					break;
-
-				}
-				
-				
-			} else { // New variable values arriving, the global matrix is empty
-				for (ArrayList<Data> line : currentMatrix) {
-					Data[] datafield = line.toArray(new Data[line.size()]);
-					globalMatrix.add(datafield);
-				}
+			} else { // New variable values arriving, this is the first condition
+				globalMatrix.addAll(currentMatrix);
 			}
 			
 			// Update global variables according to global matrix
 			for (String variable : globalVariables.keySet()) {
 				int globalVariableIndex_ = globalVariableIndices.get(variable);
-				ArrayList<Data> newVariableValues = new ArrayList<>();
-				for (Data[] datafield : globalMatrix) {
+				TermList newVariableValues = new TermList(globalMatrix.size());
+				for (int[] datafield : globalMatrix) {
 					newVariableValues.add(datafield[globalVariableIndex_]);
 				}
 				globalVariables.replace(variable, newVariableValues);
@@ -499,8 +191,9 @@ public class Context {
 		}
 
 		Result result = new Result(database, associatedView);
+		result.setPlan(plan.getPlan());
 		for (String selectorString : selectorStrings) {
-			ArrayList<Data> datafield = globalVariables.get(selectorString);
+			TermList datafield = globalVariables.get(selectorString);
 			result.putData(selectorString, datafield);
 			result.putDataType(selectorString, globalVariableTypes.get(selectorString));
 		}
@@ -509,4 +202,454 @@ public class Context {
 
 	}
 
+	/**
+	 * Evaluates a compiled query with pull-based operators: each condition is an
+	 * operator extending the bindings of the previous one through index lookups,
+	 * and lines are pulled from the last operator until it is exhausted or the
+	 * LIMIT of the query is reached. Only the selected values of the returned
+	 * lines are kept, intermediate results are never materialized. The
+	 * conditions of a cyclic query are evaluated together by a single
+	 * LeapfrogTriejoin instead.
+	 * 
+	 * @param plan
+	 *            an instance of QueryPlan compiled against the database.
+	 * @return an instance of Result.
+	 */
+	private Result streamResult(QueryPlan plan) {
+		String[] selectorStrings = plan.getSelectors();
+		QueryPlan.Pattern[] patterns = plan.getPatterns();
+
+		HashMap<String, Integer> variableColumns = new HashMap<>();
+		HashMap<String, DataTypes> variableTypes = new HashMap<>();
+		for (QueryPlan.Pattern pattern : patterns) {
+			HashSet<String> variables = new HashSet<>();
+			if (pattern.leftVariable) {
+				variables.add(pattern.left);
+				variableTypes.put(pattern.left, DataTypes.SUBJECT);
+			}
+			if (pattern.middleVariable) {
+				variables.add(pattern.middle);
+				variableTypes.put(pattern.middle, DataTypes.RELATION);
+			}
+			if (pattern.rightVariable) {
+				variables.add(pattern.right);
+				variableTypes.put(pattern.right, DataTypes.SUBJECT);
+			}
+			if (variables.size() > 1) {
+				associatedView = true;
+			}
+		}
+		int width = variableTypes.size();
+
+		Operator operator = null;
+		if (plan.getLeapfrogVariables() != null) {
+			operator = new LeapfrogTriejoin(database, patterns, plan.getLeapfrogVariables(), variableColumns);
+		} else {
+			for (QueryPlan.Pattern pattern : patterns) {
+				operator = new PatternOperator(database, operator, pattern, variableColumns, width);
+			}
+		}
+		operator = new LimitOperator(operator, plan.getOffset(), plan.getLimit());
+
+		TermList[] datafields = new TermList[selectorStrings.length];
+		int[] selectorColumns = new int[selectorStrings.length];
+		for (int index = 0; index < selectorStrings.length; index++) {
+			datafields[index] = new TermList();
+			Integer column = variableColumns.get(selectorStrings[index]);
+			selectorColumns[index] = column != null ? column : -1;
+		}
+		for (int[] line = operator.next(); line != null; line = operator.next()) {
+			for (int index = 0; index < selectorStrings.length; index++) {
+				if (selectorColumns[index] >= 0) {
+					datafields[index].add(line[selectorColumns[index]]);
+				}
+			}
+		}
+
+		Result result = new Result(database, associatedView);
+		result.setPlan(plan.getPlan());
+		for (int index = 0; index < selectorStrings.length; index++) {
+			result.putData(selectorStrings[index], selectorColumns[index] >= 0 ? datafields[index] : null);
+			result.putDataType(selectorStrings[index], variableTypes.get(selectorStrings[index]));
+		}
+		return result;
+	}
+
+	/**
+	 * Joins globalMatrix with currentMatrix on the variables they share. A hash
+	 * table keyed by the values of the shared variables is built on the smaller
+	 * matrix and probed with the other one. Without shared variables every line
+	 * falls in the same bucket, which gives the cartesian product. Whichever
+	 * matrix is hashed, the lines are produced in the order of globalMatrix then
+	 * of currentMatrix.
+	 * 
+	 * @param intersectingVariables
+	 *            the variables of the current condition already in globalVariables.
+	 * @return the new global matrix.
+	 */
+	private ArrayList<int[]> join(List<String> intersectingVariables) {
+		int[] globalColumns = new int[intersectingVariables.size()];
+		int[] currentColumns = new int[intersectingVariables.size()];
+		for (int index = 0; index < globalColumns.length; index++) {
+			String variable = intersectingVariables.get(index);
+			globalColumns[index] = globalVariableIndices.get(variable);
+			currentColumns[index] = currentVariableIndices.get(variable);
+		}
+		// Column of each current variable in the lines of the global matrix
+		int[] targetColumns = new int[currentVariables.size()];
+		for (String variable : currentVariables.keySet()) {
+			targetColumns[currentVariableIndices.get(variable)] = globalVariableIndices.get(variable);
+		}
+		int lineWidth = globalVariableIndices.size();
+
+		ArrayList<int[]> newGlobalMatrix = new ArrayList<>();
+		if (currentMatrix.size() <= globalMatrix.size()) {
+			HashMap<JoinKey, TermList> table = hash(currentMatrix, currentColumns);
+			// The table is only read from here, so the probes run in parallel
+			newGlobalMatrix = partition(globalMatrix.size(), (from, to, partitionLines) -> {
+				for (int position = from; position < to; position++) {
+					int[] datafield = globalMatrix.get(position);
+					TermList lines = table.get(new JoinKey(datafield, globalColumns));
+					for (int index = 0; lines != null && index < lines.size(); index++) {
+						partitionLines.add(merge(datafield, currentMatrix.get(lines.get(index)), targetColumns, lineWidth));
+					}
+				}
+			});
+		} else {
+			HashMap<JoinKey, TermList> table = hash(globalMatrix, globalColumns);
+			// Matching lines of currentMatrix for each line of globalMatrix
+			TermList[] matches = new TermList[globalMatrix.size()];
+			for (int index = 0; index < currentMatrix.size(); index++) {
+				TermList datafields = table.get(new JoinKey(currentMatrix.get(index), currentColumns));
+				for (int position = 0; datafields != null && position < datafields.size(); position++) {
+					int datafield = datafields.get(position);
+					if (matches[datafield] == null) {
+						matches[datafield] = new TermList(4);
+					}
+					matches[datafield].add(index);
+				}
+			}
+			for (int datafield = 0; datafield < matches.length; datafield++) {
+				TermList lines = matches[datafield];
+				for (int index = 0; lines != null && index < lines.size(); index++) {
+					newGlobalMatrix.add(merge(globalMatrix.get(datafield), currentMatrix.get(lines.get(index)),
+							targetColumns, lineWidth));
+				}
+			}
+		}
+		return newGlobalMatrix;
+	}
+
+	/**
+	 * Groups the positions of the lines of a matrix by the values of some of
+	 * their columns.
+	 */
+	private static HashMap<JoinKey, TermList> hash(ArrayList<int[]> matrix, int[] columns) {
+		HashMap<JoinKey, TermList> table = new HashMap<>();
+		for (int index = 0; index < matrix.size(); index++) {
+			JoinKey key = new JoinKey(matrix.get(index), columns);
+			TermList lines = table.get(key);
+			if (lines == null) {
+				lines = new TermList(1);
+				table.put(key, lines);
+			}
+			lines.add(index);
+		}
+		return table;
+	}
+
+	/**
+	 * Creates a line of the global matrix from a line of globalMatrix and a
+	 * matching line of currentMatrix.
+	 */
+	private static int[] merge(int[] datafield, int[] line, int[] targetColumns, int lineWidth) {
+		int[] newDatafield = new int[lineWidth];
+		System.arraycopy(datafield, 0, newDatafield, 0, Math.min(datafield.length, lineWidth));
+		for (int index = 0; index < line.length; index++) {
+			newDatafield[targetColumns[index]] = line[index];
+		}
+		return newDatafield;
+	}
+
+	/**
+	 * The values of the shared variables of a line, used as a key of the hash
+	 * join.
+	 */
+	private static final class JoinKey {
+		private final int[] values;
+		private final int hashCode;
+
+		JoinKey(int[] line, int[] columns) {
+			values = new int[columns.length];
+			for (int index = 0; index < columns.length; index++) {
+				values[index] = line[columns[index]];
+			}
+			hashCode = Arrays.hashCode(values);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			return object instanceof JoinKey && Arrays.equals(values, ((JoinKey) object).values);
+		}
+	}
+
+	/**
+	 * Evaluates a single condition against the database and fills currentMatrix.
+	 * Each line of the matrix holds, in order, the values of the left, middle and
+	 * right variables of the condition. Variables that already have values in
+	 * globalVariables only match those values.
+	 * 
+	 * The access path depends on what is known about the condition: a bound left
+	 * side reads the subject-first table, a bound right side reads the
+	 * object-first index, a constant relation reads the predicate-first index and
+	 * only a condition made of three free variables scans every entry.
+	 *
+	 * @param pattern
+	 *            the condition, whose constants are resolved.
+	 */
+	private void scan(QueryPlan.Pattern pattern) {
+		String left = pattern.left;
+		String middle = pattern.middle;
+		String right = pattern.right;
+		leftVariable = pattern.leftVariable;
+		middleVariable = pattern.middleVariable;
+		rightVariable = pattern.rightVariable;
+		// A condition such as ?X knows ?X binds a single column
+		rightRepeatsLeft = leftVariable && rightVariable && right.equals(left);
+		if (leftVariable) {
+			declare(left, DataTypes.SUBJECT);
+		}
+		if (middleVariable) {
+			declare(middle, DataTypes.RELATION);
+		}
+		if (rightVariable && !rightRepeatsLeft) {
+			declare(right, DataTypes.SUBJECT);
+		}
+		width = currentVariables.size();
+
+		// A constant missing from the database matches nothing
+		if (pattern.unknownTerm) {
+			return;
+		}
+		int relationConstant = pattern.relation;
+		int subjectConstant = pattern.subject;
+		int idConstant = pattern.id;
+		// Search for existing values for the variables
+		Set<Integer> idValues = leftVariable ? boundValues(left) : null;
+		relationValues = middleVariable ? boundValues(middle) : null;
+		subjectValues = rightVariable && !rightRepeatsLeft ? boundValues(right) : null;
+
+		ArrayList<int[]> lines;
+		if (!leftVariable || idValues != null) {
+			// Subject-first: read the entries of the known ids
+			Collection<Integer> ids = leftVariable ? idValues : Collections.singleton(idConstant);
+			ArrayList<EntryData> entries = new ArrayList<>(ids.size());
+			for (int id : ids) {
+				int key = database.findKey(id);
+				if (key != 0) {
+					entries.add(database.getEntryData(key));
+				}
+			}
+			lines = partition(entries.size(), (from, to, partitionLines) -> {
+				for (int index = from; index < to; index++) {
+					matchEntry(entries.get(index), relationConstant, subjectConstant, partitionLines);
+				}
+			});
+		} else if (!rightVariable || subjectValues != null) {
+			// Object-first: find the ids pointing to the known subjects
+			TermList subjects = new TermList();
+			for (int subject : rightVariable ? subjectValues : Collections.singleton(subjectConstant)) {
+				subjects.add(subject);
+			}
+			if (middleVariable) {
+				ArrayList<Map<Integer, TermList>> idGroups = new ArrayList<>(subjects.size());
+				for (int index = 0; index < subjects.size(); index++) {
+					idGroups.add(database.getObjectIndex(subjects.get(index)));
+				}
+				lines = partition(subjects.size(), (from, to, partitionLines) -> {
+					for (int index = from; index < to; index++) {
+						for (Map.Entry<Integer, TermList> ids : idGroups.get(index).entrySet()) {
+							TermList relations = ids.getValue();
+							for (int position = 0; position < relations.size(); position++) {
+								match(ids.getKey(), relations.get(position), subjects.get(index), partitionLines);
+							}
+						}
+					}
+				});
+			} else {
+				ArrayList<TermList> idLists = new ArrayList<>(subjects.size());
+				for (int index = 0; index < subjects.size(); index++) {
+					idLists.add(database.findIds(relationConstant, subjects.get(index)));
+				}
+				lines = partition(subjects.size(), (from, to, partitionLines) -> {
+					for (int index = from; index < to; index++) {
+						TermList ids = idLists.get(index);
+						for (int position = 0; ids != null && position < ids.size(); position++) {
+							match(ids.get(position), relationConstant, subjects.get(index), partitionLines);
+						}
+					}
+				});
+			}
+		} else if (!middleVariable) {
+			// Predicate-first: every triple of the relation
+			ArrayList<Map.Entry<Integer, TermList>> groups = new ArrayList<>(
+					database.getPredicateIndex(relationConstant).entrySet());
+			lines = partition(groups.size(), (from, to, partitionLines) -> {
+				for (int index = from; index < to; index++) {
+					TermList ids = groups.get(index).getValue();
+					for (int position = 0; position < ids.size(); position++) {
+						match(ids.get(position), relationConstant, groups.get(index).getKey(), partitionLines);
+					}
+				}
+			});
+		} else {
+			// Nothing is known, every entry is read
+			ArrayList<EntryData> entries = new ArrayList<>(database.getAllEntries());
+			lines = partition(entries.size(), (from, to, partitionLines) -> {
+				for (int index = from; index < to; index++) {
+					matchEntry(entries.get(index), relationConstant, subjectConstant, partitionLines);
+				}
+			});
+		}
+		currentMatrix.addAll(lines);
+	}
+
+	/**
+	 * Matches the triples of an entry against the current condition, reading a
+	 * single relation if it is a constant.
+	 */
+	private void matchEntry(EntryData entryData, int relationConstant, int subjectConstant, ArrayList<int[]> lines) {
+		int id = entryData.getIdTerm();
+		if (middleVariable) {
+			for (int index = 0; index < entryData.relationCount(); index++) {
+				int relation = entryData.getRelationTerm(index);
+				matchSubjects(id, relation, entryData.getSubjects(relation), subjectConstant, lines);
+			}
+		} else {
+			matchSubjects(id, relationConstant, entryData.getSubjects(relationConstant), subjectConstant, lines);
+		}
+	}
+
+	/**
+	 * Matches the subjects of an entry for a relation against the current
+	 * condition.
+	 */
+	private void matchSubjects(int id, int relation, TermList subjects, int subjectConstant, ArrayList<int[]> lines) {
+		if (subjects == null) {
+			return;
+		}
+		if (!rightVariable) {
+			if (subjects.contains(subjectConstant)) {
+				match(id, relation, subjectConstant, lines);
+			}
+		} else {
+			for (int index = 0; index < subjects.size(); index++) {
+				match(id, relation, subjects.get(index), lines);
+			}
+		}
+	}
+
+	/**
+	 * Adds the triple (id, relation, subject) to lines if it satisfies the
+	 * variables of the current condition. Constants are expected to be checked by
+	 * the caller.
+	 */
+	private void match(int id, int relation, int subject, ArrayList<int[]> lines) {
+		if (relationValues != null && !relationValues.contains(relation)) {
+			return;
+		}
+		if (rightRepeatsLeft ? subject != id : subjectValues != null && !subjectValues.contains(subject)) {
+			return;
+		}
+		int[] line = new int[width];
+		int column = 0;
+		if (leftVariable) {
+			line[column++] = id;
+		}
+		if (middleVariable) {
+			line[column++] = relation;
+		}
+		if (rightVariable && !rightRepeatsLeft) {
+			line[column] = subject;
+		}
+		lines.add(line);
+	}
+
+	/**
+	 * Produces the lines of a range of items, a range of entries or of groups of
+	 * an index for a scan, a range of lines of the global matrix for a join.
+	 */
+	private interface Partitioned {
+		void produce(int from, int to, ArrayList<int[]> lines);
+	}
+
+	/**
+	 * Splits [0, size) into partitions produced on the ForkJoinPool of the query
+	 * engine and concatenates their lines in the order of the partitions, so the
+	 * lines come out as if the items had been read by a single thread. Small
+	 * inputs, or a parallelism of 1, are produced on the calling thread. The
+	 * database must not be modified meanwhile, which holds since the items are
+	 * looked up before the partitions are produced.
+	 */
+	private static ArrayList<int[]> partition(int size, Partitioned partitioned) {
+		int partitions = (int) Math.min(PARALLELISM * 4L, size / PARTITION_SIZE);
+		if (PARALLELISM <= 1 || partitions <= 1) {
+			ArrayList<int[]> lines = new ArrayList<>();
+			partitioned.produce(0, size, lines);
+			return lines;
+		}
+		ForkJoinPool pool = pool();
+		ArrayList<ForkJoinTask<ArrayList<int[]>>> tasks = new ArrayList<>(partitions);
+		for (int partition = 0; partition < partitions; partition++) {
+			int from = (int) ((long) size * partition / partitions);
+			int to = (int) ((long) size * (partition + 1) / partitions);
+			tasks.add(pool.submit(() -> {
+				ArrayList<int[]> lines = new ArrayList<>();
+				partitioned.produce(from, to, lines);
+				return lines;
+			}));
+		}
+		ArrayList<int[]> lines = new ArrayList<>();
+		for (ForkJoinTask<ArrayList<int[]>> task : tasks) {
+			lines.addAll(task.join());
+		}
+		return lines;
+	}
+
+	private static synchronized ForkJoinPool pool() {
+		if (pool == null) {
+			pool = new ForkJoinPool(PARALLELISM);
+		}
+		return pool;
+	}
+
+	/**
+	 * Registers a variable of the current condition with its type.
+	 */
+	private void declare(String variable, DataTypes type) {
+		currentVariables.put(variable, null);
+		currentVariableTypes.put(variable, type);
+	}
+
+	/**
+	 * Returns the values already found for a variable by previous conditions, or
+	 * null if the variable is not bound yet.
+	 */
+	private Set<Integer> boundValues(String variable) {
+		TermList values = globalVariables.get(variable);
+		if (values == null) {
+			return null;
+		}
+		Set<Integer> terms = new HashSet<>();
+		for (int index = 0; index < values.size(); index++) {
+			terms.add(values.get(index));
+		}
+		return terms;
+	}
+
 }
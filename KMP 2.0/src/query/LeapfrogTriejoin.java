@@ -0,0 +1,249 @@
+package query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import persistence.Database;
+import persistence.SortedAdjacency;
+
+/**
+ * This operator evaluates all the conditions of a cyclic query at once with a
+ * leapfrog triejoin. Variables are bound one at a time in a fixed order; the
+ * values of a variable are the intersection of the sorted lists given by every
+ * condition it appears in, found by leapfrogging from one list to the next, so
+ * no partial binding is ever built that the remaining conditions reject.
+ * 
+ * Each condition with two variables reads the sorted adjacency index of its
+ * relation in the direction of the variable order: all its keys for the first
+ * variable, then the values of the key bound for the second. A condition with a
+ * single variable reads the values of its constant.
+ */
+class LeapfrogTriejoin implements Operator {
+
+	/**
+	 * Depth of the source of a condition with a single variable.
+	 */
+	private static final int CONSTANT = -2;
+
+	/**
+	 * Depth of the source giving every key of an adjacency index.
+	 */
+	private static final int KEYS = -1;
+
+	private final int width;
+
+	/**
+	 * The sources of each variable, and for each one the list it currently reads
+	 * with the range of the list not yet passed.
+	 */
+	private final Source[][] sources;
+	private final int[][][] lists;
+	private final int[][] positions;
+	private final int[][] ends;
+
+	private final int[] binding;
+	private int depth = -1;
+	private boolean exhausted;
+
+	/**
+	 * @param database
+	 *            the database to read.
+	 * @param patterns
+	 *            the conditions of the query, with constant relations.
+	 * @param variables
+	 *            the variables in the order they are bound.
+	 * @param variableColumns
+	 *            filled with the column of each variable.
+	 */
+	LeapfrogTriejoin(Database database, QueryPlan.Pattern[] patterns, String[] variables,
+			Map<String, Integer> variableColumns) {
+		width = variables.length;
+		for (int index = 0; index < width; index++) {
+			variableColumns.put(variables[index], index);
+		}
+		List<List<Source>> variableSources = new ArrayList<>();
+		for (int index = 0; index < width; index++) {
+			variableSources.add(new ArrayList<>());
+		}
+		for (QueryPlan.Pattern pattern : patterns) {
+			if (pattern.unknownTerm) {
+				exhausted = true;
+			} else if (pattern.leftVariable && pattern.rightVariable) {
+				int left = variableColumns.get(pattern.left);
+				int right = variableColumns.get(pattern.right);
+				// Key the index by whichever variable is bound first
+				SortedAdjacency adjacency = database.getAdjacency(pattern.relation, left < right);
+				variableSources.get(Math.min(left, right)).add(new Source(adjacency, KEYS, 0));
+				variableSources.get(Math.max(left, right)).add(new Source(adjacency, Math.min(left, right), 0));
+			} else if (pattern.leftVariable || pattern.rightVariable) {
+				SortedAdjacency adjacency = database.getAdjacency(pattern.relation, !pattern.leftVariable);
+				int key = adjacency.indexOf(pattern.leftVariable ? pattern.subject : pattern.id);
+				if (key < 0) {
+					exhausted = true;
+				} else {
+					String variable = pattern.leftVariable ? pattern.left : pattern.right;
+					variableSources.get(variableColumns.get(variable)).add(new Source(adjacency, CONSTANT, key));
+				}
+			} else if (database.countTriples(pattern.id, pattern.relation, pattern.subject) == 0) {
+				exhausted = true;
+			}
+		}
+		sources = new Source[width][];
+		lists = new int[width][][];
+		positions = new int[width][];
+		ends = new int[width][];
+		for (int index = 0; index < width; index++) {
+			sources[index] = variableSources.get(index).toArray(new Source[0]);
+			lists[index] = new int[sources[index].length][];
+			positions[index] = new int[sources[index].length];
+			ends[index] = new int[sources[index].length];
+		}
+		binding = new int[width];
+	}
+
+	@Override
+	public int[] next() {
+		if (exhausted) {
+			return null;
+		}
+		boolean found;
+		if (depth < 0) {
+			depth = 0;
+			found = open(0) && leapfrog(0);
+		} else {
+			// The last binding returned is at the deepest level
+			found = advance(depth);
+		}
+		while (true) {
+			if (found) {
+				binding[depth] = lists[depth][0][positions[depth][0]];
+				if (depth == width - 1) {
+					return binding.clone();
+				}
+				depth++;
+				found = open(depth) && leapfrog(depth);
+			} else {
+				if (depth == 0) {
+					exhausted = true;
+					return null;
+				}
+				depth--;
+				found = advance(depth);
+			}
+		}
+	}
+
+	/**
+	 * Positions the sources of a variable at the start of the lists they read for
+	 * the variables already bound.
+	 * 
+	 * @return false if one of the lists is empty.
+	 */
+	private boolean open(int level) {
+		Source[] levelSources = sources[level];
+		for (int index = 0; index < levelSources.length; index++) {
+			Source source = levelSources[index];
+			SortedAdjacency adjacency = source.adjacency;
+			if (source.depth == KEYS) {
+				lists[level][index] = adjacency.getKeys();
+				positions[level][index] = 0;
+				ends[level][index] = adjacency.getKeys().length;
+			} else {
+				int key = source.depth == CONSTANT ? source.key : adjacency.indexOf(binding[source.depth]);
+				if (key < 0) {
+					return false;
+				}
+				lists[level][index] = adjacency.getValues();
+				positions[level][index] = adjacency.getStart(key);
+				ends[level][index] = adjacency.getEnd(key);
+			}
+			if (positions[level][index] >= ends[level][index]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Moves past the current value of a variable and finds the next one.
+	 * 
+	 * @return false once the sources of the variable are exhausted.
+	 */
+	private boolean advance(int level) {
+		if (++positions[level][0] >= ends[level][0]) {
+			return false;
+		}
+		return leapfrog(level);
+	}
+
+	/**
+	 * Moves the sources of a variable forward until they all stand on the same
+	 * value, each one seeking the largest value seen so far in turn.
+	 * 
+	 * @return false if a source is exhausted first.
+	 */
+	private boolean leapfrog(int level) {
+		int[][] levelLists = lists[level];
+		int[] levelPositions = positions[level];
+		int[] levelEnds = ends[level];
+		int count = levelLists.length;
+		int candidate = levelLists[0][levelPositions[0]];
+		for (int index = 1; index < count; index++) {
+			candidate = Math.max(candidate, levelLists[index][levelPositions[index]]);
+		}
+		int agreed = 0;
+		for (int index = 0; agreed < count; index = (index + 1) % count) {
+			int position = seek(levelLists[index], levelPositions[index], levelEnds[index], candidate);
+			levelPositions[index] = position;
+			if (position >= levelEnds[index]) {
+				return false;
+			}
+			int value = levelLists[index][position];
+			if (value == candidate) {
+				agreed++;
+			} else {
+				candidate = value;
+				agreed = 1;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the position of the first value not lower than a term, searching
+	 * forward from a position by doubling steps then by bisection.
+	 */
+	private static int seek(int[] list, int from, int to, int term) {
+		if (from >= to || list[from] >= term) {
+			return from;
+		}
+		int low = from;
+		int step = 1;
+		while (low + step < to && list[low + step] < term) {
+			low += step;
+			step <<= 1;
+		}
+		int position = Arrays.binarySearch(list, low + 1, Math.min(low + step, to), term);
+		return position >= 0 ? position : -position - 1;
+	}
+
+	/**
+	 * A sorted list a condition gives to one of its variables: the keys of an
+	 * adjacency index, the values of the key bound at another depth or the values
+	 * of a constant key.
+	 */
+	private static final class Source {
+
+		final SortedAdjacency adjacency;
+		final int depth;
+		final int key;
+
+		Source(SortedAdjacency adjacency, int depth, int key) {
+			this.adjacency = adjacency;
+			this.depth = depth;
+			this.key = key;
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package query;
+
+/**
+ * This operator skips the first bindings of the previous operator and stops
+ * asking for more once enough have been returned, which ends the evaluation of
+ * the whole chain.
+ */
+class LimitOperator implements Operator {
+
+	private final Operator previous;
+	private final long offset;
+	private final long limit;
+	private long skipped;
+	private long returned;
+
+	/**
+	 * @param previous
+	 *            the operator of the last condition.
+	 * @param offset
+	 *            the number of bindings to skip.
+	 * @param limit
+	 *            the maximum number of bindings to return, or -1.
+	 */
+	LimitOperator(Operator previous, long offset, long limit) {
+		this.previous = previous;
+		this.offset = offset;
+		this.limit = limit;
+	}
+
+	@Override
+	public int[] next() {
+		if (limit >= 0 && returned >= limit) {
+			return null;
+		}
+		while (skipped < offset) {
+			if (previous.next() == null) {
+				return null;
+			}
+			skipped++;
+		}
+		int[] line = previous.next();
+		if (line != null) {
+			returned++;
+		}
+		return line;
+	}
+}
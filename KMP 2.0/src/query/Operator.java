@@ -0,0 +1,19 @@
+package query;
+
+/**
+ * An operator of the pull-based execution of a query. Operators are chained
+ * from the first condition of a plan to the last, each one asking the previous
+ * one for a binding only when it needs one, so that nothing is computed beyond
+ * the lines that are actually read.
+ */
+interface Operator {
+
+	/**
+	 * Returns the next binding of the variables of the query, or null once the
+	 * operator is exhausted. A binding holds one term per variable, in the column
+	 * order chosen by Context.
+	 * 
+	 * @return an array of terms or null.
+	 */
+	int[] next();
+}
@@ -0,0 +1,133 @@
+package query;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import persistence.Database;
+
+/**
+ * This operator evaluates a condition for each binding of the previous
+ * operator. The variables the binding already holds become known terms of the
+ * condition, so every binding is extended through a direct index lookup, and
+ * the triples found are returned one at a time as new bindings. The first
+ * condition of a plan has no previous operator and is evaluated once.
+ */
+class PatternOperator implements Operator {
+
+	private final Database database;
+	private final Operator previous;
+	private final QueryPlan.Pattern pattern;
+	private final int width;
+
+	/**
+	 * Column of the variable at each position of the condition, -1 for a
+	 * constant, and whether the previous operators bind it.
+	 */
+	private final int[] columns = new int[3];
+	private final boolean[] bound = new boolean[3];
+
+	private int[] binding;
+	private TripleCursor cursor;
+	private boolean exhausted;
+
+	/**
+	 * @param database
+	 *            the database to read.
+	 * @param previous
+	 *            the operator of the previous condition, or null.
+	 * @param pattern
+	 *            the condition to evaluate.
+	 * @param variableColumns
+	 *            the column of each variable of the query; the variables of the
+	 *            previous conditions must already be present.
+	 * @param width
+	 *            the number of variables of the query.
+	 */
+	PatternOperator(Database database, Operator previous, QueryPlan.Pattern pattern,
+			Map<String, Integer> variableColumns, int width) {
+		this.database = database;
+		this.previous = previous;
+		this.pattern = pattern;
+		this.width = width;
+		String[] strings = { pattern.left, pattern.middle, pattern.right };
+		boolean[] variables = { pattern.leftVariable, pattern.middleVariable, pattern.rightVariable };
+		int boundColumns = variableColumns.size();
+		for (int index = 0; index < 3; index++) {
+			if (!variables[index]) {
+				columns[index] = -1;
+				continue;
+			}
+			Integer column = variableColumns.get(strings[index]);
+			if (column == null) {
+				column = variableColumns.size();
+				variableColumns.put(strings[index], column);
+			}
+			columns[index] = column;
+			bound[index] = column < boundColumns;
+		}
+		// A constant missing from the database matches nothing
+		exhausted = pattern.unknownTerm;
+	}
+
+	@Override
+	public int[] next() {
+		while (!exhausted) {
+			if (cursor != null && cursor.next()) {
+				int[] line = extend(cursor.id, cursor.relation, cursor.subject);
+				if (line != null) {
+					return line;
+				}
+				continue;
+			}
+			if (previous == null) {
+				if (binding != null) {
+					exhausted = true;
+					break;
+				}
+				binding = new int[width];
+			} else {
+				binding = previous.next();
+				if (binding == null) {
+					exhausted = true;
+					break;
+				}
+			}
+			cursor = new TripleCursor(database, known(0, pattern.id), known(1, pattern.relation),
+					known(2, pattern.subject));
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the term known at a position of the condition for the current
+	 * binding, or -1.
+	 */
+	private int known(int index, int constant) {
+		if (columns[index] < 0) {
+			return constant;
+		}
+		return bound[index] ? binding[columns[index]] : -1;
+	}
+
+	/**
+	 * Extends the current binding with a triple, or returns null if a variable
+	 * repeated in the condition, such as in ?X knows ?X, takes two values.
+	 */
+	private int[] extend(int id, int relation, int subject) {
+		int[] line = Arrays.copyOf(binding, width);
+		int[] terms = { id, relation, subject };
+		boolean[] assigned = new boolean[width];
+		for (int index = 0; index < 3; index++) {
+			int column = columns[index];
+			if (column < 0 || bound[index]) {
+				continue;
+			}
+			if (assigned[column] && line[column] != terms[index]) {
+				return null;
+			}
+			line[column] = terms[index];
+			assigned[column] = true;
+		}
+		return line;
+	}
+}
@@ -0,0 +1,185 @@
+package query;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import persistence.Database;
+
+/**
+ * This class turns query strings into instances of QueryPlan and keeps the
+ * most recently used plans in a cache keyed by the normalized text of the
+ * query, so that a query issued repeatedly, as the inference loops of
+ * TransactionHandler do, is parsed, resolved and planned once. A cached plan is
+ * compiled again when it is no longer valid for the database.
+ *
+ * The capacity of the cache is read from the system property kmp.plan.cache,
+ * 256 plans by default.
+ */
+public class QueryCompiler {
+
+	/**
+	 * The LIMIT and OFFSET clauses following the three words of the last
+	 * condition of the WHERE phase.
+	 */
+	private static final Pattern MODIFIERS = Pattern.compile("(\\S+ \\S+ \\S+)((?: (?:LIMIT|OFFSET) \\d+)+)$",
+			Pattern.CASE_INSENSITIVE);
+	private static final Pattern MODIFIER = Pattern.compile(" (LIMIT|OFFSET) (\\d+)", Pattern.CASE_INSENSITIVE);
+
+	private final PlanCache cache;
+
+	public QueryCompiler() {
+		this(Integer.getInteger("kmp.plan.cache", 256));
+	}
+
+	/**
+	 * @param capacity
+	 *            the maximum number of plans kept in the cache.
+	 */
+	public QueryCompiler(int capacity) {
+		cache = new PlanCache(Math.max(0, capacity));
+	}
+
+	/**
+	 * Returns the plan of a query, compiled against a database or taken from the
+	 * cache.
+	 *
+	 * @param database
+	 *            the database the query is evaluated against.
+	 * @param query
+	 *            a string corresponding to a user entry.
+	 * @return an instance of QueryPlan.
+	 */
+	public QueryPlan getPlan(Database database, String query) {
+		String text = normalize(query);
+		QueryPlan plan = cache.get(text);
+		if (plan == null || !plan.isValid(database)) {
+			plan = compile(database, text);
+			cache.put(text, plan);
+		}
+		return plan;
+	}
+
+	/**
+	 * Forgets every cached plan.
+	 */
+	public void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * Returns the number of cached plans.
+	 *
+	 * @return a number of plans.
+	 */
+	public int size() {
+		return cache.size();
+	}
+
+	/**
+	 * Collapses the whitespace of a query, so that queries differing only by
+	 * their spacing share a plan.
+	 *
+	 * @param query
+	 *            a string corresponding to a user entry.
+	 * @return the query with single spaces between words and none around ':',
+	 *         ',' and '&'.
+	 */
+	public static String normalize(String query) {
+		return query.trim().replaceAll("\\s+", " ").replaceAll(" ?([:,&]) ?", "$1");
+	}
+
+	/**
+	 * Compiles a query without using the cache. The query splits in two, the left
+	 * side corresponding to the SELECT phase, the right corresponding to the WHERE
+	 * phase whose conditions are separated by '&'. The WHERE phase may end with
+	 * LIMIT n and OFFSET m, in any order, after a complete condition; a last
+	 * condition such as "?X limit 10" is a condition on the relation limit.
+	 *
+	 * @param database
+	 *            the database the query is evaluated against.
+	 * @param query
+	 *            a string corresponding to a user entry.
+	 * @return an instance of QueryPlan.
+	 * @throws IllegalArgumentException
+	 *             if LIMIT or OFFSET is given twice.
+	 */
+	public static QueryPlan compile(Database database, String query) {
+		return compile(database, query, QueryPlanner.LEAPFROG);
+	}
+
+	/**
+	 * Compiles a query without using the cache, choosing whether a cyclic query
+	 * may be evaluated by LeapfrogTriejoin, so that both ways can be compared.
+	 *
+	 * @param database
+	 *            the database the query is evaluated against.
+	 * @param query
+	 *            a string corresponding to a user entry.
+	 * @param leapfrog
+	 *            false to join the conditions pairwise.
+	 * @return an instance of QueryPlan.
+	 * @throws IllegalArgumentException
+	 *             if LIMIT or OFFSET is given twice.
+	 */
+	public static QueryPlan compile(Database database, String query, boolean leapfrog) {
+		String text = normalize(query);
+		String[] splitQuery = text.split(":");
+		String[] selectors = splitQuery[0].split(",");
+		String whereStatement = splitQuery[1];
+		long offset = -1;
+		long limit = -1;
+		int lastCondition = whereStatement.lastIndexOf('&') + 1;
+		Matcher modifiers = MODIFIERS.matcher(whereStatement.substring(lastCondition));
+		if (modifiers.matches()) {
+			Matcher matcher = MODIFIER.matcher(modifiers.group(2));
+			while (matcher.find()) {
+				long value = Long.parseLong(matcher.group(2));
+				if (matcher.group(1).equalsIgnoreCase("LIMIT")) {
+					if (limit >= 0) {
+						throw new IllegalArgumentException("LIMIT is given twice");
+					}
+					limit = value;
+				} else {
+					if (offset >= 0) {
+						throw new IllegalArgumentException("OFFSET is given twice");
+					}
+					offset = value;
+				}
+			}
+			whereStatement = whereStatement.substring(0, lastCondition) + modifiers.group(1);
+		}
+		String[] conditionStatements = whereStatement.split("&");
+		QueryPlan.Pattern[] patterns = new QueryPlan.Pattern[conditionStatements.length];
+		for (int index = 0; index < patterns.length; index++) {
+			patterns[index] = new QueryPlan.Pattern(database, conditionStatements[index]);
+		}
+		// Evaluate the most selective conditions first
+		QueryPlanner planner = new QueryPlanner(database, leapfrog);
+		patterns = planner.order(patterns);
+		return new QueryPlan(database, selectors, patterns, planner.leapfrogOrder(patterns), Math.max(0, offset), limit);
+	}
+
+	/**
+	 * A map evicting its least recently used entry beyond a capacity.
+	 */
+	private static class PlanCache extends LinkedHashMap<String, QueryPlan> {
+
+		/**
+		 * 
+		 */
+		private static final long serialVersionUID = 1L;
+		private final int capacity;
+
+		PlanCache(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, QueryPlan> eldest) {
+			return size() > capacity;
+		}
+	}
+}
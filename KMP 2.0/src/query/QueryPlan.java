@@ -0,0 +1,185 @@
+package query;
+
+import model.Data;
+import persistence.Database;
+
+/**
+ * This class is a compiled query: its selectors and its conditions, parsed,
+ * resolved to term ids and put in the order chosen by QueryPlanner. A plan is
+ * immutable and can be evaluated any number of times by Context.
+ *
+ * A cyclic query also carries the variable order of its leapfrog triejoin.
+ *
+ * A plan is only valid for the database it was compiled against, as long as no
+ * term has been added or removed and the number of triples has not drifted too
+ * far from the one the join order was estimated with.
+ */
+public final class QueryPlan {
+
+	/**
+	 * Smallest change in the number of triples, and fraction of it, after which
+	 * the statistics the join order relies on are considered outdated.
+	 */
+	private static final long MINIMUM_DRIFT = 64;
+	private static final long DRIFT_DIVISOR = 4;
+
+	private final String[] selectors;
+	private final Pattern[] patterns;
+	private final String[] leapfrogVariables;
+	private final long offset;
+	private final long limit;
+	private final Database database;
+	private final long version;
+	private final long tripleCount;
+
+	QueryPlan(Database database, String[] selectors, Pattern[] patterns, String[] leapfrogVariables, long offset,
+			long limit) {
+		this.database = database;
+		this.selectors = selectors;
+		this.patterns = patterns;
+		this.leapfrogVariables = leapfrogVariables;
+		this.offset = offset;
+		this.limit = limit;
+		version = database.getVersion();
+		tripleCount = database.tripleCount();
+	}
+
+	/**
+	 * Returns the selected variables. The array must not be modified.
+	 */
+	String[] getSelectors() {
+		return selectors;
+	}
+
+	/**
+	 * Returns the conditions in evaluation order. The array must not be modified.
+	 */
+	Pattern[] getPatterns() {
+		return patterns;
+	}
+
+	/**
+	 * Returns the variables in the order the leapfrog triejoin binds them, or null
+	 * if the conditions are joined pairwise. The array must not be modified.
+	 */
+	String[] getLeapfrogVariables() {
+		return leapfrogVariables;
+	}
+
+	/**
+	 * Returns the number of lines to skip, given by OFFSET.
+	 */
+	long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Returns the maximum number of lines, given by LIMIT, or -1.
+	 */
+	long getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Returns a boolean indicating whether the query has a LIMIT or an OFFSET, in
+	 * which case it is evaluated by the pull-based operators so that evaluation
+	 * stops after the last line needed.
+	 */
+	boolean isBounded() {
+		return limit >= 0 || offset > 0;
+	}
+
+	/**
+	 * Returns a boolean indicating whether the plan can still be evaluated against
+	 * a database.
+	 *
+	 * @param database
+	 *            the database the query is evaluated against.
+	 * @return whether the plan is still valid.
+	 */
+	public boolean isValid(Database database) {
+		if (database != this.database || database.getVersion() != version) {
+			return false;
+		}
+		long drift = Math.abs(database.tripleCount() - tripleCount);
+		return drift <= Math.max(MINIMUM_DRIFT, tripleCount / DRIFT_DIVISOR);
+	}
+
+	/**
+	 * Gets the conditions of the query in the order they are evaluated
+	 * @return the conditions separated by '&', preceded by the variable order of
+	 *         the leapfrog triejoin if there is one
+	 */
+	public String getPlan() {
+		StringBuilder res = new StringBuilder();
+		if (leapfrogVariables != null) {
+			res.append("LEAPFROG ").append(String.join(" ", leapfrogVariables)).append(" | ");
+		}
+		int length = res.length();
+		for (Pattern pattern : patterns) {
+			if (res.length() > length) {
+				res.append(" & ");
+			}
+			res.append(pattern.statement);
+		}
+		if (limit >= 0) {
+			res.append(" LIMIT ").append(limit);
+		}
+		if (offset > 0) {
+			res.append(" OFFSET ").append(offset);
+		}
+		return res.toString();
+	}
+
+	@Override
+	public String toString() {
+		return String.join(", ", selectors) + " : " + getPlan();
+	}
+
+	/**
+	 * A condition of a query. Constants are resolved to term ids, -1 standing for
+	 * a variable. A constant that is not in the database makes the condition
+	 * match nothing.
+	 */
+	static final class Pattern {
+
+		final String statement;
+		final String left;
+		final String middle;
+		final String right;
+		final boolean leftVariable;
+		final boolean middleVariable;
+		final boolean rightVariable;
+		final int id;
+		final int relation;
+		final int subject;
+		final boolean unknownTerm;
+
+		Pattern(Database database, String statement) {
+			this.statement = statement;
+			String[] conditionStrings = statement.split(" ");
+			left = conditionStrings[0];
+			middle = conditionStrings[1];
+			right = conditionStrings[2];
+			leftVariable = left.charAt(0) == '?';
+			middleVariable = middle.charAt(0) == '?';
+			rightVariable = right.charAt(0) == '?';
+
+			relation = middleVariable ? -1 : resolve(database.findRelation(middle));
+			id = leftVariable ? -1 : resolve(database.findSubject(left));
+			subject = rightVariable ? -1 : resolve(database.findSubject(right));
+			unknownTerm = !middleVariable && relation < 0 || !leftVariable && id < 0 || !rightVariable && subject < 0;
+		}
+
+		private static int resolve(Data data) {
+			return data != null ? data.getTerm() : -1;
+		}
+
+		/**
+		 * Returns the number of constants of the condition.
+		 */
+		int constantCount() {
+			return (leftVariable ? 0 : 1) + (middleVariable ? 0 : 1) + (rightVariable ? 0 : 1);
+		}
+	}
+}
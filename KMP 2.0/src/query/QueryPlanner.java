@@ -0,0 +1,207 @@
+package query;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import persistence.Database;
+import persistence.RelationStatistics;
+
+/**
+ * This class orders the conditions of a query before Context evaluates them.
+ * The order is chosen greedily: the next condition is the one whose join with
+ * the conditions already chosen is estimated to produce the fewest lines.
+ * Conditions sharing a variable with the chosen ones are preferred to cartesian
+ * products.
+ *
+ * Cardinalities come from the database. A condition is costed exactly from the
+ * indexes for its constants, then divided by the number of distinct values of
+ * each of its variables already bound, as found in the statistics of its
+ * relation. A condition with constant id or subject is therefore usually chosen
+ * first, and it wins ties against conditions that only have a constant relation.
+ *
+ * Cyclic queries, such as triangles, are handed to LeapfrogTriejoin, whose
+ * running time is bounded by the largest possible result rather than by the
+ * intermediate results of pairwise joins. This can be turned off with the
+ * system property kmp.query.leapfrog=false.
+ */
+public class QueryPlanner {
+
+	static final boolean LEAPFROG = Boolean.parseBoolean(System.getProperty("kmp.query.leapfrog", "true"));
+
+	private Database database;
+	private final boolean leapfrog;
+
+	public QueryPlanner(Database database) {
+		this(database, LEAPFROG);
+	}
+
+	/**
+	 * @param database
+	 *            the database the queries are evaluated against.
+	 * @param leapfrog
+	 *            false to join cyclic queries pairwise, whatever
+	 *            kmp.query.leapfrog says.
+	 */
+	public QueryPlanner(Database database, boolean leapfrog) {
+		this.database = database;
+		this.leapfrog = leapfrog;
+	}
+
+	/**
+	 * Returns the conditions of a query in the order they should be evaluated.
+	 *
+	 * @param patterns
+	 *            the conditions of the WHERE phase, in the order of the query.
+	 * @return a new array holding the same conditions.
+	 */
+	QueryPlan.Pattern[] order(QueryPlan.Pattern[] patterns) {
+		List<Condition> remaining = new ArrayList<>();
+		for (QueryPlan.Pattern pattern : patterns) {
+			remaining.add(new Condition(pattern));
+		}
+		QueryPlan.Pattern[] ordered = new QueryPlan.Pattern[patterns.length];
+		Set<String> bound = new HashSet<>();
+		double lines = 1;
+		for (int position = 0; position < ordered.length; position++) {
+			Condition best = null;
+			double bestLines = 0;
+			boolean bestConnected = false;
+			for (Condition condition : remaining) {
+				boolean connected = condition.isConnected(bound);
+				double estimate = lines * condition.estimate(bound);
+				if (best == null || connected && !bestConnected || connected == bestConnected
+						&& (estimate < bestLines || estimate == bestLines && condition.constants > best.constants)) {
+					best = condition;
+					bestLines = estimate;
+					bestConnected = connected;
+				}
+			}
+			remaining.remove(best);
+			ordered[position] = best.pattern;
+			bound.addAll(best.variables);
+			lines = Math.max(1, bestLines);
+		}
+		return ordered;
+	}
+
+	/**
+	 * Returns the variable order of a leapfrog triejoin if the conditions form a
+	 * cycle and can all be evaluated by it: the relation of every condition is
+	 * constant and no condition repeats a variable. Variables are ordered as they
+	 * first appear in the ordered conditions, so the most selective ones are
+	 * bound first.
+	 *
+	 * @param ordered
+	 *            the conditions in the order returned by order.
+	 * @return an array of variables or null to join the conditions pairwise.
+	 */
+	String[] leapfrogOrder(QueryPlan.Pattern[] ordered) {
+		if (!leapfrog) {
+			return null;
+		}
+		List<String> variables = new ArrayList<>();
+		Map<String, String> components = new HashMap<>();
+		boolean cyclic = false;
+		for (QueryPlan.Pattern pattern : ordered) {
+			if (pattern.middleVariable || pattern.leftVariable && pattern.rightVariable
+					&& pattern.left.equals(pattern.right)) {
+				return null;
+			}
+			for (String variable : new String[] { pattern.left, pattern.right }) {
+				if (variable.charAt(0) == '?' && !components.containsKey(variable)) {
+					variables.add(variable);
+					components.put(variable, variable);
+				}
+			}
+			if (pattern.leftVariable && pattern.rightVariable) {
+				// An edge between two variables already connected closes a cycle
+				String leftComponent = component(components, pattern.left);
+				String rightComponent = component(components, pattern.right);
+				if (leftComponent.equals(rightComponent)) {
+					cyclic = true;
+				} else {
+					components.put(leftComponent, rightComponent);
+				}
+			}
+		}
+		return cyclic ? variables.toArray(new String[variables.size()]) : null;
+	}
+
+	private static String component(Map<String, String> components, String variable) {
+		String parent = components.get(variable);
+		while (!parent.equals(variable)) {
+			variable = parent;
+			parent = components.get(variable);
+		}
+		return variable;
+	}
+
+	/**
+	 * A condition of the query with the number of triples matching its
+	 * constants.
+	 */
+	private class Condition {
+
+		private final QueryPlan.Pattern pattern;
+		private final String[] strings;
+		private final List<String> variables = new ArrayList<>();
+		private final int constants;
+		private final long count;
+
+		Condition(QueryPlan.Pattern pattern) {
+			this.pattern = pattern;
+			strings = new String[] { pattern.left, pattern.middle, pattern.right };
+			for (String string : strings) {
+				if (string.charAt(0) == '?') {
+					variables.add(string);
+				}
+			}
+			constants = pattern.constantCount();
+			count = pattern.unknownTerm ? 0 : database.countTriples(pattern.id, pattern.relation, pattern.subject);
+		}
+
+		private boolean isConnected(Set<String> bound) {
+			for (String variable : variables) {
+				if (bound.contains(variable)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Estimates the number of lines the condition adds for each line of the
+		 * conditions already chosen.
+		 */
+		private double estimate(Set<String> bound) {
+			double estimate = count;
+			Set<String> divided = new HashSet<>();
+			for (int index = 0; index < 3; index++) {
+				String variable = strings[index];
+				if (variable.charAt(0) == '?' && bound.contains(variable) && divided.add(variable)) {
+					estimate /= Math.max(1, distinctValues(index));
+				}
+			}
+			return estimate;
+		}
+
+		/**
+		 * Returns the number of distinct values a position of the condition takes
+		 * in the database.
+		 */
+		private long distinctValues(int index) {
+			if (index == 1) {
+				return database.relationCount();
+			}
+			if (pattern.relation >= 0) {
+				RelationStatistics statistics = database.getStatistics(pattern.relation);
+				return index == 0 ? statistics.getIdCount() : statistics.getSubjectCount();
+			}
+			return index == 0 ? database.tableSize() : database.termCount() - database.relationCount();
+		}
+	}
+}
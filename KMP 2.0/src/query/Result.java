@@ -1,101 +1,331 @@
 package query;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import model.Data;
 import persistence.Database;
+import persistence.TermList;
 /**
  * This class is the closest to the user. It interacts with TransactionHandler for requests.
+ * A result is a batch of columns of term ids, one per selected variable in the order of the
+ * SELECT phase. Terms are only decoded to strings when the result is read.
  */
-public class Result {
+public class Result implements Iterable<Result.Row> {
 
-	private HashMap<String, ArrayList<Data>> selectorMappings;
-	private HashMap<String, Context.DataTypes> selectorTypes;
+	private static final TermList EMPTY = new TermList(0);
+
+	private String[] selectors = new String[0];
+	private TermList[] columns = new TermList[0];
+	private Context.DataTypes[] types = new Context.DataTypes[0];
 	private Database database;
 	private boolean associatedView;
-	
+	private String plan = "";
+
 	protected Result(Database database, boolean associatedView) {
 		this.database = database;
 		this.associatedView = associatedView;
-		selectorMappings = new HashMap<>();
-		selectorTypes = new HashMap<>();
 	}
 
 	/**
-	 * Adds an entry to selectorMappings
-	 * @param identifier the key of the entry
-	 * @param datafield the value of the entry
+	 * Adds a column to the result, or replaces the column of a variable selected twice
+	 * @param identifier the selected variable
+	 * @param datafield the term ids of the column, or null if the variable is not bound
 	 */
-	protected void putData(String identifier, ArrayList<Data> datafield) {
-		selectorMappings.put(identifier, datafield);
+	protected void putData(String identifier, TermList datafield) {
+		int column = columnOf(identifier);
+		if (column < 0) {
+			column = selectors.length;
+			selectors = Arrays.copyOf(selectors, column + 1);
+			columns = Arrays.copyOf(columns, column + 1);
+			types = Arrays.copyOf(types, column + 1);
+			selectors[column] = identifier;
+		}
+		columns[column] = datafield != null ? datafield : EMPTY;
 	}
-	
+
 	/**
-	 * Adds an entry to selectorMappings
-	 * @param identifier the key of the entry
-	 * @param dataType the value of the entry
+	 * Sets the type of a column added by putData
+	 * @param identifier the selected variable
+	 * @param dataType the type of its terms
 	 */
 	protected void putDataType(String identifier, Context.DataTypes dataType) {
-		selectorTypes.put(identifier, dataType);
+		types[columnOf(identifier)] = dataType;
+	}
+
+	/**
+	 * Sets the conditions of the query in the order they were evaluated
+	 * @param plan the conditions ordered by QueryPlanner, separated by '&'
+	 */
+	protected void setPlan(String plan) {
+		this.plan = plan;
+	}
+
+	/**
+	 * Gets the conditions of the query in the order they were evaluated
+	 * @return the conditions separated by '&'
+	 */
+	public String getPlan() {
+		return plan;
 	}
 
 	@Override
 	public String toString() {
-		
-		StringBuilder res = new StringBuilder();
-		
-		for (String identifier : selectorMappings.keySet()) {
-			
-			res.append("\n\n").append(identifier);
-			ArrayList<Data> datafield = selectorMappings.get(identifier);
-			
+
+		StringBuilder res = new StringBuilder(32 + 32 * size() * columns.length);
+
+		for (int column = 0; column < selectors.length; column++) {
+
+			res.append("\n\n").append(selectors[column]);
+			TermList datafield = columns[column];
+			Context.DataTypes type = types[column];
+
 			res.append("\n[");
-			
-			ArrayList<Data> alreadyFound = new ArrayList<>();
-			int index = 0;
-			for (Data data : datafield) {
-				if (selectorTypes.get(identifier).equals(Context.DataTypes.SUBJECT)) {
-					if (!alreadyFound.contains(data) && !associatedView) {
-						res.append("\n\t").append("Key : ").append(database.findKey(data.getId())).append(" => ").append(data);
-						alreadyFound.add(data);
-					} else if (associatedView) {
-						res.append("\n\t").append(index).append(") Key : ").append(database.findKey(data.getId())).append(" => ").append(data);
-					}
-				} else if (selectorTypes.get(identifier).equals(Context.DataTypes.RELATION)) {
-					if (!alreadyFound.contains(data) && !associatedView) {
-						res.append("\n\t").append("Relation : ").append(data);
-						alreadyFound.add(data);
-					} else if (associatedView) {
-						res.append("\n\t").append(index).append(") Relation : ").append(data);
-					}
+
+			// Without the associated view every distinct term is printed once
+			TermSet alreadyFound = associatedView ? null : new TermSet(datafield.size());
+			for (int index = 0; index < datafield.size(); index++) {
+				int term = datafield.get(index);
+				if (type == null || !associatedView && !alreadyFound.add(term)) {
+					continue;
+				}
+				res.append("\n\t");
+				if (associatedView) {
+					res.append(index).append(") ");
+				}
+				if (type == Context.DataTypes.SUBJECT) {
+					res.append("Key : ").append(database.findKey(term)).append(" => ").append(database.decode(term));
+				} else {
+					res.append("Relation : ").append(database.decode(term));
 				}
-				index++;
 			}
-			
+
 			res.append("\n]");
 		}
 		return res.toString();
 	}
 
 	/**
-	 * Gets the size of selectorMapping
-	 * @return the size of selectorMapping
+	 * Gets the number of lines of the result
+	 * @return the number of lines
 	 */
 	public int size() {
-		return selectorMappings.values().iterator().next().size();
+		return columns.length > 0 ? columns[0].size() : 0;
+	}
+
+	/**
+	 * Gets the selected variables in the order of the SELECT phase
+	 * @return a copy of the selected variables
+	 */
+	public String[] getSelectors() {
+		return selectors.clone();
 	}
-	
+
 	/**
 	 * Gets the data linked to the identifier of selectorMapping
 	 * @param identifier the key of the entry
 	 * @return the data linked to the identifier of selectorMapping
 	 */
 	public ArrayList<Data> getData(String identifier) {
-		if (selectorMappings.get(identifier) == null) {
-			return new ArrayList<Data>();
-		} else {
-			return selectorMappings.get(identifier);
+		TermList terms = getTerms(identifier);
+		ArrayList<Data> datafield = new ArrayList<>(terms.size());
+		for (int index = 0; index < terms.size(); index++) {
+			datafield.add(database.getData(terms.get(index)));
+		}
+		return datafield;
+	}
+
+	/**
+	 * Gets the term ids linked to the identifier of selectorMapping, without
+	 * decoding them
+	 * @param identifier the key of the entry
+	 * @return the term ids linked to the identifier of selectorMapping
+	 */
+	public TermList getTerms(String identifier) {
+		int column = columnOf(identifier);
+		return column >= 0 ? columns[column] : new TermList();
+	}
+
+	/**
+	 * Iterates over the lines of the result. The same instance of Row is returned
+	 * by every call to next and moved to the next line, so nothing is allocated per line.
+	 * @return an iterator over the lines
+	 */
+	@Override
+	public Iterator<Row> iterator() {
+		return new Iterator<Row>() {
+
+			private final Row row = new Row();
+
+			@Override
+			public boolean hasNext() {
+				return row.index + 1 < size();
+			}
+
+			@Override
+			public Row next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				row.index++;
+				return row;
+			}
+		};
+	}
+
+	/**
+	 * Creates a result holding every distinct line of this one once, in the order
+	 * of their first occurrence. Lines are compared through a hash table of line numbers.
+	 * @return a new instance of Result
+	 */
+	public Result distinct() {
+		int size = size();
+		int width = columns.length;
+		int capacity = Integer.highestOneBit(Math.max(2, size) * 2 - 1) << 1;
+		int[] table = new int[capacity];
+		int mask = capacity - 1;
+		TermList[] distinctColumns = new TermList[width];
+		for (int column = 0; column < width; column++) {
+			distinctColumns[column] = new TermList(Math.max(1, size));
+		}
+		for (int line = 0; line < size; line++) {
+			int hash = 1;
+			for (int column = 0; column < width; column++) {
+				hash = 31 * hash + columns[column].get(line);
+			}
+			int slot = mix(hash) & mask;
+			boolean duplicate = false;
+			// Slots hold a line number plus one, 0 marks an empty slot
+			while (table[slot] != 0) {
+				if (sameLine(table[slot] - 1, line)) {
+					duplicate = true;
+					break;
+				}
+				slot = slot + 1 & mask;
+			}
+			if (!duplicate) {
+				table[slot] = line + 1;
+				for (int column = 0; column < width; column++) {
+					distinctColumns[column].add(columns[column].get(line));
+				}
+			}
+		}
+		Result result = new Result(database, associatedView);
+		result.selectors = selectors;
+		result.columns = distinctColumns;
+		result.types = types;
+		result.plan = plan;
+		return result;
+	}
+
+	private boolean sameLine(int first, int second) {
+		for (TermList column : columns) {
+			if (column.get(first) != column.get(second)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int mix(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ hash >>> 16;
+	}
+
+	private int columnOf(String identifier) {
+		for (int column = 0; column < selectors.length; column++) {
+			if (selectors[column].equals(identifier)) {
+				return column;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * A line of the result, read through the columns without copying them.
+	 */
+	public final class Row {
+
+		private int index = -1;
+
+		/**
+		 * Gets the number of the line in the result
+		 * @return a line number
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * Gets the term id of a column of the line
+		 * @param column the position of the variable in the SELECT phase
+		 * @return a term id
+		 */
+		public int getTerm(int column) {
+			return columns[column].get(index);
+		}
+
+		/**
+		 * Gets the term id of a selected variable of the line
+		 * @param identifier the selected variable
+		 * @return a term id
+		 */
+		public int getTerm(String identifier) {
+			return getTerm(columnOf(identifier));
+		}
+
+		/**
+		 * Gets the decoded value of a column of the line
+		 * @param column the position of the variable in the SELECT phase
+		 * @return the instance of Subject or Relation
+		 */
+		public Data getData(int column) {
+			return database.getData(getTerm(column));
+		}
+
+		/**
+		 * Gets the string of a column of the line
+		 * @param column the position of the variable in the SELECT phase
+		 * @return the id of the Subject or Relation
+		 */
+		public String getString(int column) {
+			return database.decode(getTerm(column));
+		}
+	}
+
+	/**
+	 * An open-addressing set of terms, used to print each distinct term once.
+	 */
+	private static final class TermSet {
+
+		private final int[] slots;
+		private boolean containsZero;
+
+		TermSet(int expected) {
+			slots = new int[Integer.highestOneBit(Math.max(2, expected) * 2 - 1) << 1];
+		}
+
+		/**
+		 * @return false if the term was already in the set.
+		 */
+		boolean add(int term) {
+			if (term == 0) {
+				boolean added = !containsZero;
+				containsZero = true;
+				return added;
+			}
+			int mask = slots.length - 1;
+			for (int slot = mix(term) & mask;; slot = slot + 1 & mask) {
+				if (slots[slot] == term) {
+					return false;
+				}
+				if (slots[slot] == 0) {
+					slots[slot] = term;
+					return true;
+				}
+			}
 		}
 	}
 }
@@ -0,0 +1,273 @@
+package query;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+import persistence.Database;
+import persistence.DatabaseListener;
+import persistence.EntryData;
+
+/**
+ * This class keeps the results of the most recently used queries, keyed by the
+ * normalized text of the query, so that a query repeated between two writes is
+ * evaluated once. Every result is tagged with the relations its conditions
+ * read; the cache listens to the database and forgets only the results tagged
+ * with the relation of a triple that is added or removed. A query whose
+ * relation is a variable, or is not in the database yet, is tagged with every
+ * relation.
+ *
+ * The cache holds at most kmp.result.cache results, 128 by default, and at most
+ * kmp.result.cache.cells selected values over all of them, 1048576 by default.
+ * The least recently used results are evicted first.
+ */
+public class ResultCache implements DatabaseListener {
+
+	private final int capacity;
+	private final long cellCapacity;
+
+	private final LinkedHashMap<String, CachedResult> results = new LinkedHashMap<>(16, 0.75f, true);
+	private final HashMap<Integer, Set<String>> queriesByRelation = new HashMap<>();
+	private final Set<String> anyRelationQueries = new HashSet<>();
+	private long cells;
+
+	private Database database;
+	private long hits;
+	private long misses;
+
+	public ResultCache() {
+		this(Integer.getInteger("kmp.result.cache", 128), Long.getLong("kmp.result.cache.cells", 1 << 20));
+	}
+
+	/**
+	 * @param capacity
+	 *            the maximum number of results kept.
+	 * @param cellCapacity
+	 *            the maximum number of selected values kept over all results.
+	 */
+	public ResultCache(int capacity, long cellCapacity) {
+		this.capacity = Math.max(0, capacity);
+		this.cellCapacity = Math.max(0, cellCapacity);
+	}
+
+	/**
+	 * Makes the cache follow a database. The cached results are forgotten if it
+	 * is not the database they were computed from, as after a reset, an import or
+	 * an undo replacing the database.
+	 *
+	 * @param database
+	 *            the database queries are evaluated against.
+	 */
+	public void attach(Database database) {
+		if (this.database != database) {
+			if (this.database != null) {
+				this.database.removeListener(this);
+			}
+			clear();
+			database.addListener(this);
+			this.database = database;
+		}
+	}
+
+	/**
+	 * Returns the cached result of a query and counts a hit, or counts a miss.
+	 *
+	 * @param query
+	 *            a query normalized by QueryCompiler.normalize.
+	 * @return an instance of Result or null.
+	 */
+	public Result get(String query) {
+		CachedResult cached = results.get(query);
+		if (cached == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return cached.result;
+	}
+
+	/**
+	 * Keeps the result of a query, tagged with the relations of its plan. A
+	 * result larger than the whole cache is not kept.
+	 *
+	 * @param query
+	 *            a query normalized by QueryCompiler.normalize.
+	 * @param plan
+	 *            the plan the result was evaluated from.
+	 * @param result
+	 *            the result to keep.
+	 */
+	public void put(String query, QueryPlan plan, Result result) {
+		long resultCells = 0;
+		for (String selector : plan.getSelectors()) {
+			resultCells += result.getTerms(selector).size();
+		}
+		if (capacity == 0 || resultCells > cellCapacity) {
+			return;
+		}
+		remove(query);
+		Set<Integer> relations = new HashSet<>();
+		boolean anyRelation = false;
+		for (QueryPlan.Pattern pattern : plan.getPatterns()) {
+			if (pattern.relation < 0) {
+				anyRelation = true;
+			} else {
+				relations.add(pattern.relation);
+			}
+		}
+		if (anyRelation) {
+			relations.clear();
+			anyRelationQueries.add(query);
+		}
+		for (int relation : relations) {
+			Set<String> queries = queriesByRelation.get(relation);
+			if (queries == null) {
+				queries = new HashSet<>();
+				queriesByRelation.put(relation, queries);
+			}
+			queries.add(query);
+		}
+		results.put(query, new CachedResult(result, relations, resultCells));
+		cells += resultCells;
+
+		// Evict the least recently used results
+		while (results.size() > capacity || cells > cellCapacity) {
+			remove(results.keySet().iterator().next());
+		}
+	}
+
+	/**
+	 * Forgets every cached result. The counters are kept.
+	 */
+	public void clear() {
+		results.clear();
+		queriesByRelation.clear();
+		anyRelationQueries.clear();
+		cells = 0;
+	}
+
+	/**
+	 * Returns the number of cached results.
+	 *
+	 * @return a number of results.
+	 */
+	public int size() {
+		return results.size();
+	}
+
+	/**
+	 * Returns the number of queries answered from the cache.
+	 *
+	 * @return a number of queries.
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of queries that had to be evaluated.
+	 *
+	 * @return a number of queries.
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	@Override
+	public String toString() {
+		return results.size() + " results cached, " + hits + " hits, " + misses + " misses";
+	}
+
+	@Override
+	public void tripleAdded(int id, int relation, int subject) {
+		invalidate(relation);
+	}
+
+	@Override
+	public void tripleRemoved(int id, int relation, int subject) {
+		invalidate(relation);
+	}
+
+	@Override
+	public void entryInserted(int key, EntryData entryData) {
+		invalidate(entryData);
+	}
+
+	@Override
+	public void entryReplaced(int key, EntryData previous, EntryData entryData) {
+		if (previous != null) {
+			invalidate(previous);
+		}
+		invalidate(entryData);
+	}
+
+	@Override
+	public void lastEntryRemoved(int key, EntryData entryData) {
+		invalidate(entryData);
+	}
+
+	@Override
+	public void databaseReset() {
+		clear();
+	}
+
+	/**
+	 * Forgets the results reading a relation of an entry.
+	 */
+	private void invalidate(EntryData entryData) {
+		for (int relation : entryData.getRelationTerms()) {
+			invalidate(relation);
+		}
+	}
+
+	/**
+	 * Forgets the results reading a relation.
+	 */
+	private void invalidate(int relation) {
+		Set<String> queries = queriesByRelation.get(relation);
+		if (queries != null) {
+			for (String query : queries.toArray(new String[queries.size()])) {
+				remove(query);
+			}
+		}
+		if (!anyRelationQueries.isEmpty()) {
+			for (String query : anyRelationQueries.toArray(new String[anyRelationQueries.size()])) {
+				remove(query);
+			}
+		}
+	}
+
+	private void remove(String query) {
+		CachedResult cached = results.remove(query);
+		if (cached == null) {
+			return;
+		}
+		cells -= cached.cells;
+		anyRelationQueries.remove(query);
+		for (int relation : cached.relations) {
+			Set<String> queries = queriesByRelation.get(relation);
+			queries.remove(query);
+			if (queries.isEmpty()) {
+				queriesByRelation.remove(relation);
+			}
+		}
+	}
+
+	/**
+	 * A cached result with the relations it is tagged with and its number of
+	 * selected values.
+	 */
+	private static final class CachedResult {
+
+		final Result result;
+		final Set<Integer> relations;
+		final long cells;
+
+		CachedResult(Result result, Set<Integer> relations, long cells) {
+			this.result = result;
+			this.relations = relations;
+			this.cells = cells;
+		}
+	}
+}
@@ -1,9 +1,16 @@
 package query;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import model.Data;
 import model.Relation;
@@ -11,6 +18,9 @@ import model.Subject;
 import persistence.Database;
 import persistence.DatabaseSerializer;
 import persistence.EntryData;
+import persistence.SnapshotPublisher;
+import persistence.TermList;
+import persistence.TripleImporter;
 
 /**
  * This class is an intermediary request handling class and communicates with
@@ -18,17 +28,61 @@ import persistence.EntryData;
  */
 public class TransactionHandler {
 
+	/**
+	 * Number of insertions of a bulk insertion between two publications of the
+	 * snapshot.
+	 */
+	private static final int SNAPSHOT_INTERVAL = 10000;
+
 	private Database database;
 	private DatabaseSerializer databaseSerializer;
+	private QueryCompiler queryCompiler = new QueryCompiler();
+	private ResultCache resultCache = new ResultCache();
 	private boolean relationPropertyApplicationShouldControlInsertion = false;
 
+	/**
+	 * Relations whose properties must be applied at the end of a bulk load, null
+	 * outside of a bulk load. Concurrent insertions add to it from several threads.
+	 */
+	private volatile Set<Relation> deferredRelations;
+
+	/**
+	 * Publishes the database to the queries of other threads, null unless
+	 * snapshots are enabled. Set by kmp.snapshots or enableSnapshots.
+	 */
+	private volatile SnapshotPublisher snapshotPublisher;
+
+	/**
+	 * Number of commands running, the properties of a relation being applied
+	 * through nested insertions. Snapshots are published when the outermost
+	 * command ends.
+	 */
+	private int commandDepth;
+
 	public TransactionHandler() {
 		database = new Database();
 		databaseSerializer = new DatabaseSerializer(database);
 		try {
 			database = databaseSerializer.initCommand();
 		} catch (ClassNotFoundException | IOException e) {
-			e.printStackTrace();
+			// Going on with an empty database would write it over the file of the user
+			throw new IllegalStateException("The database of the user cannot be loaded", e);
+		}
+		if (Boolean.getBoolean("kmp.snapshots")) {
+			enableSnapshots();
+		}
+	}
+
+	/**
+	 * Lets other threads query the database through openSnapshot while this
+	 * thread keeps writing to it. The database is copied twice, which triples the
+	 * memory it uses. Must be called by the thread writing to the database.
+	 */
+	public void enableSnapshots() {
+		if (snapshotPublisher == null) {
+			SnapshotPublisher publisher = new SnapshotPublisher();
+			publisher.attach(database);
+			snapshotPublisher = publisher;
 		}
 	}
 
@@ -38,9 +92,10 @@ public class TransactionHandler {
 	public void requestUndo() {
 		try {
 			database = databaseSerializer.undoCommand();
-		} catch (ClassNotFoundException | IOException e) {
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		publishSnapshot();
 	}
 	
 	/**
@@ -49,21 +104,28 @@ public class TransactionHandler {
 	public void requestRedo() {
 		try {
 			database = databaseSerializer.redoCommand();
-		} catch (ClassNotFoundException | IOException e) {
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		publishSnapshot();
 	}
 	
 	/**
-	 * Imports a database from the absolute path given
+	 * Imports a database from the absolute path given. A file not ending with .kmp is read as
+	 * N-Triples or CSV and its triples are added to the current database
 	 * @param pathFile absolute path of the file containing the database
 	 */
 	public void requestImport(String pathFile) {
+		if (!pathFile.toLowerCase().endsWith(".kmp")) {
+			requestTripleImport(pathFile);
+			return;
+		}
 		try {
 			database = databaseSerializer.importCommand(pathFile);
 		} catch (ClassNotFoundException | IOException e) {
 			e.printStackTrace();
 		}
+		publishSnapshot();
 	}
 	
 	/**
@@ -82,12 +144,13 @@ public class TransactionHandler {
 	 * Restores the database to its initial state.
 	 */
 	public void requestReset() {
-		database.reset();
+		database = new Database();
 		try {
 			databaseSerializer.resetCommand(database);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		publishSnapshot();
 	}
 	
 	/**
@@ -97,136 +160,365 @@ public class TransactionHandler {
 	 *            a string corresponding to a user entry.
 	 */
 	public void requestInsert(String insertion) {
+		beginCommand();
+		try {
+			insert(insertion);
+		} finally {
+			endCommand();
+		}
+	}
 
-		String[] splitInsertion = insertion.split(" ");
-		String id = splitInsertion[0];
-		int key = database.findKey(id);
-		Subject subjectId;
-		EntryData entryData;
-		boolean newEntryData = false;
-
-		if (key == 0) {
-			entryData = new EntryData();
-			newEntryData = true;
-			subjectId = database.findSubject(id);
-
-			if (subjectId != null) {
-				entryData.setID(subjectId);
-			} else {
-				Subject newSubject = new Subject(id);
-				entryData.setID(newSubject);
-				database.addSubject(newSubject);
-				subjectId = newSubject;
-			}
+	private void insert(String insertion) {
 
-		} else {
-			entryData = database.getEntryData(key);
-			subjectId = entryData.getIDSubject();
-		}
+		String[] splitInsertion = insertion.split(" ");
+		EntryData entryData = findOrInsertEntry(splitInsertion[0]);
+		int subjectId = entryData.getIdTerm();
 
-		boolean partialInsertionRequired = false;
-		
 		for (int index = 1; index + 1 < splitInsertion.length; index++) {
 			
 			Relation relation = database.findRelation(splitInsertion[index]);
 			boolean existingRelationNeedsUpdating = false;
 			
 			if (relation == null) {
-				relation = new Relation(splitInsertion[index]);
-				database.addRelation(relation);
+				database.addRelation(new Relation(splitInsertion[index]));
+				// Another thread may have added the relation first
+				relation = database.findRelation(splitInsertion[index]);
 			} else {
 				existingRelationNeedsUpdating = true;
-				partialInsertionRequired = true;
 			}
 
-			Subject subject = database.findSubject(splitInsertion[++index]);
+			Subject subjectObject = database.findSubject(splitInsertion[++index]);
 
-			if (subject == null) {
-				subject = new Subject(splitInsertion[index]);
-				requestInsert(splitInsertion[index]);
-			}
-			
-			// Check whether or not the relation's properties validate the insertion.
-			boolean canInsert = true;
-			for (Relation.Properties property : Relation.Properties.values()) {
-				switch (property) {
-				case REFLEXIVE:
-					if (relation.isPropertyActive(Relation.Properties.REFLEXIVE)) {
-						if (!subjectId.equals(subject)) {
-							canInsert = false;
-						}
-					} else {
-						if (subjectId.equals(subject)) {
-							canInsert = false;
-						}
-					}
-					break;
-				case IRREFLEXIVE:
-					if (relation.isPropertyActive(Relation.Properties.IRREFLEXIVE)) {
-						if (subjectId.equals(subject)) {
-							canInsert = false;
-						}
-					} 
-					break;
-				case SYMMETRIC:
-					break;
-				case ANTISYMMETRIC:
-					// if R(a,b) with a != b, then R(b,a) must not hold.
-					if (relation.isPropertyActive(Relation.Properties.ANTISYMMETRIC)) {
-						if (!subjectId.equals(subject)) {
-							int subjectKey = database.findKey(subject);
-							EntryData subjectEntryData = database.getEntryData(subjectKey);
-							if (subjectEntryData.hasRelation(relation)) {
-								if (subjectEntryData.getSubjects(relation).contains(subjectId)) {
-									canInsert = false;
-								}
-							}
-						}
-					}
-					break;
-				case ASYMMETRIC:
-					// In this case a and b can be the same or different.
-					if (relation.isPropertyActive(Relation.Properties.ANTISYMMETRIC)) {
-						int subjectKey = database.findKey(subject);
-						EntryData subjectEntryData = database.getEntryData(subjectKey);
-						if (subjectEntryData.hasRelation(relation)) {
-							if (subjectEntryData.getSubjects(relation).contains(subjectId)) {
-								canInsert = false;
-							}
-						}
-					}
-					break;
-				
-				case TRANSITIVE:
-					
-					break;
-				}
+			if (subjectObject == null) {
+				insert(splitInsertion[index]);
+				subjectObject = database.findSubject(splitInsertion[index]);
 			}
+			int subject = subjectObject.getTerm();
+			int relationTerm = relation.getTerm();
 			
-			if (canInsert) {
-				entryData.put(relation, subject);
+			TermList inserted = new TermList(2);
+			if (validatesInsertion(relation, subjectId, subject)
+					&& database.addTriple(entryData, relationTerm, subject)) {
+				inserted.add(subjectId);
+				inserted.add(subject);
 			}
 			
-			if (partialInsertionRequired) {
-				if (key == 0) {
-					database.insert(entryData);
+			if (existingRelationNeedsUpdating && !relationPropertyApplicationShouldControlInsertion) {
+				Set<Relation> deferred = deferredRelations;
+				if (deferred != null) {
+					deferred.add(relation);
 				} else {
-					database.replaceEntry(key, entryData);
+					applyRelationProperties(relation, inserted);
 				}
 			}
+		}
 
-			if (existingRelationNeedsUpdating && !relationPropertyApplicationShouldControlInsertion) {
-				applyRelationProperties(relation);
+	}
+
+	/**
+	 * Returns the entry of an id, inserting the id and its entry if needed.
+	 * 
+	 * @param id
+	 *            the string of the id.
+	 * @return an instance of EntryData.
+	 */
+	private EntryData findOrInsertEntry(String id) {
+		Subject existingSubject = database.findSubject(id);
+		int subjectId = existingSubject != null ? existingSubject.getTerm() : database.addSubject(new Subject(id));
+		return database.findOrInsertEntry(subjectId);
+	}
+
+	/**
+	 * Handles a batch of insertion requests. The properties of the relations are
+	 * applied once, to the whole relations, after the last insertion, and the
+	 * database is written once instead of after every insertion. Blank lines and
+	 * lines starting with '#' are skipped. The batch cannot be undone.
+	 * 
+	 * @param insertions
+	 *            strings corresponding to user entries.
+	 * @return the number of insertions handled.
+	 */
+	public long requestBulkInsert(Iterator<String> insertions) {
+		long count = 0;
+		beginCommand();
+		try {
+			beginBulkInsert();
+			while (insertions.hasNext()) {
+				String insertion = insertions.next().trim();
+				if (!insertion.isEmpty() && insertion.charAt(0) != '#') {
+					insert(insertion);
+					if (++count % SNAPSHOT_INTERVAL == 0) {
+						publishSnapshot();
+					}
+				}
 			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			endBulkInsert();
+			endCommand();
 		}
-		
-		if (newEntryData && !partialInsertionRequired) {
-			database.insert(entryData);
+		return count;
+	}
+
+	/**
+	 * Starts a concurrent insertion, a bulk insertion during which
+	 * requestConcurrentInsert can be called by several threads at once. Threads
+	 * inserting distinct ids rarely wait for each other. The properties of the
+	 * relations are applied by endConcurrentInsert, and the insertion cannot be
+	 * undone. No other request may be made until endConcurrentInsert.
+	 */
+	public void beginConcurrentInsert() {
+		beginCommand();
+		try {
+			beginBulkInsert();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Handles an insertion request between beginConcurrentInsert and
+	 * endConcurrentInsert. It can be called by any thread.
+	 * 
+	 * @param insertion
+	 *            a string corresponding to a user entry.
+	 * @throws IllegalStateException
+	 *             if no concurrent insertion is running.
+	 */
+	public void requestConcurrentInsert(String insertion) {
+		if (deferredRelations == null) {
+			throw new IllegalStateException("No concurrent insertion is running");
+		}
+		insert(insertion);
+	}
+
+	/**
+	 * Ends a concurrent insertion once every thread is done inserting, applies
+	 * the properties of the relations touched and writes the database.
+	 */
+	public void endConcurrentInsert() {
+		if (deferredRelations != null) {
+			endBulkInsert();
+			endCommand();
+		}
+	}
+
+	/**
+	 * Imports the triples of an N-Triples or CSV file into the current database,
+	 * as a bulk insertion. The file is parsed on several threads by
+	 * TripleImporter and its triples are inserted here, by a single thread, with
+	 * the same validation as requestInsert.
+	 * 
+	 * @param pathFile
+	 *            the path of the file.
+	 * @return the number of triples read.
+	 */
+	public long requestTripleImport(String pathFile) {
+		long count = 0;
+		long skipped = 0;
+		if (!Files.exists(Paths.get(pathFile))) {
+			System.out.println("File doesn't exist !");
+			return count;
+		}
+		beginCommand();
+		try (TripleImporter importer = new TripleImporter(pathFile)) {
+			beginBulkInsert();
+			for (TripleImporter.Batch batch = importer.nextBatch(); batch != null; batch = importer.nextBatch()) {
+				insertBatch(batch);
+				count += batch.size();
+				skipped += batch.getSkipped();
+				publishSnapshot();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			endBulkInsert();
+			endCommand();
+		}
+		if (skipped > 0) {
+			System.out.println(skipped + " lines skipped in " + pathFile);
+		}
+		return count;
+	}
+
+	/**
+	 * Inserts the triples of a parsed chunk. Each term of the chunk is resolved
+	 * to the database once, whatever the number of triples using it.
+	 */
+	private void insertBatch(TripleImporter.Batch batch) {
+		EntryData[] entries = new EntryData[batch.termCount()];
+		Relation[] relations = new Relation[batch.termCount()];
+		int[] subjects = new int[batch.termCount()];
+		Arrays.fill(subjects, -1);
+		for (int triple = 0; triple < batch.size(); triple++) {
+			int id = batch.getId(triple);
+			if (entries[id] == null) {
+				entries[id] = findOrInsertEntry(batch.getTerm(id));
+			}
+			int relationTerm = batch.getRelation(triple);
+			Relation relation = relations[relationTerm];
+			if (relation == null) {
+				relation = database.findRelation(batch.getTerm(relationTerm));
+				if (relation == null) {
+					relation = new Relation(batch.getTerm(relationTerm));
+					database.addRelation(relation);
+				}
+				relations[relationTerm] = relation;
+				deferredRelations.add(relation);
+			}
+			int subjectTerm = batch.getSubject(triple);
+			if (subjects[subjectTerm] < 0) {
+				// As in requestInsert, an unknown subject gets an entry
+				Subject subject = database.findSubject(batch.getTerm(subjectTerm));
+				subjects[subjectTerm] = subject != null ? subject.getTerm()
+						: findOrInsertEntry(batch.getTerm(subjectTerm)).getIdTerm();
+			}
+			EntryData entryData = entries[id];
+			if (validatesInsertion(relation, entryData.getIdTerm(), subjects[subjectTerm])) {
+				database.addTriple(entryData, relation.getTerm(), subjects[subjectTerm]);
+			}
+		}
+	}
+
+	/**
+	 * Starts deferring the application of relation properties and the
+	 * persistence of the changes.
+	 */
+	private void beginBulkInsert() throws IOException {
+		deferredRelations = ConcurrentHashMap.newKeySet();
+		databaseSerializer.beginBulkLoadCommand(database);
+	}
+
+	/**
+	 * Applies the properties of the relations touched since beginBulkInsert and
+	 * writes the database.
+	 */
+	private void endBulkInsert() {
+		Set<Relation> deferred = deferredRelations;
+		if (deferred == null) {
+			return;
+		}
+		deferredRelations = null;
+		// In the order the relations were added to the database
+		ArrayList<Relation> relations = new ArrayList<>(deferred);
+		relations.sort(Comparator.comparingInt(Relation::getTerm));
+		for (Relation relation : relations) {
+			applyRelationProperties(relation);
+		}
+		try {
+			databaseSerializer.endBulkLoadCommand(database);
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
+	}
+
+	private void beginCommand() {
+		commandDepth++;
+	}
 
+	private void endCommand() {
+		if (--commandDepth == 0) {
+			publishSnapshot();
+		}
+	}
+
+	/**
+	 * Makes the changes made so far visible to the snapshots opened from now on.
+	 * The publication is postponed to the end of the next command, or to the next
+	 * call, while a snapshot of the previous one is open. Must be called by the
+	 * thread writing to the database.
+	 * @return the version of the snapshots holding the changes, for awaitSnapshot,
+	 *         0 if snapshots are not enabled
+	 */
+	public long publishSnapshot() {
+		SnapshotPublisher publisher = snapshotPublisher;
+		if (publisher == null) {
+			return 0;
+		}
+		publisher.attach(database);
+		publisher.publish();
+		return publisher.getPendingVersion();
+	}
+
+	/**
+	 * Checks whether or not the properties of a relation validate the triple
+	 * (subjectId, relation, subject).
+	 * 
+	 * @param relation
+	 *            an instance of Relation.
+	 * @param subjectId
+	 *            the term of the entry holding the triple.
+	 * @param subject
+	 *            the subject term of the triple.
+	 * @return a boolean indicating whether the triple can be inserted.
+	 */
+	private boolean validatesInsertion(Relation relation, int subjectId, int subject) {
+		int relationTerm = relation.getTerm();
+		boolean canInsert = true;
+		for (Relation.Properties property : Relation.Properties.values()) {
+			switch (property) {
+			case REFLEXIVE:
+				if (relation.isPropertyActive(Relation.Properties.REFLEXIVE)) {
+					if (subjectId != subject) {
+						canInsert = false;
+					}
+				} else {
+					if (subjectId == subject) {
+						canInsert = false;
+					}
+				}
+				break;
+			case IRREFLEXIVE:
+				if (relation.isPropertyActive(Relation.Properties.IRREFLEXIVE)) {
+					if (subjectId == subject) {
+						canInsert = false;
+					}
+				} 
+				break;
+			case SYMMETRIC:
+				break;
+			case ANTISYMMETRIC:
+				// if R(a,b) with a != b, then R(b,a) must not hold.
+				if (relation.isPropertyActive(Relation.Properties.ANTISYMMETRIC)) {
+					if (subjectId != subject && database.containsTriple(subject, relationTerm, subjectId)) {
+						canInsert = false;
+					}
+				}
+				break;
+			case ASYMMETRIC:
+				// In this case a and b can be the same or different.
+				if (relation.isPropertyActive(Relation.Properties.ANTISYMMETRIC)
+						&& database.containsTriple(subject, relationTerm, subjectId)) {
+					canInsert = false;
+				}
+				break;
+			
+			case TRANSITIVE:
+				
+				break;
+			}
+		}
+		return canInsert;
 	}
 
 	private void applyRelationProperties(Relation relation) {
+		applyRelationProperties(relation, null);
+	}
+
+	/**
+	 * Applies the active properties of a relation. When the properties are
+	 * applied after an insertion, the closure of a transitive relation is only
+	 * extended with the triples the insertion implies.
+	 * 
+	 * @param relation
+	 *            the relation that has to be changed.
+	 * @param insertion
+	 *            the pair (id, subject) of the triple just inserted, empty if
+	 *            the insertion added nothing, or null to apply the properties
+	 *            to the whole relation.
+	 */
+	private void applyRelationProperties(Relation relation, TermList insertion) {
 		
 		relationPropertyApplicationShouldControlInsertion = true;
 		
@@ -249,7 +541,11 @@ public class TransactionHandler {
 					applyAsymmetry(relation);
 					break;
 				case TRANSITIVE:
-					applyTransitivity(relation);
+					if (insertion == null) {
+						applyTransitivity(relation);
+					} else {
+						extendTransitivity(relation, insertion);
+					}
 					break;
 				}
 			} else {
@@ -319,10 +615,10 @@ public class TransactionHandler {
 	 * @param relation the relation that has to be changed
 	 */
 	private void applyReflexivity(Relation relation) {
-		relation.setProperty(Relation.Properties.IRREFLEXIVE, false);
+		database.setRelationProperty(relation, Relation.Properties.IRREFLEXIVE, false);
 		for (EntryData entryData : database.getAllEntries()) {
-			if (entryData.hasRelation(relation)) {
-				entryData.put(relation, entryData.getIDSubject());
+			if (entryData.hasRelation(relation.getTerm())) {
+				database.addTriple(entryData, relation.getTerm(), entryData.getIdTerm());
 			}
 		}
 	}
@@ -332,11 +628,9 @@ public class TransactionHandler {
 	 * @param relation the relation that has to be changed
 	 */
 	private void applyIrreflexivity(Relation relation) {
-		relation.setProperty(Relation.Properties.REFLEXIVE, false);
+		database.setRelationProperty(relation, Relation.Properties.REFLEXIVE, false);
 		for (EntryData entryData : database.getAllEntries()) {
-			if (entryData.hasRelation(relation)) {
-				entryData.removeIdFromRelation(relation);
-			}
+			database.removeTriple(entryData, relation.getTerm(), entryData.getIdTerm());
 		}
 	}
 
@@ -346,7 +640,7 @@ public class TransactionHandler {
 	 */
 	private void applySymmetry(Relation relation) {
 		
-		relation.setProperty(Relation.Properties.ASYMMETRIC, false);
+		database.setRelationProperty(relation, Relation.Properties.ASYMMETRIC, false);
 		
 		int[] totalNumberOfEntries = new int[] { 0, 0 };
 		int[] previousTotalNumberOfEntries = new int[] { Integer.MIN_VALUE, Integer.MIN_VALUE };
@@ -376,9 +670,9 @@ public class TransactionHandler {
 	 */
 	private void applyAsymmetry(Relation relation) {
 		
-		relation.setProperty(Relation.Properties.SYMMETRIC, false);
-		relation.setProperty(Relation.Properties.ANTISYMMETRIC, true); // An asymmetric relation is antisymmetric by default
-		relation.setProperty(Relation.Properties.IRREFLEXIVE, true);
+		database.setRelationProperty(relation, Relation.Properties.SYMMETRIC, false);
+		database.setRelationProperty(relation, Relation.Properties.ANTISYMMETRIC, true); // An asymmetric relation is antisymmetric by default
+		database.setRelationProperty(relation, Relation.Properties.IRREFLEXIVE, true);
 		
 		int[] totalNumberOfEntries = new int[] { 0, 0 };
 		int[] previousTotalNumberOfEntries = new int[] { Integer.MIN_VALUE, Integer.MIN_VALUE };
@@ -387,14 +681,15 @@ public class TransactionHandler {
 			previousTotalNumberOfEntries = Arrays.copyOf(totalNumberOfEntries, totalNumberOfEntries.length);
 			Result result = requestQuery(query);
 
-			ArrayList<Data> first = result.getData("?X");
+			TermList first = result.getTerms("?X");
 			totalNumberOfEntries[0] = first.size();
-			ArrayList<Data> second = result.getData("?Y");
+			TermList second = result.getTerms("?Y");
 			totalNumberOfEntries[1] = second.size();
+			int relationTerm = relation.getTerm();
 
 			for (int index = 0; index < result.size(); index++) {
-				Subject x = (Subject) first.get(index);
-				Subject y = (Subject) second.get(index);
+				int x = first.get(index);
+				int y = second.get(index);
 				
 				int keyX = database.findKey(x);
 				int keyY = database.findKey(y);
@@ -402,9 +697,9 @@ public class TransactionHandler {
 				EntryData entryDataX = database.getEntryData(keyX);
 				EntryData entryDataY = database.getEntryData(keyY);
 				
-				if (entryDataX.relationContainsSubject(relation, y) && entryDataY.relationContainsSubject(relation, x)) {
-					entryDataX.removeSubjectFromRelation(relation, y);
-					entryDataY.removeSubjectFromRelation(relation, x);
+				if (entryDataX.relationContainsSubject(relationTerm, y) && entryDataY.relationContainsSubject(relationTerm, x)) {
+					database.removeTriple(entryDataX, relationTerm, y);
+					database.removeTriple(entryDataY, relationTerm, x);
 				}
 			}
 
@@ -425,14 +720,15 @@ public class TransactionHandler {
 			previousTotalNumberOfEntries = Arrays.copyOf(totalNumberOfEntries, totalNumberOfEntries.length);
 			Result result = requestQuery(query);
 
-			ArrayList<Data> first = result.getData("?X");
+			TermList first = result.getTerms("?X");
 			totalNumberOfEntries[0] = first.size();
-			ArrayList<Data> second = result.getData("?Y");
+			TermList second = result.getTerms("?Y");
 			totalNumberOfEntries[1] = second.size();
+			int relationTerm = relation.getTerm();
 
 			for (int index = 0; index < result.size(); index++) {
-				Subject x = (Subject) first.get(index);
-				Subject y = (Subject) second.get(index);
+				int x = first.get(index);
+				int y = second.get(index);
 				
 				int keyX = database.findKey(x);
 				int keyY = database.findKey(y);
@@ -440,9 +736,9 @@ public class TransactionHandler {
 				EntryData entryDataX = database.getEntryData(keyX);
 				EntryData entryDataY = database.getEntryData(keyY);
 				
-				if (entryDataX.relationContainsSubject(relation, y) && entryDataY.relationContainsSubject(relation, x) && x.equals(y)) {
-					entryDataX.removeSubjectFromRelation(relation, y);
-					entryDataY.removeSubjectFromRelation(relation, x);
+				if (entryDataX.relationContainsSubject(relationTerm, y) && entryDataY.relationContainsSubject(relationTerm, x) && x == y) {
+					database.removeTriple(entryDataX, relationTerm, y);
+					database.removeTriple(entryDataY, relationTerm, x);
 				}
 			}
 
@@ -452,37 +748,133 @@ public class TransactionHandler {
 
 	//TODO checks not to put reflexive relation 
 	/**
-	 * Adds the relations transitive
+	 * Adds the relations transitive. The closure is computed semi-naively: the
+	 * first round starts from every triple of the relation and each following
+	 * round only extends the triples derived by the previous one, on both sides,
+	 * with the triples of the relation. Derived triples are written directly in
+	 * the database.
 	 * @param relation the relation that has to be changed
 	 */
 	private void applyTransitivity(Relation relation) {
-		int[] totalNumberOfEntries = new int[] { 0, 0 };
-		int[] previousTotalNumberOfEntries = new int[] { Integer.MIN_VALUE, Integer.MIN_VALUE };
 		
 		if (relation.isPropertyActive(Relation.Properties.ASYMMETRIC)) {
-			relation.setProperty(Relation.Properties.IRREFLEXIVE, true);
+			database.setRelationProperty(relation, Relation.Properties.IRREFLEXIVE, true);
 		}
 		if (relation.isPropertyActive(Relation.Properties.IRREFLEXIVE)) {
-			relation.setProperty(Relation.Properties.ASYMMETRIC, true);
+			database.setRelationProperty(relation, Relation.Properties.ASYMMETRIC, true);
 		}
 		
-		String query = "?X, ?Z : ?X " + relation + " ?Y & ?Y " + relation + " ?Z";
-		do {
-			previousTotalNumberOfEntries = Arrays.copyOf(totalNumberOfEntries, totalNumberOfEntries.length);
-			Result result = requestQuery(query);
-
-			ArrayList<Data> first = result.getData("?X");
-			totalNumberOfEntries[0] = first.size();
-			ArrayList<Data> second = result.getData("?Z");
-			totalNumberOfEntries[1] = second.size();
-
-			for (int index = 0; index < result.size(); index++) {
-				String insertion = first.get(index) + " " + relation + " " + second.get(index);
-				requestInsert(insertion);
+		int relationTerm = relation.getTerm();
+		// Pairs (id, subject) of the triples to extend, flattened
+		TermList delta = new TermList();
+		for (Map.Entry<Integer, TermList> subject : database.getPredicateIndex(relationTerm).entrySet()) {
+			TermList ids = subject.getValue();
+			for (int index = 0; index < ids.size(); index++) {
+				delta.add(ids.get(index));
+				delta.add(subject.getKey());
 			}
+		}
+		
+		while (!delta.isEmpty()) {
+			TermList derived = new TermList();
+			for (int index = 0; index < delta.size(); index += 2) {
+				int x = delta.get(index);
+				int y = delta.get(index + 1);
+				
+				// x R y & y R z => x R z
+				EntryData entryDataY = database.getEntryData(database.findKey(y));
+				TermList successors = entryDataY != null ? entryDataY.getSubjects(relationTerm) : null;
+				if (successors != null) {
+					for (int z : successors.toArray()) {
+						deriveTriple(relation, x, z, derived);
+					}
+				}
+				
+				// w R x & x R y => w R y
+				TermList predecessors = database.findIds(relationTerm, x);
+				if (predecessors != null) {
+					for (int w : predecessors.toArray()) {
+						deriveTriple(relation, w, y, derived);
+					}
+				}
+			}
+			delta = derived;
+		}
+	}
+	
+	/**
+	 * Extends the closure of a transitive relation with the triples implied by
+	 * a new triple (a, b): every predecessor of a, a included, is linked to every
+	 * successor of b, b included. The relation being closed before the insertion,
+	 * its predecessor and successor sets are already transitive, so only
+	 * pred*(a) x succ*(b) has to be considered. If the relation is symmetric, the
+	 * triple (b, a) added by applySymmetry is extended as well.
+	 * @param relation the relation that has to be changed
+	 * @param insertion the pair (a, b) of the inserted triple, or an empty list
+	 */
+	private void extendTransitivity(Relation relation, TermList insertion) {
+		if (insertion.isEmpty()) {
+			return;
+		}
+		int a = insertion.get(0);
+		int b = insertion.get(1);
+		TermList derived = new TermList();
+		extendTransitivity(relation, a, b, derived);
+		if (relation.isPropertyActive(Relation.Properties.SYMMETRIC)) {
+			extendTransitivity(relation, b, a, derived);
+		}
+	}
 
-		} while (totalNumberOfEntries[0] != previousTotalNumberOfEntries[0]
-				|| totalNumberOfEntries[1] != previousTotalNumberOfEntries[1]);
+	private void extendTransitivity(Relation relation, int a, int b, TermList derived) {
+		int relationTerm = relation.getTerm();
+		EntryData entryDataA = database.getEntryData(database.findKey(a));
+		// The triple may have been removed by another property
+		if (entryDataA == null || !entryDataA.relationContainsSubject(relationTerm, b)) {
+			return;
+		}
+		TermList predecessors = database.findIds(relationTerm, a);
+		EntryData entryDataB = database.getEntryData(database.findKey(b));
+		TermList successors = entryDataB != null ? entryDataB.getSubjects(relationTerm) : null;
+		
+		TermList left = new TermList();
+		left.add(a);
+		if (predecessors != null) {
+			for (int x : predecessors.toArray()) {
+				left.add(x);
+			}
+		}
+		TermList right = new TermList();
+		right.add(b);
+		if (successors != null) {
+			for (int z : successors.toArray()) {
+				right.add(z);
+			}
+		}
+		
+		for (int index = 0; index < left.size(); index++) {
+			for (int position = 0; position < right.size(); position++) {
+				deriveTriple(relation, left.get(index), right.get(position), derived);
+			}
+		}
+	}
+	
+	/**
+	 * Adds the triple (subjectId, relation, subject) if the properties of the
+	 * relation validate it.
+	 * @param relation the relation of the triple
+	 * @param subjectId the term of the entry holding the triple
+	 * @param subject the subject term of the triple
+	 * @param derived the list of pairs to which the triple is appended if it is new
+	 */
+	private void deriveTriple(Relation relation, int subjectId, int subject, TermList derived) {
+		if (!validatesInsertion(relation, subjectId, subject)) {
+			return;
+		}
+		EntryData entryData = database.getEntryData(database.findKey(subjectId));
+		if (database.addTriple(entryData, relation.getTerm(), subject)) {
+			derived.add(subjectId);
+			derived.add(subject);
+		}
 	}
 
 	/**
@@ -493,12 +885,81 @@ public class TransactionHandler {
 	}
 
 	/**
-	 * Creates a context associated to the database and generates the result from the query given
+	 * Creates a context associated to the database and generates the result from the query given.
+	 * The plan of the query is compiled once and then taken from the plan cache, and the result
+	 * is taken from the result cache until a triple of a relation the query reads changes.
+	 * The returned result is shared and must not be modified.
 	 * @param query the request made by the user to search for data
 	 * @return the result of the query
 	 */
 	public Result requestQuery(String query) {
-		return new Context(database).generateResult(query);
+		String text = QueryCompiler.normalize(query);
+		resultCache.attach(database);
+		Result result = resultCache.get(text);
+		if (result == null) {
+			QueryPlan plan = queryCompiler.getPlan(database, text);
+			result = new Context(database).generateResult(plan);
+			resultCache.put(text, plan, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Opens a read-only view of the database as it was at the end of the last
+	 * command, which later commands do not change. It can be called from any
+	 * thread and must be closed once the results read through it are read.
+	 * @return an instance of SnapshotPublisher.Snapshot
+	 * @throws IllegalStateException if snapshots are not enabled
+	 */
+	public SnapshotPublisher.Snapshot openSnapshot() {
+		SnapshotPublisher publisher = snapshotPublisher;
+		if (publisher == null) {
+			throw new IllegalStateException("Snapshots are not enabled");
+		}
+		return publisher.acquire();
+	}
+
+	/**
+	 * Tells whether enableSnapshots was called.
+	 * @return true if openSnapshot can be called
+	 */
+	public boolean isSnapshotEnabled() {
+		return snapshotPublisher != null;
+	}
+
+	/**
+	 * Waits until a version is visible to the snapshots opened from now on, or
+	 * until the snapshots postponing its publication are closed, without holding
+	 * up the writer. It can be called by any thread; when it returns false,
+	 * publishSnapshot must be called by the writer before waiting again.
+	 * @param version a number returned by publishSnapshot
+	 * @return true if the version is published
+	 */
+	public boolean awaitSnapshot(long version) {
+		SnapshotPublisher publisher = snapshotPublisher;
+		return publisher == null || publisher.awaitPublication(version);
+	}
+
+	/**
+	 * Generates the result of a query against a snapshot, without locks and
+	 * without the plan and result caches, which belong to the writing thread.
+	 * Several threads can query the same snapshot. The result must be read
+	 * before the snapshot is closed.
+	 * @param snapshot a snapshot opened by openSnapshot
+	 * @param query the request made by the user to search for data
+	 * @return the result of the query
+	 */
+	public Result requestQuery(SnapshotPublisher.Snapshot snapshot, String query) {
+		Database replica = snapshot.getDatabase();
+		return new Context(replica).generateResult(QueryCompiler.compile(replica, QueryCompiler.normalize(query)));
+	}
+
+	/**
+	 * Gets the cache of query results, with its hit and miss counters
+	 * @return the result cache
+	 */
+	public ResultCache getResultCache() {
+		return resultCache;
 	}
 
 	public Database getDatabase() {
@@ -520,12 +981,17 @@ public class TransactionHandler {
 		String qualifier = splittedCommand[1];
 		String propertyString = splittedCommand[2];
 		Relation.Properties property = Relation.Properties.valueOf(propertyString.toUpperCase());
-		if (qualifier.equals("is")) {
-			relation.setProperty(property, true);
-		} else if (qualifier.equals("not")) {
-			relation.setProperty(property, false);
+		beginCommand();
+		try {
+			if (qualifier.equals("is")) {
+				database.setRelationProperty(relation, property, true);
+			} else if (qualifier.equals("not")) {
+				database.setRelationProperty(relation, property, false);
+			}
+			applyRelationProperties(relation);
+		} finally {
+			endCommand();
 		}
-		applyRelationProperties(relation);
 	}
 
 	/**
@@ -0,0 +1,160 @@
+package query;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+
+import persistence.Database;
+import persistence.EntryData;
+import persistence.TermList;
+
+/**
+ * This class enumerates the triples matching a pattern one at a time, reading
+ * the database through the access path given by the known terms, as
+ * Context.scan does, without collecting the matches first.
+ */
+final class TripleCursor {
+
+	private static final int ENTRIES = 0;
+	private static final int IDS = 1;
+	private static final int OBJECTS = 2;
+	private static final int PREDICATES = 3;
+
+	private final int fixedRelation;
+	private final int fixedSubject;
+	private final int mode;
+
+	/**
+	 * The current triple, valid after next returned true.
+	 */
+	int id;
+	int relation;
+	int subject;
+
+	// Entries being read by the subject-first path
+	private Iterator<EntryData> entries;
+	private EntryData entryData;
+	private int slot;
+
+	// Groups of an index being read by the other paths
+	private Iterator<Map.Entry<Integer, TermList>> groups;
+	private int groupKey;
+
+	private TermList terms;
+	private int position;
+
+	/**
+	 * @param database
+	 *            the database to read.
+	 * @param id
+	 *            an id term, or -1 if it is free.
+	 * @param relation
+	 *            a relation term, or -1 if it is free.
+	 * @param subject
+	 *            a subject term, or -1 if it is free.
+	 */
+	TripleCursor(Database database, int id, int relation, int subject) {
+		fixedRelation = relation;
+		fixedSubject = subject;
+		if (id >= 0) {
+			mode = ENTRIES;
+			EntryData entry = database.getEntryData(database.findKey(id));
+			entries = entry != null ? Collections.singleton(entry).iterator()
+					: Collections.<EntryData>emptyIterator();
+		} else if (subject >= 0 && relation >= 0) {
+			mode = IDS;
+			terms = database.findIds(relation, subject);
+		} else if (subject >= 0) {
+			mode = OBJECTS;
+			groups = database.getObjectIndex(subject).entrySet().iterator();
+		} else if (relation >= 0) {
+			mode = PREDICATES;
+			groups = database.getPredicateIndex(relation).entrySet().iterator();
+		} else {
+			mode = ENTRIES;
+			entries = database.getAllEntries().iterator();
+		}
+	}
+
+	/**
+	 * Moves to the next matching triple.
+	 * 
+	 * @return false once every triple has been read.
+	 */
+	boolean next() {
+		switch (mode) {
+		case IDS:
+			if (terms == null || position >= terms.size()) {
+				return false;
+			}
+			id = terms.get(position++);
+			relation = fixedRelation;
+			subject = fixedSubject;
+			return true;
+		case OBJECTS:
+			// Groups of id -> relations pointing to the subject
+			if (!nextInGroups()) {
+				return false;
+			}
+			id = groupKey;
+			relation = terms.get(position++);
+			subject = fixedSubject;
+			return true;
+		case PREDICATES:
+			// Groups of subject -> ids holding the relation
+			if (!nextInGroups()) {
+				return false;
+			}
+			id = terms.get(position++);
+			relation = fixedRelation;
+			subject = groupKey;
+			return true;
+		default:
+			return nextInEntries();
+		}
+	}
+
+	private boolean nextInGroups() {
+		while (terms == null || position >= terms.size()) {
+			if (!groups.hasNext()) {
+				return false;
+			}
+			Map.Entry<Integer, TermList> group = groups.next();
+			groupKey = group.getKey();
+			terms = group.getValue();
+			position = 0;
+		}
+		return true;
+	}
+
+	private boolean nextInEntries() {
+		while (true) {
+			if (terms != null && position < terms.size()) {
+				int term = terms.get(position++);
+				if (fixedSubject < 0 || term == fixedSubject) {
+					id = entryData.getIdTerm();
+					subject = term;
+					return true;
+				}
+			} else if (entryData != null && slot < entryData.relationCount()) {
+				relation = entryData.getRelationTerm(slot++);
+				terms = entryData.getSubjects(relation);
+				position = 0;
+			} else if (entries.hasNext()) {
+				entryData = entries.next();
+				terms = null;
+				if (fixedRelation >= 0) {
+					// Only the slot of the relation is read
+					relation = fixedRelation;
+					terms = entryData.getSubjects(fixedRelation);
+					position = 0;
+					slot = entryData.relationCount();
+				} else {
+					slot = 0;
+				}
+			} else {
+				return false;
+			}
+		}
+	}
+}
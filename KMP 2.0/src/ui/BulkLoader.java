@@ -0,0 +1,161 @@
+package ui;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import query.TransactionHandler;
+
+/**
+ * This class loads a file of insertions into the database without going through
+ * the console. Every line of the file is an insertion in the syntax of the
+ * insert mode, such as "marc knows sophie". Progress is printed every
+ * kmp.bulk.progress lines, 1000000 by default, with the throughput since the
+ * start of the load.
+ * 
+ * When kmp.bulk.threads is greater than 1, the lines are inserted by as many
+ * threads through the concurrent insertion of TransactionHandler, blocks of
+ * lines being handed to them as the file is read. The triples are the same, but
+ * the order of the terms depends on the threads.
+ */
+public class BulkLoader {
+
+	private static final int BLOCK_SIZE = 1000;
+
+	private final TransactionHandler transactionHandler;
+	private final long progressInterval = Long.getLong("kmp.bulk.progress", 1000000);
+	private final int threadCount = Integer.getInteger("kmp.bulk.threads", 1);
+
+	public BulkLoader(TransactionHandler transactionHandler) {
+		this.transactionHandler = transactionHandler;
+	}
+
+	/**
+	 * Loads a file and prints the number of lines and triples loaded per second.
+	 * @param path the path of the file
+	 */
+	public void load(String path) {
+		long startTriples = transactionHandler.getDatabase().tripleCount();
+		long start = System.nanoTime();
+		long lines;
+		try (BufferedReader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+			Iterator<String> insertions = reader.lines().iterator();
+			Iterator<String> reportedInsertions = new Iterator<String>() {
+
+				private long count;
+
+				@Override
+				public boolean hasNext() {
+					return insertions.hasNext();
+				}
+
+				@Override
+				public String next() {
+					if (++count % progressInterval == 0) {
+						report(count + " lines read", startTriples, start);
+					}
+					return insertions.next();
+				}
+			};
+			lines = threadCount > 1 ? loadConcurrently(reportedInsertions)
+					: transactionHandler.requestBulkInsert(reportedInsertions);
+		} catch (IOException | UncheckedIOException | InterruptedException e) {
+			e.printStackTrace();
+			return;
+		}
+		report(lines + " insertions loaded", startTriples, start);
+	}
+
+	/**
+	 * Inserts lines on threadCount threads, the calling thread reading them and
+	 * handing them out by blocks of BLOCK_SIZE lines. Blank lines and lines
+	 * starting with '#' are skipped, as by requestBulkInsert, and a line that
+	 * cannot be inserted is reported without stopping its thread.
+	 * @return the number of insertions handled
+	 */
+	private long loadConcurrently(Iterator<String> insertions) throws InterruptedException {
+		BlockingQueue<List<String>> blocks = new ArrayBlockingQueue<>(threadCount * 2);
+		List<String> last = new ArrayList<>();
+		LongAdder count = new LongAdder();
+		Thread[] threads = new Thread[threadCount];
+		transactionHandler.beginConcurrentInsert();
+		try {
+			for (int index = 0; index < threadCount; index++) {
+				threads[index] = new Thread(() -> {
+					try {
+						for (List<String> block = blocks.take(); block != last; block = blocks.take()) {
+							for (String line : block) {
+								String insertion = line.trim();
+								if (!insertion.isEmpty() && insertion.charAt(0) != '#') {
+									try {
+										transactionHandler.requestConcurrentInsert(insertion);
+										count.increment();
+									} catch (RuntimeException e) {
+										e.printStackTrace();
+									}
+								}
+							}
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}, "bulk-loader-" + index);
+				threads[index].start();
+			}
+			try {
+				List<String> block = new ArrayList<>(BLOCK_SIZE);
+				while (insertions.hasNext()) {
+					block.add(insertions.next());
+					if (block.size() == BLOCK_SIZE) {
+						blocks.put(block);
+						block = new ArrayList<>(BLOCK_SIZE);
+					}
+				}
+				blocks.put(block);
+			} finally {
+				// The threads finish the blocks queued before stopping, even if the file cannot be read
+				for (int index = 0; index < threadCount; index++) {
+					blocks.put(last);
+				}
+				for (Thread thread : threads) {
+					thread.join();
+				}
+			}
+		} finally {
+			transactionHandler.endConcurrentInsert();
+		}
+		return count.sum();
+	}
+
+	private void report(String progress, long startTriples, long start) {
+		long triples = transactionHandler.getDatabase().tripleCount() - startTriples;
+		double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+		System.out.printf("%s, %d triples in %.1f s (%.0f triples/s)%n", progress, triples, seconds, triples / seconds);
+	}
+
+	/**
+	 * Loads the files given as arguments into the database of the user.
+	 * @param args paths of files of insertions
+	 */
+	public static void main(String[] args) {
+		TransactionHandler transactionHandler = new TransactionHandler();
+		BulkLoader bulkLoader = new BulkLoader(transactionHandler);
+		for (String path : args) {
+			bulkLoader.load(path);
+		}
+		try {
+			transactionHandler.getDatabaseSerializer().quitCommand();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
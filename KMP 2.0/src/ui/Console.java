@@ -7,6 +7,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import model.Relation.Properties;
+import persistence.DatabaseSerializer;
 import query.Result;
 import query.TransactionHandler;
 
@@ -43,6 +44,7 @@ public class Console implements Runnable {
 				System.out.println("\n?X, ?Y : ?X is ?Z & ?Z has 5");
 				System.out.println("\nAll variables prefixed by '?' located before the colon are those that will be displayed.");
 				System.out.println("\nEverything written after the colon equates to the WHERE block in a SPARQL query. Each line is seperated by the '&' character.");
+				System.out.println("\nThe WHERE block may end with 'LIMIT n' and 'OFFSET m' to display the lines m + 1 to m + n only.");
 				break;
 			case INSPECT_RELATIONS:
 				System.out.println("\nDecide which properties are appropriate for a particular relation.");
@@ -318,6 +320,18 @@ public class Console implements Runnable {
 		}
 		String data = command.split(":")[0], where = command.split(":")[1];
 		
+		//check the optional LIMIT and OFFSET at the end : ?x is man LIMIT 50 OFFSET 100
+		Pattern patternModifiers = Pattern.compile("((\\s+(limit|offset)\\s+\\d+){1,2})\\s*$", Pattern.CASE_INSENSITIVE);
+		Matcher matcherModifiers = patternModifiers.matcher(where);
+		if (matcherModifiers.find()) {
+			String[] modifiers = matcherModifiers.group(1).trim().split("\\s+");
+			if (modifiers.length == 4 && modifiers[0].equalsIgnoreCase(modifiers[2])) {
+				System.out.println("Incorrect : LIMIT and OFFSET can only be given once");
+				return false;
+			}
+			where = where.substring(0, matcherModifiers.start());
+		}
+		
 		//check the data structure
 		Pattern patternDataStructure = Pattern.compile("\\?\\w+\\s*(,\\s*\\?\\w+\\s*)*");
 		Matcher matcherDataStruture = patternDataStructure.matcher(data);
@@ -391,10 +405,10 @@ public class Console implements Runnable {
 	 * @return if the command is a valid import
 	 */
 	private static boolean validateImport(String command) {
-		Pattern patternPathStructure = Pattern.compile(".*\\.kmp");
+		Pattern patternPathStructure = Pattern.compile(".*\\.(kmp|nt|csv|txt)", Pattern.CASE_INSENSITIVE);
 		Matcher matcherPathStruture = patternPathStructure.matcher(command);
 		if (!matcherPathStruture.matches()) {
-			System.out.println("Incorrect : path sould finished by .kmp");
+			System.out.println("Incorrect : path sould finished by .kmp, .nt, .csv or .txt");
 			return false;
 		}
 		return true;
@@ -434,7 +448,8 @@ public class Console implements Runnable {
 						if (insertion != null) {
 							transactionHandler.requestInsert(insertion);
 							try {
-								transactionHandler.getDatabaseSerializer().insertCommand(transactionHandler.getDatabase());
+								DatabaseSerializer databaseSerializer = transactionHandler.getDatabaseSerializer();
+								databaseSerializer.awaitDurability(databaseSerializer.insertCommand(transactionHandler.getDatabase()));
 							} catch (IOException e) {
 								e.printStackTrace();
 							}
@@ -450,6 +465,7 @@ public class Console implements Runnable {
 						String query = nextCommand(Modes.QUERY);
 						if (query != null) {
 							Result result = transactionHandler.requestQuery(query);
+							System.out.println("\nPlan : " + result.getPlan());
 							System.out.println(result);
 						} else {
 							resetPromptMessage();
@@ -465,7 +481,8 @@ public class Console implements Runnable {
 						if (command != null)  {
 							transactionHandler.updateRelation(command);
 							try {
-								transactionHandler.getDatabaseSerializer().inspectRelationsCommand(transactionHandler.getDatabase());
+								DatabaseSerializer databaseSerializer = transactionHandler.getDatabaseSerializer();
+								databaseSerializer.awaitDurability(databaseSerializer.inspectRelationsCommand(transactionHandler.getDatabase()));
 							} catch (IOException e) {
 								e.printStackTrace();
 							}
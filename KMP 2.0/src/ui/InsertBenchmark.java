@@ -0,0 +1,86 @@
+package ui;
+
+import model.Relation;
+import model.Subject;
+import persistence.Database;
+import persistence.EntryData;
+
+/**
+ * This class measures how the insertion rate of a Database depends on the
+ * number of terms it holds. Every insertion looks up its id, its relation and
+ * its subject by their strings, as TransactionHandler.requestInsert does, adds
+ * the id as a new term with its entry and links it to a term inserted before.
+ * The database grows from 0 to the given number of distinct terms, and the
+ * rate is printed for every range of a power of ten (10k, 100k, 1M, 10M...), so
+ * that the rate of the last ranges can be compared with the first one. Nothing
+ * is written to the disk.
+ */
+public class InsertBenchmark {
+
+	private static final int RELATION_COUNT = 50;
+	private static final int WARM_UP = 100000;
+
+	private final int termCount;
+
+	/**
+	 * @param termCount the number of distinct terms at the end of the benchmark
+	 */
+	public InsertBenchmark(int termCount) {
+		this.termCount = termCount;
+	}
+
+	/**
+	 * Runs the benchmark and prints the rate of every range.
+	 */
+	public void run() {
+		// The first range would otherwise measure the compilation of the code
+		insert(new Database(), 0, Math.min(WARM_UP, termCount));
+
+		Database db = new Database();
+		int start = 0;
+		for (long end = 10000; start < termCount; end *= 10) {
+			int limit = (int) Math.min(end, termCount);
+			long begin = System.nanoTime();
+			insert(db, start, limit);
+			double seconds = Math.max(1e-9, (System.nanoTime() - begin) / 1e9);
+			System.out.printf("%,d to %,d terms: %.2f s, %.0f insertions/s%n", start, limit, seconds,
+					(limit - start) / seconds);
+			start = limit;
+		}
+		System.out.printf("%d terms and %d triples%n", db.termCount(), db.tripleCount());
+	}
+
+	/**
+	 * Inserts the terms from start to end, each linked to the term of half its
+	 * number.
+	 */
+	private static void insert(Database db, int start, int end) {
+		for (int index = start; index < end; index++) {
+			String id = "t" + index;
+			Subject existing = db.findSubject(id);
+			int term = existing != null ? existing.getTerm() : db.addSubject(new Subject(id));
+			EntryData entryData = db.findOrInsertEntry(term);
+
+			String relationId = "r" + index % RELATION_COUNT;
+			Relation relation = db.findRelation(relationId);
+			if (relation == null) {
+				db.addRelation(new Relation(relationId));
+				relation = db.findRelation(relationId);
+			}
+
+			Subject subject = db.findSubject("t" + index / 2);
+			if (subject != null && subject.getTerm() != term) {
+				db.addTriple(entryData, relation.getTerm(), subject.getTerm());
+			}
+		}
+	}
+
+	/**
+	 * Runs the benchmark.
+	 * @param args the number of distinct terms at the end, 10000000 by default
+	 */
+	public static void main(String[] args) {
+		int termCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+		new InsertBenchmark(termCount).run();
+	}
+}
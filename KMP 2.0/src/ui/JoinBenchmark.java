@@ -0,0 +1,130 @@
+package ui;
+
+import java.util.Random;
+
+import model.Relation;
+import model.Subject;
+import persistence.Database;
+import persistence.EntryData;
+import query.Context;
+import query.QueryCompiler;
+import query.QueryPlan;
+import query.Result;
+
+/**
+ * This class compares the leapfrog triejoin with the pairwise joins on cyclic
+ * queries over a synthetic social graph. The graph is built by preferential
+ * attachment: every user follows a number of users created before it, half of
+ * them chosen at random and half with a probability growing with the number of
+ * their followers, and some of the follows are followed back. Every query is
+ * evaluated a few times by each engine, the first time building the indexes it
+ * needs, and the best time is printed with the number of rows, which must be
+ * the same for both engines.
+ */
+public class JoinBenchmark {
+
+	private static final String[][] QUERIES = {
+			{ "triangle", "?A, ?B, ?C : ?A follows ?B & ?B follows ?C & ?C follows ?A" },
+			{ "4-cycle", "?A, ?B, ?C, ?D : ?A follows ?B & ?B follows ?C & ?C follows ?D & ?D follows ?A" },
+			{ "vip triangle", "?B, ?C : u0 follows ?B & ?B follows ?C & ?C follows u0" },
+			{ "mutual follows", "?A, ?B : ?A follows ?B & ?B follows ?A" } };
+	private static final int RUNS = 3;
+
+	private final int userCount;
+	private final int followCount;
+	private final int followBackPercentage;
+	private final long seed;
+
+	/**
+	 * @param userCount the number of users of the graph
+	 * @param followCount the number of users each user follows
+	 * @param followBackPercentage the percentage of follows followed back
+	 * @param seed the seed of the random graph
+	 */
+	public JoinBenchmark(int userCount, int followCount, int followBackPercentage, long seed) {
+		this.userCount = userCount;
+		this.followCount = followCount;
+		this.followBackPercentage = followBackPercentage;
+		this.seed = seed;
+	}
+
+	/**
+	 * Builds the graph, then runs every query with each engine and prints their
+	 * times.
+	 */
+	public void run() {
+		Database db = buildGraph();
+		System.out.printf("%d users, %d triples%n", userCount, db.tripleCount());
+		System.out.printf("%-16s %10s %12s %12s%n", "query", "rows", "pairwise", "leapfrog");
+		for (String[] query : QUERIES) {
+			QueryPlan leapfrogPlan = QueryCompiler.compile(db, query[1], true);
+			long[] leapfrog = measure(db, leapfrogPlan);
+			long[] pairwise = measure(db, QueryCompiler.compile(db, query[1], false));
+			String rows = pairwise[0] == leapfrog[0] ? String.valueOf(leapfrog[0])
+					: pairwise[0] + " != " + leapfrog[0];
+			System.out.printf("%-16s %10s %9.1f ms %9.1f ms%s%n", query[0], rows, pairwise[1] / 1e6, leapfrog[1] / 1e6,
+					leapfrogPlan.getPlan().startsWith("LEAPFROG") ? "" : " (not cyclic)");
+		}
+	}
+
+	/**
+	 * Evaluates a plan RUNS times.
+	 * @return the number of rows and the best time in nanoseconds
+	 */
+	private static long[] measure(Database db, QueryPlan plan) {
+		long rows = 0;
+		long best = Long.MAX_VALUE;
+		for (int run = 0; run < RUNS; run++) {
+			long begin = System.nanoTime();
+			Result result = new Context(db).generateResult(plan);
+			best = Math.min(best, System.nanoTime() - begin);
+			rows = result.size();
+		}
+		return new long[] { rows, best };
+	}
+
+	/**
+	 * Builds the follows of every user, user i only following users created
+	 * before it.
+	 */
+	private Database buildGraph() {
+		Random random = new Random(seed);
+		Database db = new Database();
+		db.addRelation(new Relation("follows"));
+		int follows = db.findRelation("follows").getTerm();
+		int[] terms = new int[userCount];
+		EntryData[] entries = new EntryData[userCount];
+		// Every user appears once, then once more per follower, so that users are drawn by popularity
+		int[] draws = new int[userCount * (followCount + 1)];
+		int drawCount = 0;
+		for (int user = 0; user < userCount; user++) {
+			terms[user] = db.addSubject(new Subject("u" + user));
+			entries[user] = db.findOrInsertEntry(terms[user]);
+			for (int follow = 0; follow < Math.min(followCount, user); follow++) {
+				int followed = random.nextBoolean() ? random.nextInt(user) : draws[random.nextInt(drawCount)];
+				if (db.addTriple(entries[user], follows, terms[followed])) {
+					draws[drawCount++] = followed;
+					if (random.nextInt(100) < followBackPercentage) {
+						db.addTriple(entries[followed], follows, terms[user]);
+					}
+				}
+			}
+			draws[drawCount++] = user;
+		}
+		return db;
+	}
+
+	/**
+	 * Runs the benchmark.
+	 * @param args the number of users, 5000 by default, the number of users each
+	 *            one follows, 8 by default, the percentage of follows followed
+	 *            back, 25 by default, and the seed, 1 by default
+	 */
+	public static void main(String[] args) {
+		int userCount = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int followCount = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int followBackPercentage = args.length > 2 ? Integer.parseInt(args[2]) : 25;
+		long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+		new JoinBenchmark(userCount, followCount, followBackPercentage, seed).run();
+	}
+}
@@ -0,0 +1,471 @@
+package ui;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+import model.Relation;
+import persistence.SnapshotPublisher;
+import persistence.TermList;
+import query.Result;
+import query.TransactionHandler;
+
+/**
+ * This class lets other programs use the database through a TCP port of the
+ * local host instead of the console. Every line sent by a client is a command
+ * made of a keyword and the text the console expects in the matching mode:
+ *
+ * insert laurent is man worksFor ENSISA
+ * query ?X : ?X worksFor ENSISA
+ * relation worksFor is transitive
+ * undo, redo, ping, quit
+ *
+ * Every command but quit receives one line, "OK" or "ERROR" followed by a
+ * message. A query receives "RESULT", the number of lines of the result and the
+ * selected variables, followed by the lines of the result, one per line, their
+ * terms separated by tabs.
+ *
+ * Commands can be pipelined: a client may send many commands without waiting
+ * for their responses. They are run in the order they were sent and answered
+ * in the same order. The commands already received on a connection, at most
+ * kmp.server.pipeline of them, 1000 by default, form a window. Each response is
+ * sent as soon as its command is done, but consecutive insertions of a window
+ * are saved by a single write of the database, and so become a single step of
+ * the undo history answered together.
+ *
+ * Each connection is served by its own thread, a virtual thread when the Java
+ * runtime has them, so thousands of connections can be open at once. They share
+ * one TransactionHandler: commands changing the database are run one at a time,
+ * and are saved as the console saves them. They take a ReentrantLock rather than
+ * a monitor, since a virtual thread blocking inside a monitor, as the fsync of
+ * a commit does, holds its carrier thread with it. A connection waits for its commit
+ * to be durable after releasing the lock, so that with the "group"
+ * kmp.durability the commits of concurrent connections are forced to the disk
+ * together. Queries run without waiting for them on a snapshot of the database
+ * when snapshots are enabled by kmp.snapshots, and one at a time with the other
+ * commands otherwise. A write is answered once the snapshots hold it, so that
+ * the client reads its own writes; a long query postponing the publication
+ * only delays the connections waiting for it, which wait without the lock.
+ */
+public class Server implements Runnable {
+
+	private static final int PORT = Integer.getInteger("kmp.server.port", 7777);
+	private static final int BACKLOG = Integer.getInteger("kmp.server.backlog", 4096);
+	private static final int PIPELINE = Integer.getInteger("kmp.server.pipeline", 1000);
+
+	private static final Pattern INSERTION = Pattern.compile("\\w+ \\w+ \\w+( \\w+ \\w+)*");
+
+	private final TransactionHandler transactionHandler;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final ServerSocket serverSocket;
+	private final ExecutorService connections;
+	private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Starts listening on a port of the local host. Connections are accepted by
+	 * run.
+	 * @param transactionHandler the handler of the database shared by the connections
+	 * @param port the port, or 0 for any free port
+	 * @throws IOException if the port cannot be used
+	 */
+	public Server(TransactionHandler transactionHandler, int port) throws IOException {
+		this.transactionHandler = transactionHandler;
+		serverSocket = new ServerSocket(port, BACKLOG, InetAddress.getLoopbackAddress());
+		connections = newThreadPerTaskExecutor("kmp-server-connection");
+	}
+
+	/**
+	 * Gets the port the server listens on
+	 * @return a port number
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Accepts connections until the server is closed.
+	 */
+	@Override
+	public void run() {
+		while (!serverSocket.isClosed()) {
+			try {
+				Socket socket = serverSocket.accept();
+				connections.execute(() -> serve(socket));
+			} catch (IOException e) {
+				if (!serverSocket.isClosed()) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting connections, closes the open ones and waits for the
+	 * commands being run.
+	 */
+	public void close() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		for (Socket socket : sockets) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// The connection is closed anyway
+			}
+		}
+		connections.shutdown();
+		try {
+			connections.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Reads the commands of a connection, a window at a time, until the client
+	 * closes it or sends quit.
+	 */
+	private void serve(Socket socket) {
+		sockets.add(socket);
+		try (Socket connection = socket;
+				BufferedReader reader = new BufferedReader(
+						new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+				BufferedWriter writer = new BufferedWriter(
+						new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8))) {
+			connection.setTcpNoDelay(true);
+			ArrayList<String> window = new ArrayList<>();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				window.clear();
+				window.add(line);
+				// The commands the client sent without waiting join the window
+				while (window.size() < PIPELINE && reader.ready() && (line = reader.readLine()) != null) {
+					window.add(line);
+				}
+				if (execute(window, writer)) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			// The client or close ended the connection
+		} finally {
+			sockets.remove(socket);
+		}
+	}
+
+	/**
+	 * Runs the commands of a window in order and sends their responses. The
+	 * writer is flushed after each command, and after each run of consecutive
+	 * insertions once they are saved, so that a client does not wait for the
+	 * rest of the window.
+	 * @return true if the window ends with quit
+	 */
+	private boolean execute(List<String> window, Writer writer) throws IOException {
+		StringBuilder response = new StringBuilder();
+		int index = 0;
+		while (index < window.size()) {
+			String keyword = keywordOf(window.get(index));
+			if (keyword.equals("quit")) {
+				return true;
+			}
+			response.setLength(0);
+			if (keyword.equals("insert")) {
+				int end = index + 1;
+				while (end < window.size() && keywordOf(window.get(end)).equals("insert")) {
+					end++;
+				}
+				insert(window.subList(index, end), response);
+				index = end;
+			} else {
+				execute(keyword, argumentOf(window.get(index)), response);
+				index++;
+			}
+			writer.append(response);
+			writer.flush();
+		}
+		return false;
+	}
+
+	private static String keywordOf(String line) {
+		String command = line.trim();
+		int space = command.indexOf(' ');
+		return (space < 0 ? command : command.substring(0, space)).toLowerCase();
+	}
+
+	private static String argumentOf(String line) {
+		String command = line.trim();
+		int space = command.indexOf(' ');
+		return space < 0 ? "" : command.substring(space + 1).trim();
+	}
+
+	/**
+	 * Runs a command other than an insertion and appends its response to
+	 * response, ending with a line end.
+	 */
+	private void execute(String keyword, String argument, StringBuilder response) {
+		try {
+			switch (keyword) {
+			case "query":
+				query(argument, response);
+				break;
+			case "relation":
+				updateRelation(argument, response);
+				break;
+			case "undo": {
+				long version;
+				lock.lock();
+				try {
+					transactionHandler.requestUndo();
+					version = transactionHandler.publishSnapshot();
+				} finally {
+					lock.unlock();
+				}
+				awaitSnapshot(version);
+				response.append("OK\n");
+				break;
+			}
+			case "redo": {
+				long version;
+				lock.lock();
+				try {
+					transactionHandler.requestRedo();
+					version = transactionHandler.publishSnapshot();
+				} finally {
+					lock.unlock();
+				}
+				awaitSnapshot(version);
+				response.append("OK\n");
+			}
+				break;
+			case "ping":
+				response.append("OK\n");
+				break;
+			default:
+				error("unknown command '" + keyword + "'", response);
+				break;
+			}
+		} catch (IOException | RuntimeException e) {
+			error(e.toString(), response);
+		}
+	}
+
+	/**
+	 * Runs consecutive insert commands and saves them together, then appends
+	 * their responses.
+	 */
+	private void insert(List<String> lines, StringBuilder response) {
+		String[] errors = new String[lines.size()];
+		String failure = null;
+		long commit = 0;
+		long version = 0;
+		lock.lock();
+		try {
+			boolean inserted = false;
+			for (int index = 0; index < lines.size(); index++) {
+				String insertion = argumentOf(lines.get(index));
+				if (!INSERTION.matcher(insertion).matches()) {
+					errors[index] = "insertion should be like 'a b c' or 'laurent is man worksFor ENSISA'";
+					continue;
+				}
+				// The changes of a failed insertion are left in the database, so they are committed too
+				inserted = true;
+				try {
+					transactionHandler.requestInsert(insertion);
+				} catch (RuntimeException e) {
+					errors[index] = e.toString();
+				}
+			}
+			if (inserted) {
+				try {
+					commit = transactionHandler.getDatabaseSerializer().insertCommand(transactionHandler.getDatabase());
+				} catch (IOException | RuntimeException e) {
+					failure = e.toString();
+				}
+				version = transactionHandler.publishSnapshot();
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (failure == null) {
+			try {
+				// Outside the lock, so that the commits of other connections join the same fsync
+				transactionHandler.getDatabaseSerializer().awaitDurability(commit);
+			} catch (IOException e) {
+				failure = e.toString();
+			}
+		}
+		// The client may query what it inserted as soon as it reads the response
+		awaitSnapshot(version);
+		for (String error : errors) {
+			if (error != null) {
+				error(error, response);
+			} else if (failure != null) {
+				error(failure, response);
+			} else {
+				response.append("OK\n");
+			}
+		}
+	}
+
+	private void query(String query, StringBuilder response) {
+		if (query.split(":").length != 2) {
+			error("query should be like '?X : ?X is man'", response);
+			return;
+		}
+		if (transactionHandler.isSnapshotEnabled()) {
+			try (SnapshotPublisher.Snapshot snapshot = transactionHandler.openSnapshot()) {
+				// The terms are decoded from the snapshot, so the result is written before it is closed
+				writeResult(transactionHandler.requestQuery(snapshot, query), response);
+			}
+		} else {
+			lock.lock();
+			try {
+				writeResult(transactionHandler.requestQuery(query), response);
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private void updateRelation(String command, StringBuilder response) throws IOException {
+		String[] tokens = command.split(" ");
+		if (tokens.length != 3 || !tokens[1].equals("is") && !tokens[1].equals("not")) {
+			error("command should be like 'worksFor is transitive' or 'knows not symmetric'", response);
+			return;
+		}
+		try {
+			Relation.Properties.valueOf(tokens[2].toUpperCase());
+		} catch (IllegalArgumentException e) {
+			error("'" + tokens[2] + "' is not a property of relations", response);
+			return;
+		}
+		long commit;
+		long version;
+		lock.lock();
+		try {
+			if (transactionHandler.getDatabase().findRelation(tokens[0]) == null) {
+				error("'" + tokens[0] + "' is not a relation", response);
+				return;
+			}
+			transactionHandler.updateRelation(command);
+			commit = transactionHandler.getDatabaseSerializer().inspectRelationsCommand(transactionHandler.getDatabase());
+			version = transactionHandler.publishSnapshot();
+		} finally {
+			lock.unlock();
+		}
+		transactionHandler.getDatabaseSerializer().awaitDurability(commit);
+		awaitSnapshot(version);
+		response.append("OK\n");
+	}
+
+	/**
+	 * Waits until the snapshots of the queries hold a version, publishing it
+	 * again whenever the snapshots postponing it are closed. The lock is only
+	 * taken to publish, so that other connections keep writing meanwhile.
+	 */
+	private void awaitSnapshot(long version) {
+		while (!transactionHandler.awaitSnapshot(version)) {
+			lock.lock();
+			try {
+				transactionHandler.publishSnapshot();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private static void writeResult(Result result, StringBuilder response) {
+		String[] selectors = result.getSelectors();
+		// A variable bound by no condition has no terms at all
+		int[] sizes = new int[selectors.length];
+		for (int column = 0; column < selectors.length; column++) {
+			TermList terms = result.getTerms(selectors[column]);
+			sizes[column] = terms.size();
+		}
+		response.append("RESULT ").append(result.size());
+		for (String selector : selectors) {
+			response.append(' ').append(selector);
+		}
+		response.append('\n');
+		for (Result.Row row : result) {
+			for (int column = 0; column < selectors.length; column++) {
+				if (column > 0) {
+					response.append('\t');
+				}
+				if (row.getIndex() < sizes[column]) {
+					response.append(row.getString(column));
+				}
+			}
+			response.append('\n');
+		}
+	}
+
+	private static void error(String message, StringBuilder response) {
+		response.append("ERROR ").append(message.replace('\n', ' ')).append('\n');
+	}
+
+	/**
+	 * Creates an executor running each task on a new virtual thread when the Java
+	 * runtime has them, on a new daemon thread otherwise. Virtual threads are
+	 * looked up by reflection since the code is compiled for Java 8.
+	 * @param name the name of the threads when virtual threads are missing
+	 * @return an instance of ExecutorService
+	 */
+	static ExecutorService newThreadPerTaskExecutor(String name) {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/**
+	 * Serves the database of the user on the port given as argument, or
+	 * kmp.server.port, 7777 by default, until the process is stopped.
+	 * @param args an optional port number
+	 */
+	public static void main(String[] args) {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : PORT;
+		TransactionHandler transactionHandler = new TransactionHandler();
+		Server server;
+		try {
+			server = new Server(transactionHandler, port);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			server.close();
+			try {
+				transactionHandler.getDatabaseSerializer().quitCommand();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}));
+		System.out.println("Listening on " + server.serverSocket.getInetAddress().getHostAddress() + ":" + server.getPort());
+		server.run();
+	}
+}
@@ -0,0 +1,174 @@
+package ui;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class measures a Server running on the local host. It opens every
+ * connection first, so that they are all open at once, then each connection
+ * sends its commands in windows of a given pipeline depth, the commands of a
+ * window being sent without waiting for the responses to the previous ones.
+ * The latency of a command runs from the sending of its window to the reading
+ * of its response. A given percentage of the commands are queries, the others
+ * insert a triple linking a new subject to the first subject of the
+ * connection. The throughput and the latency percentiles of the commands are
+ * printed at the end.
+ */
+public class ServerBenchmark {
+
+	private final int port;
+	private final int connectionCount;
+	private final int commandCount;
+	private final int queryPercentage;
+	private final int depth;
+	private final AtomicLong errors = new AtomicLong();
+
+	/**
+	 * @param port the port of the server
+	 * @param connectionCount the number of connections open at once
+	 * @param commandCount the number of commands sent by each connection
+	 * @param queryPercentage the percentage of commands that are queries
+	 * @param depth the number of commands sent without waiting for responses, 1 to wait for each
+	 */
+	public ServerBenchmark(int port, int connectionCount, int commandCount, int queryPercentage, int depth) {
+		this.port = port;
+		this.connectionCount = connectionCount;
+		this.commandCount = commandCount;
+		this.queryPercentage = queryPercentage;
+		this.depth = Math.max(1, depth);
+	}
+
+	/**
+	 * Runs the benchmark and prints its results.
+	 * @throws IOException if a connection cannot be opened
+	 * @throws InterruptedException
+	 */
+	public void run() throws IOException, InterruptedException {
+		Socket[] sockets = new Socket[connectionCount];
+		long openStart = System.nanoTime();
+		try {
+			for (int connection = 0; connection < connectionCount; connection++) {
+				sockets[connection] = new Socket(InetAddress.getLoopbackAddress(), port);
+				sockets[connection].setTcpNoDelay(true);
+			}
+			System.out.printf("%d connections open in %.2f s%n", connectionCount, (System.nanoTime() - openStart) / 1e9);
+
+			long[] latencies = new long[connectionCount * commandCount];
+			CountDownLatch start = new CountDownLatch(1);
+			ExecutorService clients = Server.newThreadPerTaskExecutor("kmp-benchmark-client");
+			for (int connection = 0; connection < connectionCount; connection++) {
+				int index = connection;
+				clients.execute(() -> {
+					try {
+						start.await();
+						send(index, sockets[index], latencies);
+					} catch (IOException e) {
+						e.printStackTrace();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				});
+			}
+			long begin = System.nanoTime();
+			start.countDown();
+			clients.shutdown();
+			clients.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			double seconds = Math.max(1e-9, (System.nanoTime() - begin) / 1e9);
+
+			Arrays.sort(latencies);
+			System.out.printf("%d commands in %.2f s (%.0f commands/s), %d errors%n", latencies.length, seconds,
+					latencies.length / seconds, errors.get());
+			System.out.printf("latency p50 %.3f ms, p99 %.3f ms, max %.3f ms%n", percentile(latencies, 50),
+					percentile(latencies, 99), percentile(latencies, 100));
+		} finally {
+			for (Socket socket : sockets) {
+				if (socket != null) {
+					socket.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends the commands of a connection and stores their latencies in its part of
+	 * latencies.
+	 */
+	private void send(int connection, Socket socket, long[] latencies) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+		String first = "c" + connection + "n0";
+		for (int window = 0; window < commandCount; window += depth) {
+			int end = Math.min(commandCount, window + depth);
+			long begin = System.nanoTime();
+			for (int command = window; command < end; command++) {
+				// Spreads the queries evenly among the insertions
+				if (command * queryPercentage % 100 < queryPercentage) {
+					writer.write("query ?X : ?X knows " + first + "\n");
+				} else {
+					writer.write("insert c" + connection + "n" + (command + 1) + " knows " + first + "\n");
+				}
+			}
+			writer.flush();
+			for (int command = window; command < end; command++) {
+				String response = reader.readLine();
+				if (response == null) {
+					throw new IOException("The server closed connection " + connection);
+				}
+				if (response.startsWith("RESULT ")) {
+					int lines = Integer.parseInt(response.split(" ")[1]);
+					for (int line = 0; line < lines; line++) {
+						reader.readLine();
+					}
+				} else if (!response.equals("OK")) {
+					errors.incrementAndGet();
+				}
+				latencies[connection * commandCount + command] = System.nanoTime() - begin;
+			}
+		}
+		writer.write("quit\n");
+		writer.flush();
+	}
+
+	private static double percentile(long[] sortedLatencies, int percentile) {
+		if (sortedLatencies.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.ceil(sortedLatencies.length * percentile / 100.0) - 1;
+		return sortedLatencies[Math.max(0, index)] / 1e6;
+	}
+
+	/**
+	 * Runs the benchmark against a server of the local host.
+	 * @param args the port, the number of connections, the number of commands per
+	 *            connection, the percentage of queries, 50 by default, and the
+	 *            pipeline depth, 1 by default
+	 */
+	public static void main(String[] args) {
+		if (args.length < 3) {
+			System.out.println("Usage : port connections commands [queryPercentage [depth]]");
+			return;
+		}
+		int queryPercentage = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+		int depth = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+		ServerBenchmark benchmark = new ServerBenchmark(Integer.parseInt(args[0]), Integer.parseInt(args[1]),
+				Integer.parseInt(args[2]), queryPercentage, depth);
+		try {
+			benchmark.run();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}